@@ -0,0 +1,184 @@
+package funoform.mdp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decides which files are songs we can play.
+ *
+ * Normally that is just a matter of the file extension, ignoring case, which is
+ * checked without compiling a glob or lowercasing the name. A music scan calls
+ * this for every file in the collection, so it has to be cheap.
+ *
+ * Optionally, files without a known song extension can have their first few
+ * bytes checked for the tell tale signs of a song. That catches songs with no
+ * extension, or the wrong one. Opening a file is expensive though, so what we
+ * found is remembered for as long as the file's size and modification time
+ * stay the same. A rescan never opens a file twice.
+ */
+public class AudioFileDetector {
+	/**
+	 * How many bytes we need from the start of a file to recognize it.
+	 */
+	private static final int MAGIC_LEN = 4;
+	/**
+	 * Put a cap on how many files we remember, just in case someone points us at a
+	 * directory full of non-music files. Forgetting only costs a re-read.
+	 */
+	private static final int MAX_CACHED_VERDICTS = 100000;
+
+	/**
+	 * Once full, the file we looked at longest ago is forgotten to make room,
+	 * rather than forgetting everything at once. Files in unchanged directories
+	 * come out of the {@link LibraryIndex} without asking us, so what we get asked
+	 * about is mostly directories changed lately, and those are what we keep.
+	 * Access ordered, so even a get changes the map, hence the lock.
+	 */
+	private static final Map<Path, Verdict> sVerdicts = Collections
+			.synchronizedMap(new LinkedHashMap<Path, Verdict>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Path, Verdict> eldest) {
+					return size() > MAX_CACHED_VERDICTS;
+				}
+			});
+	private static volatile boolean sSniffContent = false;
+
+	/**
+	 * The kinds of audio file we can recognize. We can only play some of them.
+	 */
+	public enum AudioFormat {
+		MP3(true), FLAC(false), OGG(false), UNKNOWN(false);
+
+		/**
+		 * NOTE: FLACs only seem to work half the time with our music playing library.
+		 * So just leave flacs out for now.
+		 */
+		public final boolean isPlayable;
+
+		AudioFormat(boolean isPlayable) {
+			this.isPlayable = isPlayable;
+		}
+	}
+
+	// Just a bunch of static methods so don't let someone create this thing
+	private AudioFileDetector() {
+	}
+
+	/**
+	 * @param sniff True to look inside files without a song file extension to see
+	 *              if they are songs anyway.
+	 */
+	public static void setSniffContent(boolean sniff) {
+		sSniffContent = sniff;
+	}
+
+	public static boolean isSniffContent() {
+		return sSniffContent;
+	}
+
+	/**
+	 * @param path  The file.
+	 * @param attrs The file's attributes, which the caller has already read while
+	 *              listing its directory. If path is a sym link, these are the
+	 *              attributes of what it points to.
+	 * @return True if the file is a song we can play.
+	 */
+	public static boolean isPlayable(Path path, BasicFileAttributes attrs) {
+		if (!attrs.isRegularFile()) {
+			return false;
+		}
+		if (hasPlayableExtension(path)) {
+			return true;
+		}
+		if (!sSniffContent) {
+			return false;
+		}
+		return getFormat(path, attrs).isPlayable;
+	}
+
+	/**
+	 * Checks the file extension only, ignoring case. Never touches the disk.
+	 */
+	public static boolean hasPlayableExtension(Path path) {
+		Path fileName = path.getFileName();
+		if (null == fileName) {
+			return false;
+		}
+		String name = fileName.toString();
+		return name.regionMatches(true, name.length() - 4, ".mp3", 0, 4);
+	}
+
+	/**
+	 * Works out what kind of audio file this is from its first few bytes, unless we
+	 * already did since the file last changed.
+	 */
+	static AudioFormat getFormat(Path path, BasicFileAttributes attrs) {
+		long size = attrs.size();
+		long mtimeMs = attrs.lastModifiedTime().toMillis();
+		Verdict v = sVerdicts.get(path);
+		if (null != v && v.size == size && v.mtimeMs == mtimeMs) {
+			return v.format;
+		}
+
+		AudioFormat format;
+		try (InputStream in = Files.newInputStream(path)) {
+			format = identify(in.readNBytes(MAGIC_LEN));
+		} catch (IOException | SecurityException e) {
+			// can't read it, so we can't play it either
+			format = AudioFormat.UNKNOWN;
+		}
+
+		sVerdicts.put(path, new Verdict(size, mtimeMs, format));
+		return format;
+	}
+
+	/**
+	 * @param magic The first bytes of the file. May be fewer than
+	 *              {@link #MAGIC_LEN} if the file is that short.
+	 */
+	static AudioFormat identify(byte[] magic) {
+		if (magic.length < MAGIC_LEN) {
+			return AudioFormat.UNKNOWN;
+		}
+		if (magic[0] == 'I' && magic[1] == 'D' && magic[2] == '3') {
+			// An ID3v2 tag. Almost always the start of an MP3.
+			return AudioFormat.MP3;
+		}
+		if (magic[0] == 'f' && magic[1] == 'L' && magic[2] == 'a' && magic[3] == 'C') {
+			return AudioFormat.FLAC;
+		}
+		if (magic[0] == 'O' && magic[1] == 'g' && magic[2] == 'g' && magic[3] == 'S') {
+			return AudioFormat.OGG;
+		}
+		// An untagged MP3 starts right in with a frame header: 11 sync bits, then the
+		// MPEG version (01 is reserved), then the layer (01 is layer III)
+		int b0 = magic[0] & 0xFF;
+		int b1 = magic[1] & 0xFF;
+		int version = (b1 >> 3) & 0x03;
+		int layer = (b1 >> 1) & 0x03;
+		if (0xFF == b0 && 0xE0 == (b1 & 0xE0) && 0x01 != version && 0x01 == layer) {
+			return AudioFormat.MP3;
+		}
+		return AudioFormat.UNKNOWN;
+	}
+
+	private static class Verdict {
+		final long size;
+		final long mtimeMs;
+		final AudioFormat format;
+
+		Verdict(long size, long mtimeMs, AudioFormat format) {
+			this.size = size;
+			this.mtimeMs = mtimeMs;
+			this.format = format;
+		}
+	}
+}
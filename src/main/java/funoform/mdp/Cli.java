@@ -4,9 +4,12 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import funoform.mdp.Controller.SettingsListener;
+import funoform.mdp.TrigramIndex.Match;
 import funoform.mdp.types.SettingsChanged;
 
 @SuppressWarnings("squid:S106") // Don't raise SQ findings on using System.out
@@ -15,6 +18,9 @@ public class Cli {
 	private Thread mThread = new Thread(new CliRunnable());
 	private boolean mShouldRun = true;
 	private SettingsChanged mLastPrintedSettings = null;
+	// The latest settings we were sent, printed or not. Guarded by this, as is
+	// mLastPrintedSettings.
+	private SettingsChanged mLatestSettings = SettingsChanged.blank();
 	private AtomicBoolean mPausePrintingStatus = new AtomicBoolean(false);
 	private boolean mRecursive = false;
 
@@ -53,10 +59,13 @@ public class Cli {
 		mCtrl.registerSettingsListener(new SettingsListener() {
 			@Override
 			public void settingsChanged(SettingsChanged newSettings) {
-				if (!mPausePrintingStatus.get()) {
-					if (didSettingChangeMeaningfully(mLastPrintedSettings, newSettings)) {
-						mLastPrintedSettings = newSettings;
-						printStatus(newSettings, true, mRecursive);
+				synchronized (Cli.this) {
+					mLatestSettings = newSettings;
+					if (!mPausePrintingStatus.get()) {
+						if (didSettingChangeMeaningfully(mLastPrintedSettings, newSettings)) {
+							mLastPrintedSettings = newSettings;
+							printStatus(newSettings, true, mRecursive);
+						}
 					}
 				}
 			}
@@ -101,7 +110,7 @@ public class Cli {
 
 		// row 3
 		System.out.print(ANSI_ROW3_LEFT + ANSI_ERASE_LINE);
-		System.out.print(ANSI_BLUE_BG + String.format("[%4s]", newSettings.queuedSongs));
+		System.out.print(ANSI_BLUE_BG + String.format("[%5s]", DisplayUtils.getQueuedSongsCount(newSettings)));
 		System.out.print(ANSI_RESET + " ");
 		if (null != newSettings.playingDir) {
 			System.out.print(ANSI_BLUE + DisplayUtils.getFileNameLengthLimited(newSettings.playingDir, 50));
@@ -113,7 +122,7 @@ public class Cli {
 		System.out.print(ANSI_RED_BG + String.format("[%3s%%]", newSettings.pbPercentage.getPercentage()));
 		System.out.print(ANSI_RESET + " ");
 		if (null != newSettings.songPlaying) {
-			System.out.print(ANSI_RED + DisplayUtils.getFileNameLengthLimited(newSettings.songPlaying, 44));
+			System.out.print(ANSI_RED + DisplayUtils.getSongName(newSettings.songPlaying, newSettings.songTags, 44));
 		}
 		System.out.print(ANSI_RESET);
 		System.out.println("");
@@ -143,6 +152,8 @@ public class Cli {
 		System.out.println("n - Next");
 		System.out.println("x - Exit");
 		System.out.println("d - Specify Directory to Play");
+		System.out.println("f - Find a Song or Directory");
+		System.out.println("t - Search Songs by Tag");
 
 		if (redrawAll) {
 			// Put the cursor back where it was before we started. If the user was typing in
@@ -165,18 +176,19 @@ public class Cli {
 	 *         enough to warrant printing the new settings.
 	 */
 	private static boolean didSettingChangeMeaningfully(SettingsChanged old, SettingsChanged newer) {
-		if (null != old) {
-			if (old.playingDir == newer.playingDir) {
-				if (old.songPlaying == newer.songPlaying) {
-					if (old.pbPercentage.getPercentage() == newer.pbPercentage.getPercentage()) {
-						return false;
-					}
-				}
-			}
+		if (null == old) {
+			return true;
 		}
-		return true;
+		if (newer.isChanged(SettingsChanged.ALL & ~SettingsChanged.PROGRESS)) {
+			return true;
+		}
+		// We only print the percentage, which only changes every few seconds
+		return newer.isChanged(SettingsChanged.PROGRESS)
+				&& old.pbPercentage.getPercentage() != newer.pbPercentage.getPercentage();
 	}
 
+	private static final int MAX_FIND_MATCHES = 10;
+
 	private class CliRunnable implements Runnable {
 		private Scanner mScanner = new Scanner(System.in);
 
@@ -207,16 +219,25 @@ public class Cli {
 				case "d":
 					handleDirCmd(mCtrl.getCurrentDir());
 					break;
+				case "f":
+					handleFindCmd();
+					break;
+				case "t":
+					handleSearchCmd();
+					break;
 				default:
 					// User entered unknown command
 					break;
 				}
 
 				// Clear out out whatever the user typed in, albeit a valid or invalid command.
-				// And trigger a full refresh without waiting for the next meaningful playback
-				// status update
-				mLastPrintedSettings = null;
-				printStatus(SettingsChanged.blank(), true, mRecursive);
+				// And do a full refresh with the latest settings we have, without waiting for
+				// the next update. Nothing is sent while paused or stopped, so it could be a
+				// while. Anything the command changes is sent as an update.
+				synchronized (Cli.this) {
+					mLastPrintedSettings = mLatestSettings;
+					printStatus(mLatestSettings, true, mRecursive);
+				}
 
 				try {
 					Thread.sleep(100);
@@ -227,6 +248,115 @@ public class Cli {
 			}
 		}
 
+		/**
+		 * Searches the library by name. Each line typed searches again, until a match
+		 * is picked by its number or an empty line gives up.
+		 */
+		private void handleFindCmd() {
+			// stop printing normal song updates
+			mPausePrintingStatus.set(true);
+
+			List<Match> matches = List.of();
+			String query = "";
+			Match selected = null;
+			while (null == selected) {
+				System.out.print(ANSI_ERASE_SCREEN);
+				System.out.print(ANSI_ROW1_LEFT);
+				System.out.println("-- Find: " + query + " --");
+				for (int i = 0; i < matches.size(); i++) {
+					Match m = matches.get(i);
+					String name = DisplayUtils.getFileNameLengthLimited(m.path, 60) + (m.isDir ? "/" : "");
+					System.out.println(i + " - " + name);
+				}
+				if (!query.isEmpty() && matches.isEmpty()) {
+					System.out.println("    Nothing found");
+				}
+				System.out.println("Type a name to search for, a number to play it, or nothing to go back");
+				System.out.print("> ");
+
+				String userInput = mScanner.nextLine().trim();
+				if (userInput.isEmpty()) {
+					break;
+				}
+				if (1 == userInput.length() && Character.isDigit(userInput.charAt(0))
+						&& userInput.charAt(0) - '0' < matches.size()) {
+					selected = matches.get(userInput.charAt(0) - '0');
+				} else {
+					query = userInput;
+					try {
+						matches = mCtrl.findPaths(query, MAX_FIND_MATCHES).get();
+					} catch (ExecutionException | CancellationException e) {
+						// cancelled by a search from the GUI
+						matches = List.of();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+			}
+
+			mPausePrintingStatus.set(false);
+			if (null != selected) {
+				if (selected.isDir) {
+					mCtrl.playDir(selected.path, mRecursive);
+				} else {
+					mCtrl.playSong(selected.path);
+				}
+			}
+		}
+
+		/**
+		 * Searches the whole library by tags and file names. Each line typed searches
+		 * again, until a song is picked by its number, p plays everything found, or an
+		 * empty line gives up.
+		 */
+		private void handleSearchCmd() {
+			// stop printing normal song updates
+			mPausePrintingStatus.set(true);
+
+			List<Path> found = List.of();
+			String query = "";
+			List<Path> toPlay = null;
+			while (null == toPlay) {
+				System.out.print(ANSI_ERASE_SCREEN);
+				System.out.print(ANSI_ROW1_LEFT);
+				System.out.println("-- Search: " + query + " --");
+				int numShown = Math.min(found.size(), MAX_FIND_MATCHES);
+				for (int i = 0; i < numShown; i++) {
+					Path song = found.get(i);
+					System.out.println(i + " - " + DisplayUtils.getSongName(song, mCtrl.getTags(song), 60));
+				}
+				if (found.size() > numShown) {
+					System.out.println("    ... and " + (found.size() - numShown) + " more");
+				}
+				if (!query.isEmpty() && found.isEmpty()) {
+					System.out.println("    Nothing found");
+				}
+				System.out.println("Type words to search for, e.g. artist:\"pink floyd\" year:1970-1979");
+				System.out.println("A number plays that song, p plays everything found, nothing goes back");
+				System.out.print("> ");
+
+				String userInput = mScanner.nextLine().trim();
+				if (userInput.isEmpty()) {
+					break;
+				}
+				if (1 == userInput.length() && Character.isDigit(userInput.charAt(0))
+						&& userInput.charAt(0) - '0' < numShown) {
+					toPlay = List.of(found.get(userInput.charAt(0) - '0'));
+				} else if ("p".equals(userInput) && !found.isEmpty()) {
+					toPlay = found;
+				} else {
+					query = userInput;
+					found = mCtrl.search(query);
+				}
+			}
+
+			mPausePrintingStatus.set(false);
+			if (null != toPlay) {
+				mCtrl.playSongs(toPlay);
+			}
+		}
+
 		private void handleDirCmd(Path curPath) {
 			// stop printing normal song updates
 			mPausePrintingStatus.set(true);
@@ -0,0 +1,398 @@
+package funoform.mdp;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * A list of file paths that takes a fraction of the memory of an
+ * {@link ArrayList} of {@link Path}s.
+ *
+ * A whole music library queued up is easily a few hundred thousand songs. As
+ * Path objects, each song carries its own copy of the full path string, plus
+ * the Path object itself and its cached bits and pieces. On a phone that adds
+ * up to hundreds of MB. But songs come in albums, so nearly all of that is the
+ * same directory names over and over.
+ *
+ * Here each directory is kept once, and each song is just the index of its
+ * directory plus the UTF-8 bytes of its file name, packed into one big byte
+ * array. The Path is only made when someone asks for it, and isn't kept.
+ *
+ * Not thread safe. Copies made with {@link #CompactPathList(CompactPathList)}
+ * are cheap and independent of the original.
+ */
+public class CompactPathList extends AbstractList<Path> implements RandomAccess {
+	private static final int INITIAL_CAPACITY = 16;
+	/**
+	 * Don't bother compacting the names until at least this many bytes are wasted
+	 * on removed songs.
+	 */
+	private static final int MIN_GARBAGE_TO_COMPACT = 64 * 1024;
+
+	// Every directory a song has been in. A song's parent is an index in here.
+	private List<Path> mDirs = new ArrayList<>();
+	// null until needed, for copies that may never look a directory up
+	private Map<Path, Integer> mDirIds = new HashMap<>();
+
+	// File names, each a 2 byte length followed by that many bytes of UTF-8
+	private byte[] mNames = new byte[INITIAL_CAPACITY * 16];
+	private int mNamesLen = 0;
+	// Bytes in mNames no longer used by any song
+	private int mGarbage = 0;
+	// True if mNames belongs to the list we were copied from, so we must not write
+	// to it. That list only ever writes past the end of the names it had when we
+	// were copied, so it can carry on appending in place without disturbing us.
+	private boolean mIsNamesShared = false;
+
+	// Per song, the index of its directory and where its name starts in mNames
+	private int[] mDirOf = new int[INITIAL_CAPACITY];
+	private int[] mNameAt = new int[INITIAL_CAPACITY];
+	private int mSize = 0;
+
+	public CompactPathList() {
+	}
+
+	public CompactPathList(Collection<? extends Path> paths) {
+		addAll(paths);
+	}
+
+	/**
+	 * Copies another list. Until the copy adds a song, it shares the original's
+	 * file names. The original can keep adding songs without copying anything.
+	 */
+	public CompactPathList(CompactPathList other) {
+		mDirs = new ArrayList<>(other.mDirs);
+		mDirIds = (null == other.mDirIds) ? null : new HashMap<>(other.mDirIds);
+		mNames = other.mNames;
+		mNamesLen = other.mNamesLen;
+		mGarbage = other.mGarbage;
+		mIsNamesShared = true;
+		mDirOf = Arrays.copyOf(other.mDirOf, Math.max(INITIAL_CAPACITY, other.mSize));
+		mNameAt = Arrays.copyOf(other.mNameAt, Math.max(INITIAL_CAPACITY, other.mSize));
+		mSize = other.mSize;
+	}
+
+	@Override
+	public int size() {
+		return mSize;
+	}
+
+	@Override
+	public Path get(int index) {
+		checkIndex(index);
+		Path dir = mDirs.get(mDirOf[index]);
+		String name = getName(index);
+		return (null == dir) ? Path.of(name) : dir.resolve(name);
+	}
+
+	@Override
+	public Path set(int index, Path element) {
+		Path old = get(index);
+		mGarbage += nameBytes(mNameAt[index]);
+		mDirOf[index] = dirIdOf(element);
+		mNameAt[index] = appendName(element);
+		return old;
+	}
+
+	@Override
+	public void add(int index, Path element) {
+		if (index < 0 || index > mSize) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mSize);
+		}
+		ensureCapacity(mSize + 1);
+		System.arraycopy(mDirOf, index, mDirOf, index + 1, mSize - index);
+		System.arraycopy(mNameAt, index, mNameAt, index + 1, mSize - index);
+		mDirOf[index] = dirIdOf(element);
+		mNameAt[index] = appendName(element);
+		mSize++;
+		modCount++;
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends Path> c) {
+		ensureCapacity(mSize + c.size());
+		for (Path p : c) {
+			mDirOf[mSize] = dirIdOf(p);
+			mNameAt[mSize] = appendName(p);
+			mSize++;
+		}
+		modCount++;
+		return !c.isEmpty();
+	}
+
+	@Override
+	public boolean addAll(int index, Collection<? extends Path> c) {
+		if (index == mSize) {
+			return addAll(c);
+		}
+		return super.addAll(index, c);
+	}
+
+	@Override
+	public Path remove(int index) {
+		Path old = get(index);
+		mGarbage += nameBytes(mNameAt[index]);
+		System.arraycopy(mDirOf, index + 1, mDirOf, index, mSize - index - 1);
+		System.arraycopy(mNameAt, index + 1, mNameAt, index, mSize - index - 1);
+		mSize--;
+		modCount++;
+		if (mGarbage >= MIN_GARBAGE_TO_COMPACT && mGarbage > mNamesLen / 2) {
+			compactNames();
+		}
+		return old;
+	}
+
+	@Override
+	public void clear() {
+		mDirs = new ArrayList<>();
+		mDirIds = new HashMap<>();
+		mNames = new byte[INITIAL_CAPACITY * 16];
+		mNamesLen = 0;
+		mGarbage = 0;
+		mIsNamesShared = false;
+		mDirOf = new int[INITIAL_CAPACITY];
+		mNameAt = new int[INITIAL_CAPACITY];
+		mSize = 0;
+		modCount++;
+	}
+
+	/**
+	 * Finds a path without making a Path object for every song we compare it to.
+	 */
+	@Override
+	public int indexOf(Object o) {
+		if (!(o instanceof Path)) {
+			return -1;
+		}
+		Path p = (Path) o;
+		Integer dirId = dirIds().get(p.getParent());
+		if (null == dirId || null == p.getFileName()) {
+			return -1;
+		}
+		byte[] name = p.getFileName().toString().getBytes(StandardCharsets.UTF_8);
+		for (int i = 0; i < mSize; i++) {
+			if (mDirOf[i] == dirId && nameEquals(mNameAt[i], name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return -1 != indexOf(o);
+	}
+
+	/**
+	 * @return True if the song at the index is the path, checked without making a
+	 *         Path for the song.
+	 */
+	public boolean isAt(int index, Path p) {
+		checkIndex(index);
+		Path fileName = p.getFileName();
+		Integer dirId = dirIds().get(p.getParent());
+		if (null == dirId || mDirOf[index] != dirId || null == fileName) {
+			return false;
+		}
+		return nameEquals(mNameAt[index], fileName.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Rearranges the songs without touching their names.
+	 *
+	 * @param order The index each song is moved from. i.e. song order[0] becomes
+	 *              the first song. Must hold every index exactly once.
+	 */
+	public void reorder(int[] order) {
+		if (order.length != mSize) {
+			throw new IllegalArgumentException("Order has " + order.length + " entries for " + mSize + " songs");
+		}
+		int[] dirOf = new int[Math.max(INITIAL_CAPACITY, mSize)];
+		int[] nameAt = new int[dirOf.length];
+		for (int i = 0; i < mSize; i++) {
+			dirOf[i] = mDirOf[order[i]];
+			nameAt[i] = mNameAt[order[i]];
+		}
+		mDirOf = dirOf;
+		mNameAt = nameAt;
+		modCount++;
+	}
+
+	/**
+	 * Copies some of the songs, without decoding their names.
+	 *
+	 * @param indexes The index of each song to copy, in the order they should be
+	 *                in the copy.
+	 */
+	public CompactPathList select(int[] indexes) {
+		CompactPathList ret = new CompactPathList(this);
+		ret.mDirOf = new int[Math.max(INITIAL_CAPACITY, indexes.length)];
+		ret.mNameAt = new int[ret.mDirOf.length];
+		int used = 0;
+		for (int i = 0; i < indexes.length; i++) {
+			int from = indexes[i];
+			checkIndex(from);
+			ret.mDirOf[i] = mDirOf[from];
+			ret.mNameAt[i] = mNameAt[from];
+			used += nameBytes(mNameAt[from]);
+		}
+		ret.mSize = indexes.length;
+		ret.mGarbage = Math.max(0, mNamesLen - used);
+		if (ret.mGarbage >= MIN_GARBAGE_TO_COMPACT && ret.mGarbage > ret.mNamesLen / 2) {
+			ret.compactNames();
+		}
+		return ret;
+	}
+
+	/**
+	 * Copies some of the songs into a list of their own. Unlike
+	 * {@link #select(int[])} the copy shares no names with this list, so neither
+	 * has to copy its names when the other adds a song. Costs copying the names
+	 * of the songs picked, but not the rest. The directories are copied as a
+	 * plain list, and only looked up by path if the copy is searched or added to.
+	 *
+	 * @param indexes The index of each song to copy, in the order they should be
+	 *                in the copy.
+	 * @param count   How many of the indexes to use.
+	 */
+	public CompactPathList extract(int[] indexes, int count) {
+		CompactPathList ret = new CompactPathList();
+		ret.mDirs = new ArrayList<>(mDirs);
+		ret.mDirIds = null;
+		ret.ensureCapacity(count);
+		for (int i = 0; i < count; i++) {
+			int from = indexes[i];
+			checkIndex(from);
+			int at = mNameAt[from];
+			int n = nameBytes(at);
+			if (ret.mNamesLen + n > ret.mNames.length) {
+				int needed = ret.mNamesLen + n;
+				ret.mNames = Arrays.copyOf(ret.mNames, needed + (needed >> 1));
+			}
+			System.arraycopy(mNames, at, ret.mNames, ret.mNamesLen, n);
+			ret.mDirOf[i] = mDirOf[from];
+			ret.mNameAt[i] = ret.mNamesLen;
+			ret.mNamesLen += n;
+		}
+		ret.mSize = count;
+		return ret;
+	}
+
+	/**
+	 * @return Roughly how many bytes this list is using, not counting the
+	 *         directory Paths.
+	 */
+	public long getApproxSizeBytes() {
+		return mNames.length + 4L * mDirOf.length + 4L * mNameAt.length;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= mSize) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mSize);
+		}
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > mDirOf.length) {
+			int newCapacity = Math.max(capacity, mDirOf.length + (mDirOf.length >> 1));
+			mDirOf = Arrays.copyOf(mDirOf, newCapacity);
+			mNameAt = Arrays.copyOf(mNameAt, newCapacity);
+		}
+	}
+
+	private int dirIdOf(Path p) {
+		return idOfDir(p.getParent());
+	}
+
+	private int idOfDir(Path dir) {
+		Integer id = dirIds().get(dir);
+		if (null == id) {
+			id = mDirs.size();
+			mDirs.add(dir);
+			mDirIds.put(dir, id);
+		}
+		return id;
+	}
+
+	private Map<Path, Integer> dirIds() {
+		if (null == mDirIds) {
+			mDirIds = new HashMap<>(mDirs.size() * 2);
+			for (int i = 0; i < mDirs.size(); i++) {
+				mDirIds.put(mDirs.get(i), i);
+			}
+		}
+		return mDirIds;
+	}
+
+	/**
+	 * @return Where in mNames the path's file name was put.
+	 */
+	private int appendName(Path p) {
+		Path fileName = p.getFileName();
+		byte[] name = ((null == fileName) ? p.toString() : fileName.toString()).getBytes(StandardCharsets.UTF_8);
+		if (name.length > 0xFFFF) {
+			throw new IllegalArgumentException("File name too long: " + p);
+		}
+		int needed = mNamesLen + 2 + name.length;
+		if (mIsNamesShared || needed > mNames.length) {
+			// Never write to the names array of the list we were copied from, even past
+			// the end of what we use. It could be writing there too.
+			int newLen = Math.max(needed + (needed >> 1), INITIAL_CAPACITY * 16);
+			mNames = Arrays.copyOf(mNames, newLen);
+			mIsNamesShared = false;
+		}
+		int at = mNamesLen;
+		mNames[at] = (byte) (name.length >> 8);
+		mNames[at + 1] = (byte) name.length;
+		System.arraycopy(name, 0, mNames, at + 2, name.length);
+		mNamesLen = needed;
+		return at;
+	}
+
+	private int nameLen(int at) {
+		return ((mNames[at] & 0xFF) << 8) | (mNames[at + 1] & 0xFF);
+	}
+
+	/**
+	 * @return How many bytes of mNames a name takes up, including its length.
+	 */
+	private int nameBytes(int at) {
+		return 2 + nameLen(at);
+	}
+
+	private String getName(int index) {
+		int at = mNameAt[index];
+		return new String(mNames, at + 2, nameLen(at), StandardCharsets.UTF_8);
+	}
+
+	private boolean nameEquals(int at, byte[] name) {
+		return nameLen(at) == name.length
+				&& Arrays.equals(mNames, at + 2, at + 2 + name.length, name, 0, name.length);
+	}
+
+	/**
+	 * Throws away the names of removed songs.
+	 */
+	private void compactNames() {
+		byte[] names = new byte[Math.max(INITIAL_CAPACITY * 16, mNamesLen - mGarbage)];
+		int len = 0;
+		for (int i = 0; i < mSize; i++) {
+			int at = mNameAt[i];
+			int n = nameBytes(at);
+			System.arraycopy(mNames, at, names, len, n);
+			mNameAt[i] = len;
+			len += n;
+		}
+		mNames = names;
+		mNamesLen = len;
+		mGarbage = 0;
+		mIsNamesShared = false;
+	}
+}
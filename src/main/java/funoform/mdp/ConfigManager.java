@@ -1,6 +1,10 @@
 package funoform.mdp;
 
 import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.prefs.BackingStoreException;
@@ -20,10 +24,32 @@ import funoform.mdp.types.SettingsChanged;
  * One detail worth mentioning, if this is the first time the app is launched,
  * none of the values exist in the preferences store. In that case, you just get
  * back the default value specified with each call.
+ * 
+ * Saving a value changes it straight away as far as the getters are
+ * concerned, but it is only written to disk a moment later, on a background
+ * thread. Changes made in the meantime, like dragging a slider in the options
+ * dialog, all go out in one write rather than one write each. Java writes the
+ * preferences to a temporary file and renames it over the old one, so a write
+ * never leaves a half written file behind. Anything not yet written goes out
+ * when the app exits, including when the phone's shell kills it.
  */
 public class ConfigManager {
 	private static final Logger sLogger = Logger.getLogger(ConfigManager.class.getName());
+	/**
+	 * How long to wait for more changes before writing them all out.
+	 */
+	private static final long WRITE_DELAY_MS = 1000;
+	/**
+	 * The most directories {@link #getScanParallelism()} will search at once.
+	 */
+	public static final int MAX_SCAN_PARALLELISM = 64;
 	private Preferences mPrefs = Preferences.userNodeForPackage(this.getClass());
+	private final AtomicBoolean mDirty = new AtomicBoolean(false);
+	private final ScheduledExecutorService mWriter = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "ConfigWriter");
+		t.setDaemon(true);
+		return t;
+	});
 
 	private static final String STARTING_DIR = "startingDir";
 	private static final String RANDOM = "isRandom";
@@ -35,8 +61,17 @@ public class ConfigManager {
 	private static final String PREV_TRACK_BUTTON = "isShowPrevTrackButton";
 	private static final String LOOK_AND_FEEL = "lookAndFeel";
 	private static final String MAX_LIST_FILES_WAIT_TIME_SEC = "maxListFilesWaitTimeSec";
+	private static final String SCAN_PARALLELISM = "scanParallelism";
+	private static final String MAX_DIR_READ_TIME_SEC = "maxDirReadTimeSec";
+	private static final String SNIFF_AUDIO_FILES = "isSniffAudioFiles";
+	private static final String GAPLESS = "isGapless";
+	private static final String CROSSFADE_SECS = "crossfadeSecs";
 
 	public ConfigManager() {
+		// Exiting, or being sent SIGTERM, runs this. Only a SIGKILL loses the last
+		// second of changes.
+		Runtime.getRuntime().addShutdownHook(new Thread(this::flushIfDirty, "ConfigFlush"));
+
 		// log values at startup
 		try {
 			StringBuilder sb = new StringBuilder(String.valueOf(mPrefs.keys().length));
@@ -57,6 +92,11 @@ public class ConfigManager {
 		sLogger.log(Level.FINE, "   " + PREV_TRACK_BUTTON + "=" + getIsAutoStart());
 		sLogger.log(Level.FINE, "   " + LOOK_AND_FEEL + "=" + getLookAndFeel());
 		sLogger.log(Level.FINE, "   " + MAX_LIST_FILES_WAIT_TIME_SEC + "=" + getMaxListFilesWaitTimeSec());
+		sLogger.log(Level.FINE, "   " + SCAN_PARALLELISM + "=" + getScanParallelism());
+		sLogger.log(Level.FINE, "   " + MAX_DIR_READ_TIME_SEC + "=" + getMaxDirReadTimeSec());
+		sLogger.log(Level.FINE, "   " + SNIFF_AUDIO_FILES + "=" + getIsSniffAudioFiles());
+		sLogger.log(Level.FINE, "   " + GAPLESS + "=" + getIsGapless());
+		sLogger.log(Level.FINE, "   " + CROSSFADE_SECS + "=" + getCrossfadeSecs());
 	}
 
 	public String getStartingDir() {
@@ -82,6 +122,45 @@ public class ConfigManager {
 		persistPrefs();
 	}
 
+	/**
+	 * If true, files without a song file extension are opened to see if they are
+	 * songs anyway. Off by default as it means opening every non-song file once.
+	 */
+	public boolean getIsSniffAudioFiles() {
+		return mPrefs.getBoolean(SNIFF_AUDIO_FILES, false);
+	}
+
+	public void saveSniffAudioFiles(boolean sniff) {
+		mPrefs.putBoolean(SNIFF_AUDIO_FILES, sniff);
+		persistPrefs();
+	}
+
+	/**
+	 * If true, songs are played back to back through the same audio line with no
+	 * gap between them. For live and continuous albums.
+	 */
+	public boolean getIsGapless() {
+		return mPrefs.getBoolean(GAPLESS, false);
+	}
+
+	public void saveGapless(boolean gapless) {
+		mPrefs.putBoolean(GAPLESS, gapless);
+		persistPrefs();
+	}
+
+	/**
+	 * How many seconds each song fades into the next. 0, the default, for no
+	 * crossfade.
+	 */
+	public int getCrossfadeSecs() {
+		return mPrefs.getInt(CROSSFADE_SECS, 0);
+	}
+
+	public void saveCrossfadeSecs(int seconds) {
+		mPrefs.putInt(CROSSFADE_SECS, seconds);
+		persistPrefs();
+	}
+
 	public boolean getIsRandom() {
 		return mPrefs.getBoolean(RANDOM, false);
 	}
@@ -135,6 +214,37 @@ public class ConfigManager {
 		persistPrefs();
 	}
 
+	/**
+	 * How many directories may be searched for music files at the same time.
+	 * Defaults to the number of processors. Network mounted collections often
+	 * benefit from a higher number since most of the time is spent waiting on the
+	 * server rather than the CPU. Always between 1 and
+	 * {@link #MAX_SCAN_PARALLELISM}, however many processors there are.
+	 */
+	public int getScanParallelism() {
+		int parallelism = mPrefs.getInt(SCAN_PARALLELISM, Runtime.getRuntime().availableProcessors());
+		return Math.max(1, Math.min(parallelism, MAX_SCAN_PARALLELISM));
+	}
+
+	public void saveScanParallelism(int parallelism) {
+		mPrefs.putInt(SCAN_PARALLELISM, parallelism);
+		persistPrefs();
+	}
+
+	/**
+	 * How long we wait on any one directory to be read before skipping it. Stops a
+	 * single hung network mount from using up all of
+	 * {@link #getMaxListFilesWaitTimeSec()}.
+	 */
+	public int getMaxDirReadTimeSec() {
+		return mPrefs.getInt(MAX_DIR_READ_TIME_SEC, 3);
+	}
+
+	public void saveMaxDirReadTimeSec(int seconds) {
+		mPrefs.putInt(MAX_DIR_READ_TIME_SEC, seconds);
+		persistPrefs();
+	}
+
 	public void savePreferences(SettingsChanged newSettings) {
 		mPrefs.put(STARTING_DIR, newSettings.playingDir.toString());
 		mPrefs.putBoolean(RANDOM, newSettings.isRandom);
@@ -142,7 +252,20 @@ public class ConfigManager {
 		persistPrefs();
 	}
 
+	/**
+	 * Writes the preferences to disk shortly, along with any other changes made
+	 * until then.
+	 */
 	private void persistPrefs() {
+		if (!mDirty.getAndSet(true)) {
+			mWriter.schedule(this::flushIfDirty, WRITE_DELAY_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void flushIfDirty() {
+		if (!mDirty.getAndSet(false)) {
+			return;
+		}
 		try {
 			mPrefs.flush();
 		} catch (BackingStoreException e) {
@@ -5,78 +5,185 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import funoform.mdp.LibraryWatcher.ILibraryChangeListener;
+import funoform.mdp.MusicFileScanner.IScanListener;
 import funoform.mdp.MusicPlayer.IPlaybackStatusListener;
+import funoform.mdp.TagCache.ITagListener;
+import funoform.mdp.TrigramIndex.Match;
 import funoform.mdp.types.PlaybackPercentage;
 import funoform.mdp.types.PlaybackStatus;
 import funoform.mdp.types.SettingsChanged;
+import funoform.mdp.types.SongTags;
 
 /**
  * Controls the playback of music (through ownership of the
  * {@link MusicPlayer}), advancing tracks, reporting out playback status, and in
  * general being the single point something like the CLI or GUI needs to
  * effectively control the app.
+ *
+ * Everything that changes what is playing or queued runs one at a time, in the
+ * order asked for, on a single command thread. The public methods that change
+ * things only queue up a command and return right away, so the GUI never waits
+ * on a slow disk, and two remotes pressing next at the same moment skip two
+ * songs rather than getting tangled up. Wait on the returned future if you
+ * need the change to have happened.
  */
 public class Controller {
 	private static final Logger sLogger = Logger.getLogger(Main.class.getName());
 	private ConfigManager mCfg;
 	private MusicPlayer mPlayer = new MusicPlayer();
-	private List<Path> mQueuedMusicFiles = new ArrayList<>();
+	private PlayQueue mQueuedMusicFiles = new PlayQueue();
 	private SettingsChanged mSettings = new SettingsChanged();
-	private int mCurPlayingIndex = -1;
-	private List<SettingsListener> mSettingsListeners = new ArrayList<>();
+	private SettingsPublisher mSettingsPublisher = new SettingsPublisher();
+	// The last snapshot of mSettings published. Guarded by mSettingsPublisher.
+	private SettingsChanged mLastPublished;
+	private List<QueueListener> mQueueListeners = new ArrayList<>();
+	// Guards mQueuedMusicFiles. It is only changed on the command thread, but the
+	// GUI and the like read it from their own.
+	private Object mQueueLock = new Object();
+	private LibraryWatcher mWatcher;
 	private AtomicBoolean mShouldBePlaying = new AtomicBoolean(false);
 	private Random mRandom = new Random();
+	// Guarded by mQueueLock too
+	private Shuffle mShuffle = new Shuffle(mRandom);
+	// Swapped out by the scan thread if the user changes whether songs are sniffed
+	private volatile LibraryIndex mLibraryIndex;
+	private DirListingCache mDirListingCache = new DirListingCache();
+	private TagCache mTagCache = TagCache.load(FileUtils.getCacheDir().resolve("tags.idx"), () -> mLibraryIndex);
+	private List<ITagListener> mTagListeners = new CopyOnWriteArrayList<>();
+	private MetadataStore mMetadata = new MetadataStore(mTagCache::get);
+	private TrigramIndex mPathIndex = new TrigramIndex();
+	private AtomicInteger mScanGeneration = new AtomicInteger(0);
+	// What's playing, saved as it changes so the next run can carry on from there.
+	// The rest of these are only touched on the command thread.
+	private SessionSnapshot mSession = new SessionSnapshot(FileUtils.getCacheDir().resolve("session.snap"));
+	private boolean mIsRecursive = false;
+	private boolean mIsQueueDirty = true;
+	// True once songs have been moved around the queue, so it is no longer sorted
+	// when the scan finishes
+	private boolean mIsQueueReordered = false;
+	private Path mSavedSong;
+	// The song the player was told is next, in gapless mode
+	private Path mNextSong;
+	private ExecutorService mScanExecutor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "DirScanner");
+		t.setDaemon(true);
+		return t;
+	});
+	// Every change to what is playing or queued runs on this thread
+	private ExecutorService mCommands = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "Controller");
+		t.setDaemon(true);
+		return t;
+	});
 
 	public Controller(ConfigManager cfg) {
 		mCfg = cfg;
+		AudioFileDetector.setSniffContent(mCfg.getIsSniffAudioFiles());
+		mLibraryIndex = LibraryIndex.load(getLibraryIndexFile());
+		mPathIndex.addLibrary(mLibraryIndex);
+		mMetadata.addLibrary(mLibraryIndex);
 
 		// Receive notifications about playback % complete and when the song ends
 		mPlayer.init(new IPlaybackStatusListener() {
 			@Override
 			public void playbackStatusChanged(PlaybackStatus status) {
-				if (status.isPlaybackComplete) {
-					sLogger.log(Level.FINE, "Playback status changed: " + status);
-					if (mShouldBePlaying.get()) {
-						nextTrack();
+				submit(() -> {
+					if (null != status.songStarted) {
+						nextSongStarted(status.songStarted);
 					}
-				}
+					if (status.isPlaybackComplete) {
+						sLogger.log(Level.FINE, "Playback status changed: " + status);
+						if (mShouldBePlaying.get()) {
+							doNextTrack();
+						}
+					}
+
+					mSettings.pbPercentage = status.pbPercentage;
+					notifySettingsListeners();
+				});
+			}
+		});
 
-				mSettings.pbPercentage = status.pbPercentage;
-				notifySettingsListeners();
+		mTagCache.setListener(new ITagListener() {
+			@Override
+			public void tagsRead(Path song, SongTags tags) {
+				mMetadata.tagsChanged(song, tags);
+				for (ITagListener l : mTagListeners) {
+					l.tagsRead(song, tags);
+				}
+				submit(() -> {
+					if (song.equals(mSettings.songPlaying)) {
+						mSettings.songTags = tags;
+						notifySettingsListeners();
+					}
+				});
 			}
 		});
 
+		// Pick up songs added to or removed from the directories we are playing
+		try {
+			mWatcher = new LibraryWatcher(new ILibraryChangeListener() {
+				@Override
+				public void added(List<Path> songs) {
+					submit(() -> songsAdded(songs));
+				}
+
+				@Override
+				public void removed(Path path) {
+					submit(() -> songsRemoved(path));
+				}
+			}, mCfg, () -> mLibraryIndex);
+		} catch (IOException e) {
+			sLogger.log(Level.WARNING, "Unable to watch for new songs. " + e.getMessage());
+		}
+
 		// apply initial config
 		mSettings.isRandom = mCfg.getIsRandom();
 		mSettings.isRepeat = mCfg.getIsRepeat();
-		if (mCfg.getIsAutoStart()) {
-			playDir(Path.of(mCfg.getStartingDir()), mCfg.getIsRecursive());
-		} else {
-			playDir(Path.of(mCfg.getStartingDir()), mCfg.getIsRecursive());
-			stop();
-		}
+		Path startingDir = Path.of(mCfg.getStartingDir());
+		boolean recursive = mCfg.getIsRecursive();
+		boolean autoStart = mCfg.getIsAutoStart();
+		submit(() -> {
+			if (!restoreSession(startingDir, recursive, autoStart)) {
+				doPlayDir(startingDir, recursive, null, autoStart);
+			}
+		});
+	}
+
+	/**
+	 * Queues up a command to run on the command thread, after any already queued.
+	 *
+	 * @return Completes once the command has run.
+	 */
+	private CompletableFuture<Void> submit(Runnable command) {
+		CompletableFuture<Void> ret = CompletableFuture.runAsync(command, mCommands);
+		ret.exceptionally(e -> {
+			// Don't let one bad command stop the ones after it. Log it and move on.
+			sLogger.log(Level.SEVERE, "Exception while running a command: " + e.getMessage());
+			return null;
+		});
+		return ret;
 	}
 
 	public List<Path> getAvailableDirs(Path dir) {
 		List<Path> ret;
 		try {
-			ret = FileUtils.getSubDirectories(dir);
-
-			// alphabetize list ignoring case
-			Collections.sort(ret, new Comparator<Path>() {
-				@Override
-				public int compare(Path o1, Path o2) {
-					return o1.getFileName().toString().toLowerCase()
-							.compareTo(o2.getFileName().toString().toLowerCase());
-				}
-			});
+			ret = mDirListingCache.getSubDirectories(dir);
 		} catch (IOException e) {
 			sLogger.log(Level.WARNING, "Exception while getting available subdirectories. " + e.getMessage());
 			ret = new ArrayList<>();
@@ -84,25 +191,89 @@ public class Controller {
 		return ret;
 	}
 
+	/**
+	 * @return A read only copy of the songs queued to play. Register a
+	 *         {@link QueueListener} to keep the copy up to date.
+	 */
 	public List<Path> getQueuedSongs() {
-		return Collections.unmodifiableList(mQueuedMusicFiles);
+		synchronized (mQueueLock) {
+			return Collections.unmodifiableList(mQueuedMusicFiles.toCompactList());
+		}
 	}
 
 	public Path getCurrentDir() {
 		return mSettings.playingDir;
 	}
 
-	public void playPause() {
+	public CompletableFuture<Void> playPause() {
+		return submit(() -> doPlayPause());
+	}
+
+	private void doPlayPause() {
 		boolean isPlaying = mPlayer.togglePauseResume();
 		mSettings.isPaused = !isPlaying;
 		notifySettingsListeners();
 	}
 
-	public void playDir(Path dir, boolean recursive) {
-		playDir(dir, recursive, null);
+	public CompletableFuture<Void> playDir(Path dir, boolean recursive) {
+		return submit(() -> doPlayDir(dir, recursive, null, true));
+	}
+
+	/**
+	 * Jumps to somewhere else in the song playing. Past the end goes on to the next
+	 * song.
+	 */
+	public CompletableFuture<Void> seekTo(long millis) {
+		return submit(() -> doSeekTo(millis));
+	}
+
+	/**
+	 * Jumps forward, or back if millis is negative, from where we are in the song
+	 * playing.
+	 */
+	public CompletableFuture<Void> seekBy(long millis) {
+		return submit(() -> {
+			// more exact than the progress, which is only to the second
+			long posMillis = mPlayer.getPositionMillis();
+			if (-1 == posMillis) {
+				posMillis = mSettings.pbPercentage.getCurTimeSecs() * 1000;
+			}
+			doSeekTo(posMillis + millis);
+		});
+	}
+
+	private void doSeekTo(long millis) {
+		if (null == mSettings.songPlaying || !mShouldBePlaying.get()) {
+			return;
+		}
+		long durSecs = mSettings.pbPercentage.getMaxTimeSecs();
+		if (0 < durSecs && millis >= durSecs * 1000) {
+			doNextTrack();
+			return;
+		}
+		millis = Math.max(0, millis);
+		if (mPlayer.seekTo(millis)) {
+			mSettings.pbPercentage = new PlaybackPercentage(millis / 1000, durSecs);
+			// the player forgets the next song when it starts again
+			prepareNextSong();
+			notifySettingsListeners(SettingsChanged.SEEK | SettingsChanged.PROGRESS);
+		}
 	}
 
-	private void playDir(Path dir, boolean recursive, Path song) {
+	/**
+	 * Starts searching a directory for songs and queues them up as they are found.
+	 * Runs on the command thread, but returns without waiting on the search.
+	 * Playback starts as soon as the first songs are found, so a slow network
+	 * mount doesn't mean sitting in silence until every sub-directory has been
+	 * searched.
+	 *
+	 * @param dir       The directory to play.
+	 * @param recursive True to include all the sub-directories.
+	 * @param song      A song in the directory to play right away, or null to play
+	 *                  whatever is found first.
+	 * @param autoPlay  False to just queue the songs without playing any of them.
+	 */
+	private void doPlayDir(Path dir, boolean recursive, Path song, boolean autoPlay) {
 		// sanity checks
 		if (!Files.isDirectory(dir)) {
 			sLogger.log(Level.SEVERE, "Asked to play a directory that wasn't a directory: " + dir.toString());
@@ -113,48 +284,339 @@ public class Controller {
 			return;
 		}
 
+		// Any scan still running for the last directory will notice it is out of date
+		// and give up
+		int generation = mScanGeneration.incrementAndGet();
+		if (null != mWatcher) {
+			mWatcher.unwatchAll();
+		}
+
 		mSettings.playingDir = dir;
-		// get a list of music files in the directory
-		try {
-			mQueuedMusicFiles = FileUtils.listMusicFiles(dir, recursive, mCfg.getMaxListFilesWaitTimeSec());
+		mIsRecursive = recursive;
+		synchronized (mQueueLock) {
+			mQueuedMusicFiles = new PlayQueue();
+			mIsQueueReordered = false;
+			mShuffle.reset();
+			if (null != song) {
+				mQueuedMusicFiles.add(song);
+			}
 			mSettings.queuedSongs = mQueuedMusicFiles.size();
-			saveSettings();
+			mSettings.isScanning = true;
+			mSettings.isScanIncomplete = false;
+			notifyQueueReplaced();
+		}
+		saveSettings();
+
+		AtomicBoolean startPending = new AtomicBoolean(autoPlay);
+		if (null != song) {
+			// play the specific song right away. The rest of the directory queues up
+			// behind it
+			startPending.set(false);
+			doPlaySong(0);
+		} else {
+			notifySettingsListeners();
+		}
+
+		mScanExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				scanDir(dir, recursive, generation, song, startPending, null);
+			}
+		});
+	}
+
+	/**
+	 * Picks up where the last run left off, if it was playing the same directory.
+	 * The queue is back straight away, and the directory is searched in the
+	 * background to pick up any songs added or removed since. Runs on the command
+	 * thread.
+	 *
+	 * @return False if there was nothing to pick up, so the directory needs to be
+	 *         played from scratch.
+	 */
+	private boolean restoreSession(Path dir, boolean recursive, boolean autoPlay) {
+		SessionSnapshot.Session session = mSession.load();
+		if (null == session || !session.dir.equals(dir) || session.recursive != recursive) {
+			return false;
+		}
+
+		int generation = mScanGeneration.incrementAndGet();
+		mSettings.playingDir = dir;
+		mIsRecursive = recursive;
+		synchronized (mQueueLock) {
+			mQueuedMusicFiles = new PlayQueue();
+			mQueuedMusicFiles.addAll(session.songs);
+			mIsQueueReordered = false;
+			session.restoreShuffle(mShuffle);
+			mSettings.queuedSongs = mQueuedMusicFiles.size();
+			mSettings.isScanning = true;
+			mSettings.isScanIncomplete = false;
+			notifyQueueReplaced();
+			// it is what was saved
+			mIsQueueDirty = false;
+		}
+		sLogger.log(Level.FINE, "Restored " + session.songs.size() + " songs from the last session");
+
+		if (autoPlay && 0 <= session.index && session.index < session.songs.size()) {
+			doPlaySong(session.index, session.positionSecs);
+		} else {
+			notifySettingsListeners();
+		}
+
+		Set<Path> found = ConcurrentHashMap.newKeySet();
+		mScanExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				scanDir(dir, recursive, generation, null, new AtomicBoolean(false), found);
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * The index only knows which files counted as songs at the time, so we keep a
+	 * separate one for when we look inside files for songs.
+	 */
+	private static Path getLibraryIndexFile() {
+		String name = AudioFileDetector.isSniffContent() ? "library-sniffed.idx" : "library.idx";
+		return FileUtils.getCacheDir().resolve(name);
+	}
+
+	/**
+	 * Runs on the scan thread, searching a directory for songs and queuing them up
+	 * as they are found.
+	 *
+	 * @param found Filled in with every song found, when checking a queue restored
+	 *              from the last session. Otherwise null.
+	 */
+	private void scanDir(Path dir, boolean recursive, int generation, Path alreadyQueued, AtomicBoolean startPending,
+			Set<Path> found) {
+		boolean sniff = mCfg.getIsSniffAudioFiles();
+		if (sniff != AudioFileDetector.isSniffContent()) {
+			AudioFileDetector.setSniffContent(sniff);
+			mLibraryIndex.saveIfDirty();
+			mLibraryIndex = LibraryIndex.load(getLibraryIndexFile());
+		}
+
+		AtomicInteger numDirsCutShort = new AtomicInteger(0);
+		try {
+			FileUtils.listMusicFiles(dir, recursive, mCfg.getMaxListFilesWaitTimeSec(), mCfg.getMaxDirReadTimeSec(),
+					mCfg.getScanParallelism(), mLibraryIndex, new IScanListener() {
+						@Override
+						public void songsFound(List<Path> songs) {
+							if (null != alreadyQueued) {
+								songs.remove(alreadyQueued);
+							}
+							if (songs.isEmpty()) {
+								return;
+							}
+							if (null != found) {
+								found.addAll(songs);
+							}
+							mPathIndex.addSongs(songs);
+							mMetadata.add(songs);
+							// sorted here so the command thread doesn't have to
+							FileNameOrder.sort(songs);
+							submit(() -> queueFoundSongs(generation, songs, startPending));
+						}
+
+						@Override
+						public void scanFinished(int numCutShort) {
+							numDirsCutShort.set(numCutShort);
+						}
+
+						@Override
+						public boolean isCancelled() {
+							return generation != mScanGeneration.get();
+						}
+					});
 		} catch (IOException e) {
 			sLogger.log(Level.SEVERE, "Exception while trying to open the directory to play. Directory = " + dir
 					+ ". Exception = " + e.getMessage());
+		}
+		mLibraryIndex.saveInBackground();
+
+		// Finish up on the command thread, after all the songs found have been queued
+		List<Path> songs;
+		try {
+			songs = CompletableFuture.supplyAsync(() -> scanFinished(generation, numDirsCutShort.get(), found), mCommands)
+					.join();
+		} catch (Exception e) {
+			sLogger.log(Level.SEVERE, "Exception while finishing the search of " + dir + ": " + e.getMessage());
+			return;
+		}
+		if (null == songs) {
+			// we've since been asked to play something else
 			return;
 		}
-		if (null == song) {
-			// Reset the now playing index. This allows us to play the first song in the
-			// directory if random is disabled
-			mCurPlayingIndex = -1;
-			nextTrack();
+
+		// Watching a big tree takes a while, so that stays on this thread
+		if (null != mWatcher) {
+			mWatcher.watch(dir, songs, recursive);
+		}
+		if (songs.isEmpty() && startPending.get()) {
+			sLogger.log(Level.WARNING, "No songs found in " + dir);
+			stop();
+		}
+	}
+
+	/**
+	 * Sorts the queue once the scan has found everything. Runs on the command
+	 * thread.
+	 *
+	 * @param found Every song found, if checking a queue restored from the last
+	 *              session. Otherwise null.
+	 * @return The songs queued, or null if another directory was played since.
+	 */
+	private List<Path> scanFinished(int generation, int numDirsCutShort, Set<Path> found) {
+		if (generation != mScanGeneration.get()) {
+			return null;
+		}
+
+		List<Path> songs;
+		synchronized (mQueueLock) {
+			boolean isChanged = true;
+			if (null != found && 0 == numDirsCutShort) {
+				// Restored songs the search didn't find have gone since the last session.
+				// Except those played from elsewhere in the library, which it didn't look
+				// for. Backwards, so removing one doesn't move those still to check.
+				int numRemoved = 0;
+				for (int i = mQueuedMusicFiles.size() - 1; i >= 0; i--) {
+					Path song = mQueuedMusicFiles.get(i);
+					if (!found.contains(song) && isInPlayingDir(song)) {
+						mQueuedMusicFiles.remove(i);
+						mMetadata.remove(song);
+						mPathIndex.remove(song);
+						numRemoved++;
+						notifyQueueRemoved(i, song);
+					}
+				}
+				// With nothing removed or added, the queue is just as it was last time
+				isChanged = 0 < numRemoved || mQueuedMusicFiles.size() != found.size();
+			}
+
+			if (isChanged && !mIsQueueReordered) {
+				// Songs were queued in whatever order their directories were searched. Now
+				// that we have them all, sort them once. The queue keeps track of the song
+				// playing. Unless songs have been moved around since, which we'd undo.
+				mQueuedMusicFiles.sort();
+				notifyQueueReplaced();
+			}
+			mSettings.queuedSongs = mQueuedMusicFiles.size();
+			mSettings.isScanning = false;
+			mSettings.isScanIncomplete = 0 < numDirsCutShort;
+			songs = mQueuedMusicFiles.toCompactList();
+		}
+		// the tags of everything we might play, or the GUI might show
+		mTagCache.read(songs);
+		nextSongMayHaveChanged();
+		notifySettingsListeners();
+		return songs;
+	}
+
+	/**
+	 * @return True if searching the directory playing would find the song.
+	 */
+	private boolean isInPlayingDir(Path song) {
+		Path dir = mSettings.playingDir;
+		return mIsRecursive ? song.startsWith(dir) : dir.equals(song.getParent());
+	}
+
+	/**
+	 * Adds the songs found in one directory to the end of the queue. If these are
+	 * the first songs found, start playing one. Runs on the command thread.
+	 */
+	private void queueFoundSongs(int generation, List<Path> songs, AtomicBoolean startPending) {
+		int startIndex = -1;
+		synchronized (mQueueLock) {
+			if (generation != mScanGeneration.get()) {
+				return;
+			}
+			int index = mQueuedMusicFiles.size();
+			if (!mQueuedMusicFiles.addAll(songs)) {
+				// the LibraryWatcher beat us to all of them
+				return;
+			}
+			if (mQueuedMusicFiles.size() - index != songs.size()) {
+				// and some of them. Only tell listeners about the songs actually added.
+				songs = new ArrayList<>(mQueuedMusicFiles.subList(index, mQueuedMusicFiles.size()));
+			}
+			mSettings.queuedSongs = mQueuedMusicFiles.size();
+			notifyQueueListeners(index, songs);
+
+			if (startPending.compareAndSet(true, false)) {
+				startIndex = index;
+				if (mSettings.isRandom) {
+					startIndex += mRandom.nextInt(songs.size());
+				}
+			}
+		}
+
+		if (-1 != startIndex) {
+			doPlaySong(startIndex);
 		} else {
-			// play the specific song
-			int songIndex = getSongIndexInQueue(song);
-			playSong(songIndex);
+			// the song playing might have been the last one queued until now
+			nextSongMayHaveChanged();
+			notifySettingsListeners();
 		}
 	}
 
-	public void playSong(int index) {
-		if (0 <= index && mQueuedMusicFiles.size() > index) {
-			stop();
+	public CompletableFuture<Void> playSong(int index) {
+		return submit(() -> doPlaySong(index));
+	}
+
+	private void doPlaySong(int index) {
+		doPlaySong(index, 0);
+	}
+
+	/**
+	 * @param startSecs How far into the song to start.
+	 */
+	private void doPlaySong(int index, long startSecs) {
+		Path song = null;
+		int queueSize;
+		synchronized (mQueueLock) {
+			queueSize = mQueuedMusicFiles.size();
+			if (0 <= index && queueSize > index) {
+				song = mQueuedMusicFiles.get(index);
+			}
+		}
+
+		if (null != song) {
+			doStop();
 			mShouldBePlaying.set(true);
-			mCurPlayingIndex = index;
-			Path song = mQueuedMusicFiles.get(index);
-			mSettings.songPlaying = song;
+			synchronized (mQueueLock) {
+				mQueuedMusicFiles.setCurrentIndex(index);
+				mShuffle.played(song);
+				if (mSettings.isRandom) {
+					// so random mode doesn't pick it again until everything else has played
+					mQueuedMusicFiles.markPlayed(index);
+				}
+			}
+			setSongPlaying(song);
 			mSettings.isPaused = false;
-			mPlayer.playMusicFile(song);
+			// So the GUI and DBus have the length from the start, rather than on the
+			// player's first update
+			mSettings.pbPercentage = new PlaybackPercentage(startSecs, Math.max(0, Mp3Duration.getDurationSecs(song)));
+			// picks up the option being changed
+			mPlayer.setGapless(mCfg.getIsGapless());
+			mPlayer.setCrossfadeSecs(mCfg.getCrossfadeSecs());
+			mPlayer.playMusicFile(song, startSecs);
+			prepareNextSong();
 			// immediately notify listeners so they don't have to wait up to half a second
 			// for an update triggered by the player
 			notifySettingsListeners();
 		} else {
 			sLogger.log(Level.WARNING, "Asked to play a song outside the range of our song queue. Queue size = "
-					+ mQueuedMusicFiles.size() + ". Index = " + index);
+					+ queueSize + ". Index = " + index);
 		}
 	}
 
-	public void playSong(Path song) {
+	public CompletableFuture<Void> playSong(Path song) {
+		return submit(() -> doPlaySong(song));
+	}
+
+	private void doPlaySong(Path song) {
 		// sanity checks
 		if (Files.isDirectory(song)) {
 			sLogger.log(Level.SEVERE, "Asked to play a song that is actually a directory: " + song.toString());
@@ -168,42 +630,198 @@ public class Controller {
 		int songIndex = getSongIndexInQueue(song);
 		if (-1 != songIndex) {
 			// The song is in our existing queue. Play it.
-			playSong(songIndex);
+			doPlaySong(songIndex);
 		} else {
 			// The song isn't in our queue. Play the directory containing the song, then
 			// make sure that specific song plays immediately
-			playDir(song.getParent(), false, song);
+			doPlayDir(song.getParent(), false, song, true);
 		}
 	}
 
 	private int getSongIndexInQueue(Path song) {
-		for (int i = 0; i < mQueuedMusicFiles.size(); i++) {
-			if (0 == song.compareTo(mQueuedMusicFiles.get(i))) {
-				return i;
+		synchronized (mQueueLock) {
+			return mQueuedMusicFiles.indexOf(song);
+		}
+	}
+
+	/**
+	 * Plays a list of songs, such as the results of {@link #search(String)}. The
+	 * first plays now and the rest play after it, in order. Songs already queued
+	 * are moved up the queue, and songs from elsewhere in the library are added
+	 * to it. In random mode only the first is certain to play next.
+	 */
+	public CompletableFuture<Void> playSongs(List<Path> songs) {
+		return submit(() -> doPlaySongs(songs));
+	}
+
+	private void doPlaySongs(List<Path> songs) {
+		Path first = null;
+		int firstIndex;
+		List<Path> added = new ArrayList<>();
+		synchronized (mQueueLock) {
+			int to = mQueuedMusicFiles.getCurrentIndex() + 1;
+			for (Path song : songs) {
+				int from = mQueuedMusicFiles.indexOf(song);
+				if (-1 == from) {
+					mQueuedMusicFiles.add(to, song);
+					added.add(song);
+				} else {
+					if (from < to) {
+						// everything from here to where it goes moves up one
+						to--;
+					}
+					mQueuedMusicFiles.move(from, to);
+				}
+				to++;
+				if (null == first) {
+					first = song;
+				}
 			}
+			if (null == first) {
+				return;
+			}
+			mIsQueueReordered = true;
+			mSettings.queuedSongs = mQueuedMusicFiles.size();
+			// one refresh rather than a move per song
+			notifyQueueReplaced();
+			// songs moved from before it shifted it along
+			firstIndex = mQueuedMusicFiles.indexOf(first);
+		}
+		if (!added.isEmpty()) {
+			mTagCache.read(added);
+		}
+
+		if (first.equals(mSettings.songPlaying)) {
+			// it's already playing, and the rest are next
+			prepareNextSong();
+			notifySettingsListeners();
+		} else {
+			doPlaySong(firstIndex);
 		}
-		return -1;
 	}
 
-	public void stop() {
+	/**
+	 * Inserts newly found songs into the queue in sorted order, or at the end if
+	 * the queue isn't sorted. The song playing keeps playing and the next song is
+	 * still whatever would have followed it.
+	 */
+	private void songsAdded(List<Path> songs) {
+		int numAdded = 0;
+		for (Path song : songs) {
+			synchronized (mQueueLock) {
+				int index = mQueuedMusicFiles.addInOrder(song);
+				if (-1 == index) {
+					// we already know about this song
+					continue;
+				}
+				mSettings.queuedSongs = mQueuedMusicFiles.size();
+				numAdded++;
+				List<Path> added = new ArrayList<>();
+				added.add(song);
+				notifyQueueListeners(index, added);
+			}
+		}
+
+		mPathIndex.addSongs(songs);
+		mMetadata.add(songs);
+		if (0 < numAdded) {
+			sLogger.log(Level.FINE, "Added " + numAdded + " new songs to the queue");
+			mTagCache.read(songs);
+			nextSongMayHaveChanged();
+			notifySettingsListeners();
+		}
+	}
+
+	/**
+	 * Removes a song, or all the songs in a directory, from the queue. If the song
+	 * playing was removed it keeps playing (it is probably still open) and the
+	 * next song is whatever followed it.
+	 */
+	private void songsRemoved(Path path) {
+		int numRemoved = 0;
+		mPathIndex.remove(path);
+		mMetadata.remove(path);
+		synchronized (mQueueLock) {
+			int index = mQueuedMusicFiles.indexOf(path);
+			if (-1 != index) {
+				// just the one song, which the queue can find quickly
+				mQueuedMusicFiles.remove(index);
+				numRemoved++;
+				notifyQueueRemoved(index, path);
+			} else {
+				// A directory, or something we never queued. Go backwards so removing a song
+				// doesn't change the index of those we have yet to check.
+				List<Path> songs = mQueuedMusicFiles.toCompactList();
+				for (int i = songs.size() - 1; i >= 0; i--) {
+					Path song = songs.get(i);
+					if (song.startsWith(path)) {
+						mQueuedMusicFiles.remove(i);
+						mPathIndex.remove(song);
+						numRemoved++;
+						notifyQueueRemoved(i, song);
+					}
+				}
+			}
+			mSettings.queuedSongs = mQueuedMusicFiles.size();
+		}
+
+		if (0 < numRemoved) {
+			sLogger.log(Level.FINE, "Removed " + numRemoved + " songs from the queue");
+			nextSongMayHaveChanged();
+			notifySettingsListeners();
+		}
+	}
+
+	public CompletableFuture<Void> stop() {
+		return submit(() -> doStop());
+	}
+
+	private void doStop() {
 		mShouldBePlaying.set(false);
 		mPlayer.stop();
-		mCurPlayingIndex = -1;
-		mSettings.songPlaying = null;
+		synchronized (mQueueLock) {
+			mQueuedMusicFiles.setCurrentIndex(-1);
+		}
+		setSongPlaying(null);
 		mSettings.pbPercentage = new PlaybackPercentage(0, 0);
 		notifySettingsListeners();
 	}
 
-	public void nextTrack() {
-		if (null == mQueuedMusicFiles || mQueuedMusicFiles.isEmpty()) {
-			sLogger.log(Level.WARNING, "There are no queued music files to play");
-			stop();
-			return;
+	public CompletableFuture<Void> nextTrack() {
+		return submit(() -> doNextTrack());
+	}
+
+	private void doNextTrack() {
+		int nextIndex;
+		synchronized (mQueueLock) {
+			if (mQueuedMusicFiles.isEmpty()) {
+				sLogger.log(Level.WARNING, "There are no queued music files to play");
+			}
+			nextIndex = pickNextIndex(false);
 		}
 
+		// sanity check the results then play that song
+		if (0 > nextIndex) {
+			doStop();
+		} else {
+			doPlaySong(nextIndex);
+		}
+	}
+
+	/**
+	 * Works out which song follows the one playing. Call holding mQueueLock.
+	 *
+	 * @param peek True to only look, leaving random mode where it is. Called for
+	 *             real, random mode goes with the song the player got ready, if
+	 *             it is still queued.
+	 * @return The index of the next song, or -1 if there isn't one.
+	 */
+	private int pickNextIndex(boolean peek) {
 		int nextIndex = -1;
-		if (!mSettings.isRandom) {
-			nextIndex = mCurPlayingIndex + 1;
+		if (mQueuedMusicFiles.isEmpty()) {
+			return -1;
+		} else if (!mSettings.isRandom) {
+			nextIndex = mQueuedMusicFiles.getCurrentIndex() + 1;
 			if (nextIndex >= mQueuedMusicFiles.size()) {
 				if (mSettings.isRepeat) {
 					nextIndex = 0;
@@ -212,87 +830,385 @@ public class Controller {
 					nextIndex = -1;
 				}
 			}
+		} else if (peek) {
+			Path song = mShuffle.peekForward();
+			if (null != song) {
+				// -1 if it has left the queue, so nothing gets ready
+				nextIndex = mQueuedMusicFiles.indexOf(song);
+			} else {
+				nextIndex = mShuffle.nextIndex(mQueuedMusicFiles, mSettings.isRepeat);
+			}
 		} else {
-			nextIndex = mRandom.nextInt(mQueuedMusicFiles.size());
+			// Whatever the player got ready, so we play what we said we would
+			if (null != mNextSong && -1 != (nextIndex = mQueuedMusicFiles.indexOf(mNextSong))) {
+				if (mNextSong.equals(mShuffle.peekForward())) {
+					mShuffle.forward();
+				}
+				return nextIndex;
+			}
+			// If we went back, go forward through what we already played first
+			Path song = mShuffle.forward();
+			while (null != song && -1 == (nextIndex = mQueuedMusicFiles.indexOf(song))) {
+				// no longer queued
+				song = mShuffle.forward();
+			}
+			if (null == song) {
+				nextIndex = mShuffle.nextIndex(mQueuedMusicFiles, mSettings.isRepeat);
+			}
 		}
+		return nextIndex;
+	}
 
-		// sanity check the results then play that song
-		if (0 > nextIndex) {
-			stop();
-		} else {
-			playSong(nextIndex);
+	/**
+	 * In gapless mode, tells the player which song is next so it can get it ready.
+	 * Call whenever the song playing, the queue, or the play mode changes.
+	 */
+	private void prepareNextSong() {
+		if (!mPlayer.isGapless() || !mShouldBePlaying.get()) {
+			mNextSong = null;
+			return;
 		}
+		Path next = null;
+		synchronized (mQueueLock) {
+			// pick again, rather than sticking with the last pick
+			mNextSong = null;
+			int nextIndex = pickNextIndex(true);
+			if (-1 != nextIndex) {
+				next = mQueuedMusicFiles.get(nextIndex);
+			}
+		}
+		mNextSong = next;
+		mPlayer.setNextMusicFile(next);
 	}
 
-	public void priorTrack() {
-		// if playing randomly, there is no going back. Just go forward
-		if (mSettings.isRandom) {
-			nextTrack();
-			return;
+	/**
+	 * Call when the queue changes but the song playing and play mode don't. In
+	 * random mode the song the player got ready stays next, as long as it is
+	 * still queued. Picking again would throw away the decoding done so far, and
+	 * the queue grows with every directory searched.
+	 */
+	private void nextSongMayHaveChanged() {
+		if (mSettings.isRandom && null != mNextSong) {
+			synchronized (mQueueLock) {
+				if (mQueuedMusicFiles.contains(mNextSong)) {
+					return;
+				}
+			}
 		}
+		prepareNextSong();
+	}
 
-		if (null == mQueuedMusicFiles || mQueuedMusicFiles.isEmpty()) {
-			sLogger.log(Level.WARNING, "There are no queued music files to play");
-			stop();
-			return;
+	/**
+	 * The player went straight on to the next song, which it was told about by
+	 * {@link #prepareNextSong()}.
+	 */
+	private void nextSongStarted(Path song) {
+		synchronized (mQueueLock) {
+			if (mSettings.isRandom && song.equals(mShuffle.peekForward())) {
+				// it was one we went back past
+				mShuffle.forward();
+			}
+			int index = mQueuedMusicFiles.indexOf(song);
+			mQueuedMusicFiles.setCurrentIndex(index);
+			mShuffle.played(song);
+			if (mSettings.isRandom && -1 != index) {
+				mQueuedMusicFiles.markPlayed(index);
+			}
 		}
+		setSongPlaying(song);
+		prepareNextSong();
+		notifySettingsListeners();
+	}
 
-		int nextIndex = mCurPlayingIndex - 1;
-		// you can't go further back than the first song
-		if (nextIndex < 0) {
-			nextIndex = 0;
+	/**
+	 * Sets the song playing, along with its tags if we have them yet. If not, they
+	 * are read ahead of any other songs and filled in once they are.
+	 */
+	private void setSongPlaying(Path song) {
+		mSettings.songPlaying = song;
+		mSettings.songTags = null;
+		if (null != song) {
+			mSettings.songTags = mTagCache.get(song);
+			mTagCache.readFirst(song);
 		}
+	}
 
-		stop();
-		playSong(nextIndex);
+	public CompletableFuture<Void> priorTrack() {
+		return submit(() -> doPriorTrack());
 	}
 
-	public void setRandom(boolean isRandom) {
-		mSettings.isRandom = isRandom;
-		notifySettingsListeners();
-		saveSettings();
+	private void doPriorTrack() {
+		int nextIndex;
+		synchronized (mQueueLock) {
+			if (mQueuedMusicFiles.isEmpty()) {
+				sLogger.log(Level.WARNING, "There are no queued music files to play");
+				nextIndex = -1;
+			} else if (mSettings.isRandom) {
+				// go back to whatever played before this, skipping songs no longer queued
+				Path song = mShuffle.back();
+				nextIndex = -1;
+				while (null != song && -1 == (nextIndex = mQueuedMusicFiles.indexOf(song))) {
+					song = mShuffle.back();
+				}
+				if (null == song) {
+					// nothing to go back to, so start this song over
+					nextIndex = Math.max(0, mQueuedMusicFiles.getCurrentIndex());
+				}
+			} else {
+				// you can't go further back than the first song
+				nextIndex = Math.max(0, mQueuedMusicFiles.getCurrentIndex() - 1);
+			}
+		}
+		if (0 > nextIndex) {
+			doStop();
+			return;
+		}
+
+		doStop();
+		doPlaySong(nextIndex);
+	}
+
+	public CompletableFuture<Void> setRandom(boolean isRandom) {
+		return submit(() -> {
+			mSettings.isRandom = isRandom;
+			prepareNextSong();
+			notifySettingsListeners();
+			saveSettings();
+		});
 	}
 
 	public boolean getRandom() {
 		return mSettings.isRandom;
 	}
 
-	public void setRepeat(boolean isRepeat) {
-		mSettings.isRepeat = isRepeat;
-		notifySettingsListeners();
-		saveSettings();
+	public CompletableFuture<Void> setRepeat(boolean isRepeat) {
+		return submit(() -> {
+			mSettings.isRepeat = isRepeat;
+			prepareNextSong();
+			notifySettingsListeners();
+			saveSettings();
+		});
 	}
 
 	public boolean getRepeat() {
 		return mSettings.isRepeat;
 	}
 
-	public void exitApp(int returnCode) {
-		saveSettings();
-		System.exit(returnCode);
+	/**
+	 * Exits once the commands already queued have run.
+	 */
+	public CompletableFuture<Void> exitApp(int returnCode) {
+		return submit(() -> {
+			saveSettings();
+			mSession.force();
+			mLibraryIndex.saveIfDirty();
+			mTagCache.saveIfDirty();
+			System.exit(returnCode);
+		});
 	}
 
+	/**
+	 * Finds songs anywhere in the library by their tags or file names. Doesn't
+	 * wait on any command.
+	 *
+	 * @see MetadataStore#search(String, int)
+	 */
+	public List<Path> search(String query, int maxResults) {
+		return mMetadata.search(query, maxResults);
+	}
+
+	/**
+	 * @return Every song in the library matching the query, ready for
+	 *         {@link #playSongs(List)}.
+	 */
+	public List<Path> search(String query) {
+		return mMetadata.search(query);
+	}
+
+	/**
+	 * Finds songs and directories anywhere in the library by roughly part of
+	 * their name, for searching as someone types. Starting a search cancels the
+	 * last one if it hasn't finished. Doesn't wait on any command.
+	 *
+	 * @return The best matches first.
+	 */
+	public CompletableFuture<List<Match>> findPaths(String query, int maxResults) {
+		return mPathIndex.find(query, maxResults);
+	}
+
+	/**
+	 * @return The song's tags, or null if they haven't been read yet. Never reads
+	 *         the song, so safe to call while drawing.
+	 */
+	public SongTags getTags(Path song) {
+		return mTagCache.get(song);
+	}
+
+	/**
+	 * Registers a listener for songs' tags being read. Called from the threads
+	 * reading them, so hand anything slow off to another thread.
+	 */
+	public void registerTagListener(ITagListener l) {
+		mTagListeners.add(l);
+	}
+
+	/**
+	 * @return Where to subscribe to changes in settings and playback status.
+	 *         Subscribers that fall behind skip to the latest settings.
+	 */
+	public Flow.Publisher<SettingsChanged> getSettingsPublisher() {
+		return mSettingsPublisher;
+	}
+
+	/**
+	 * Subscribes a listener to {@link #getSettingsPublisher()}. The listener is
+	 * called on its own time from another thread, and only ever with the latest
+	 * settings.
+	 */
 	public void registerSettingsListener(SettingsListener l) {
-		synchronized (mSettingsListeners) {
-			mSettingsListeners.add(l);
+		mSettingsPublisher.subscribe(new Flow.Subscriber<SettingsChanged>() {
+			private Flow.Subscription mSubscription;
+
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				mSubscription = subscription;
+				subscription.request(1);
+			}
+
+			@Override
+			public void onNext(SettingsChanged item) {
+				try {
+					l.settingsChanged(item);
+				} finally {
+					// ready for whatever is latest by now
+					mSubscription.request(1);
+				}
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				sLogger.log(Level.SEVERE, "Settings listener failed: " + throwable.getMessage());
+			}
+
+			@Override
+			public void onComplete() {
+			}
+		});
+	}
+
+	/**
+	 * Registers a listener for changes to the queue. The listener is immediately
+	 * sent the current queue.
+	 */
+	public void registerQueueListener(QueueListener l) {
+		synchronized (mQueueLock) {
+			synchronized (mQueueListeners) {
+				mQueueListeners.add(l);
+			}
+			l.queueReplaced(Collections.unmodifiableList(mQueuedMusicFiles.toCompactList()));
 		}
 	}
 
-	private void notifySettingsListeners() {
-		SettingsChanged settingsCopy = mSettings.copy();
-		synchronized (mSettingsListeners) {
-			for (SettingsListener sl : mSettingsListeners) {
+	// Queue listeners are always notified while holding mQueueLock. That way they
+	// hear about changes in the same order the changes were made. Every change to
+	// the queue goes through one of these, so they also note the queue needs
+	// saving.
+
+	private void notifyQueueReplaced() {
+		mIsQueueDirty = true;
+		List<Path> songs = Collections.unmodifiableList(mQueuedMusicFiles.toCompactList());
+		synchronized (mQueueListeners) {
+			for (QueueListener ql : mQueueListeners) {
+				try {
+					ql.queueReplaced(songs);
+				} catch (Exception e) {
+					sLogger.log(Level.SEVERE, "Exception while handling queue change: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	private void notifyQueueListeners(int index, List<Path> songs) {
+		mIsQueueDirty = true;
+		synchronized (mQueueListeners) {
+			for (QueueListener ql : mQueueListeners) {
 				try {
-					sl.settingsChanged(settingsCopy);
+					ql.songsAdded(index, songs);
 				} catch (Exception e) {
-					// Don't let one jerk ruin it for everyone. Log the error and move on to the
-					// next listener
-					sLogger.log(Level.SEVERE, "Exception while handling new settings: " + e.getMessage());
+					sLogger.log(Level.SEVERE, "Exception while handling queue change: " + e.getMessage());
 				}
 			}
 		}
 	}
 
+	private void notifyQueueRemoved(int index, Path song) {
+		mIsQueueDirty = true;
+		synchronized (mQueueListeners) {
+			for (QueueListener ql : mQueueListeners) {
+				try {
+					ql.songRemoved(index, song);
+				} catch (Exception e) {
+					sLogger.log(Level.SEVERE, "Exception while handling queue change: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Publishes the settings. Returns without waiting on any listeners.
+	 */
+	private void notifySettingsListeners() {
+		notifySettingsListeners(0);
+	}
+
+	/**
+	 * @param alsoChanged Bits for changes that can't be seen by comparing with the
+	 *                    last snapshot, such as {@link SettingsChanged#SEEK}.
+	 */
+	private void notifySettingsListeners(int alsoChanged) {
+		// Anything worth telling listeners about is worth saving
+		saveSession();
+
+		// Subscribers only keep the latest settings, so make sure the copy submitted
+		// last is the copy taken last
+		synchronized (mSettingsPublisher) {
+			SettingsChanged snapshot = mSettings.snapshot(mLastPublished);
+			if (0 != alsoChanged) {
+				snapshot = snapshot.withChanged(alsoChanged);
+			}
+			if (0 == snapshot.getChanged()) {
+				// e.g. progress ticks while paused
+				return;
+			}
+			mLastPublished = snapshot;
+			mSettingsPublisher.submit(snapshot);
+		}
+	}
+
+	/**
+	 * Saves what is playing to the session snapshot. Only writes what changed.
+	 * Runs on the command thread.
+	 */
+	private void saveSession() {
+		synchronized (mQueueLock) {
+			// Saving the queue again after every directory searched adds up to a lot for a
+			// big library, so while searching only save it when the song changes. That
+			// keeps the song saved in the queue saved with it. A restore searches again
+			// for anything the queue saved is missing.
+			if (mIsQueueDirty && (!mSettings.isScanning || mSavedSong != mSettings.songPlaying)) {
+				mSession.saveQueue(mSettings.playingDir, mIsRecursive, mQueuedMusicFiles);
+				mIsQueueDirty = false;
+				mSavedSong = null;
+			}
+			if (mSavedSong != mSettings.songPlaying) {
+				// Random mode only moves on when the song does
+				mSession.savePlaying(mQueuedMusicFiles.getCurrentIndex(), mShuffle, mQueuedMusicFiles::indexOf);
+				mSavedSong = mSettings.songPlaying;
+			}
+		}
+		mSession.savePosition(mSettings.pbPercentage.getCurTimeSecs());
+	}
+
 	private void saveSettings() {
 		mCfg.savePreferences(mSettings);
 	}
@@ -304,4 +1220,21 @@ public class Controller {
 	public interface SettingsListener {
 		public void settingsChanged(SettingsChanged newSettings);
 	}
+
+	/**
+	 * How the {@link Controller} notifies listeners of changes to the queue of
+	 * songs. Listeners are called while the queue is locked, so must not call back
+	 * into the {@link Controller}. Hand the work off to another thread instead.
+	 */
+	public interface QueueListener {
+		/**
+		 * The whole queue changed, such as when a new directory starts playing or the
+		 * queue was re-sorted.
+		 */
+		public void queueReplaced(List<Path> songs);
+
+		public void songsAdded(int index, List<Path> songs);
+
+		public void songRemoved(int index, Path song);
+	}
 }
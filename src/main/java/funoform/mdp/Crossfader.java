@@ -0,0 +1,180 @@
+package funoform.mdp;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * Fades the end of one song into the start of the next, for the
+ * {@link GaplessPlayer}.
+ *
+ * To fade out the last few seconds of a song we need to know where they start,
+ * and MP3s don't reliably tell us how long they are. So instead the last few
+ * seconds decoded are always held back here, and only written to the line once
+ * more audio pushes them out. When the song runs out, what's held back is the
+ * end of the song. That gets mixed with the start of the next song and written
+ * to the same line.
+ *
+ * Everything is allocated up front and only reallocated when the crossfade
+ * length or audio format changes, so there's no garbage for the collector to
+ * pause the audio over while playing. Only for 16 bit little endian PCM, which
+ * is what the GaplessPlayer decodes to.
+ *
+ * Not thread safe. Only the GaplessPlayer's pump thread should use it.
+ */
+public class Crossfader {
+	private final byte[] mIn;
+	private final byte[] mOut;
+	// The end of the song so far, as a ring buffer
+	private byte[] mTail = new byte[0];
+	private int mStart = 0;
+	private int mLen = 0;
+	private int mFrameSize = 1;
+	private int mChannels = 1;
+
+	/**
+	 * @param chunkBytes How much to mix at a time.
+	 */
+	public Crossfader(int chunkBytes) {
+		mIn = new byte[chunkBytes];
+		mOut = new byte[chunkBytes];
+	}
+
+	/**
+	 * Gets ready for a new song. Anything held back is thrown away, so flush or
+	 * fade it first.
+	 *
+	 * @param fadeSecs How long to crossfade into the song after this one. 0 to
+	 *                 not hold anything back.
+	 */
+	public void reset(AudioFormat format, int fadeSecs) {
+		mFrameSize = Math.max(1, format.getFrameSize());
+		mChannels = Math.max(1, format.getChannels());
+		int capacity = Math.max(0, fadeSecs) * (int) format.getFrameRate() * mFrameSize;
+		if (capacity != mTail.length) {
+			mTail = new byte[capacity];
+		}
+		mStart = 0;
+		mLen = 0;
+	}
+
+	/**
+	 * Adds newly decoded audio, writing whatever no longer fits in what's held
+	 * back to the line.
+	 *
+	 * @return How many frames were written to the line.
+	 */
+	public long push(byte[] b, int off, int len, SourceDataLine line) {
+		if (0 == mTail.length) {
+			return line.write(b, off, len) / mFrameSize;
+		}
+
+		long written = 0;
+		int overflow = mLen + len - mTail.length;
+		if (0 < overflow) {
+			// the oldest audio held back has to go out first
+			int fromTail = Math.min(overflow, mLen);
+			written += writeTail(fromTail, line);
+			overflow -= fromTail;
+			if (0 < overflow) {
+				// more than the whole tail arrived at once
+				written += line.write(b, off, overflow) / mFrameSize;
+				off += overflow;
+				len -= overflow;
+			}
+		}
+
+		int end = (mStart + mLen) % mTail.length;
+		int first = Math.min(len, mTail.length - end);
+		System.arraycopy(b, off, mTail, end, first);
+		System.arraycopy(b, off + first, mTail, 0, len - first);
+		mLen += len;
+		return written;
+	}
+
+	/**
+	 * Writes everything held back to the line, for when there's no next song to
+	 * fade into.
+	 *
+	 * @return How many frames were written to the line.
+	 */
+	public long flush(SourceDataLine line) {
+		return writeTail(mLen, line);
+	}
+
+	/**
+	 * @return True if anything is held back to fade out.
+	 */
+	public boolean hasTail() {
+		return 0 < mLen;
+	}
+
+	/**
+	 * Fades out what's held back while fading in the next song, writing the mix to
+	 * the line. Reads as much of the next song as it takes.
+	 *
+	 * @param next Must be the same format as the song held back.
+	 * @return How many frames were written to the line.
+	 */
+	public long fadeInto(GaplessPlayer.PcmSource next, SourceDataLine line) throws IOException {
+		long fadeFrames = mLen / mFrameSize;
+		long frame = 0;
+		long written = 0;
+		boolean isNextDone = false;
+		while (0 < mLen) {
+			// Mix a chunk at a time, never past the end of the ring
+			int n = Math.min(mOut.length - (mOut.length % mFrameSize), Math.min(mLen, mTail.length - mStart));
+			int got = 0;
+			while (!isNextDone && got < n) {
+				int r = next.read(mIn, got, n - got);
+				if (0 > r) {
+					// the next song is shorter than the fade. Fade in silence.
+					isNextDone = true;
+				} else {
+					got += r;
+				}
+			}
+			Arrays.fill(mIn, got, n, (byte) 0);
+
+			for (int i = 0; i < n; i += mFrameSize) {
+				// Equal power, so the volume doesn't dip halfway through
+				double t = (frame++ * (Math.PI / 2)) / fadeFrames;
+				double gainOut = Math.cos(t);
+				double gainIn = Math.sin(t);
+				for (int c = 0; c < mChannels; c++) {
+					int at = i + c * 2;
+					long mixed = Math.round(sample(mTail, mStart + at) * gainOut + sample(mIn, at) * gainIn);
+					int v = (int) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mixed));
+					mOut[at] = (byte) v;
+					mOut[at + 1] = (byte) (v >> 8);
+				}
+			}
+
+			written += line.write(mOut, 0, n) / mFrameSize;
+			mStart = (mStart + n) % mTail.length;
+			mLen -= n;
+		}
+		mStart = 0;
+		return written;
+	}
+
+	private long writeTail(int bytes, SourceDataLine line) {
+		if (0 == bytes) {
+			return 0;
+		}
+		int first = Math.min(bytes, mTail.length - mStart);
+		long written = line.write(mTail, mStart, first);
+		if (bytes > first) {
+			written += line.write(mTail, 0, bytes - first);
+		}
+		mStart = (mStart + bytes) % mTail.length;
+		mLen -= bytes;
+		return written / mFrameSize;
+	}
+
+	private static int sample(byte[] b, int at) {
+		return (b[at] & 0xFF) | (b[at + 1] << 8);
+	}
+}
@@ -0,0 +1,121 @@
+package funoform.mdp;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers the sub-directories of the most recently browsed directories, so
+ * moving around the directory picker doesn't re-list (and stat every entry of)
+ * the same directories over and over. Slow on an SD card, slower still on a
+ * network mount.
+ *
+ * A cached listing is only used while its directory's modification time hasn't
+ * changed, which costs a single stat. Creating, deleting, or renaming a
+ * sub-directory always changes it.
+ *
+ * Whenever a directory is listed, its sub-directories are listed in the
+ * background too. Chances are the user is about to go into one of them.
+ */
+public class DirListingCache {
+	private static final Logger sLogger = Logger.getLogger(DirListingCache.class.getName());
+	/**
+	 * How many directory listings to remember. Plenty for browsing back and forth
+	 * around a music collection.
+	 */
+	private static final int MAX_ENTRIES = 512;
+	/**
+	 * Same as LibraryIndex. Modification times are often only to the second, so a
+	 * directory that changed this recently might change again without its
+	 * modification time changing.
+	 */
+	private static final long MIN_AGE_MS = 2000;
+
+	private final Map<Path, Listing> mCache = new LinkedHashMap<Path, Listing>(MAX_ENTRIES, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Path, Listing> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+	private final AtomicReference<Path> mLastRequested = new AtomicReference<>();
+	private final ExecutorService mPrefetcher = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "DirPrefetcher");
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		return t;
+	});
+
+	/**
+	 * Gets the sub-directories of a directory, sorted by
+	 * {@link FileNameOrder}, and starts listing each of those in the background.
+	 *
+	 * @return The sub-directories. Don't modify this list.
+	 */
+	public List<Path> getSubDirectories(Path dir) throws IOException {
+		mLastRequested.set(dir);
+		List<Path> ret = list(dir);
+		prefetch(dir, ret);
+		return ret;
+	}
+
+	private List<Path> list(Path dir) throws IOException {
+		long mtimeMs = Files.getLastModifiedTime(dir).toMillis();
+		synchronized (mCache) {
+			Listing cached = mCache.get(dir);
+			if (null != cached && cached.mtimeMs == mtimeMs) {
+				return cached.subDirs;
+			}
+		}
+
+		List<Path> subDirs = FileUtils.getSubDirectories(dir);
+		FileNameOrder.sort(subDirs);
+		subDirs = Collections.unmodifiableList(subDirs);
+		if (System.currentTimeMillis() - mtimeMs >= MIN_AGE_MS) {
+			synchronized (mCache) {
+				mCache.put(dir, new Listing(mtimeMs, subDirs));
+			}
+		}
+		return subDirs;
+	}
+
+	private void prefetch(Path dir, List<Path> subDirs) {
+		mPrefetcher.execute(new Runnable() {
+			@Override
+			public void run() {
+				for (Path subDir : subDirs) {
+					if (!dir.equals(mLastRequested.get())) {
+						// the user has moved on, prefetch around wherever they are now instead
+						return;
+					}
+					try {
+						list(subDir);
+					} catch (IOException | SecurityException e) {
+						// Not much we can do. We'll try again, and report it, if the user goes there.
+						sLogger.log(Level.FINEST, "Unable to prefetch " + subDir + ". " + e.getMessage());
+					}
+				}
+			}
+		});
+	}
+
+	private static class Listing {
+		final long mtimeMs;
+		final List<Path> subDirs;
+
+		Listing(long mtimeMs, List<Path> subDirs) {
+			this.mtimeMs = mtimeMs;
+			this.subDirs = subDirs;
+		}
+	}
+}
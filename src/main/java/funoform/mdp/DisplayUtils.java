@@ -3,6 +3,9 @@ package funoform.mdp;
 import java.nio.file.Files;
 import java.nio.file.Path;
 
+import funoform.mdp.types.SettingsChanged;
+import funoform.mdp.types.SongTags;
+
 /**
  * Static functions for displaying file names.
  */
@@ -42,6 +45,20 @@ public class DisplayUtils {
 		return ret;
 	}
 
+	/**
+	 * @param tags     The song's tags, or null if we don't have them.
+	 * @param maxChars The most characters to return, or -1 for no limit.
+	 * @return "Artist - Title" from the song's tags, or just the title if there's no
+	 *         artist. The file name if there's no title.
+	 */
+	public static String getSongName(Path song, SongTags tags, int maxChars) {
+		if (null == tags || null == tags.title) {
+			return getFileNameLengthLimited(song, maxChars);
+		}
+		String name = (null == tags.artist) ? tags.title : tags.artist + " - " + tags.title;
+		return (-1 == maxChars) ? name : lastNChars(name, maxChars);
+	}
+
 	/**
 	 * If the input string is over numChars long, return only the numChars right
 	 * most characters, effectively cutting off the start of the string.
@@ -57,4 +74,22 @@ public class DisplayUtils {
 		}
 		return str;
 	}
+
+	/**
+	 * Gets the number of queued songs for display. A trailing "+" means we are
+	 * still searching for more songs. A trailing "*" means we gave up searching
+	 * before finding every song.
+	 * 
+	 * @param settings
+	 * @return
+	 */
+	public static String getQueuedSongsCount(SettingsChanged settings) {
+		String count = String.valueOf(settings.queuedSongs);
+		if (settings.isScanning) {
+			return count + "+";
+		} else if (settings.isScanIncomplete) {
+			return count + "*";
+		}
+		return count;
+	}
 }
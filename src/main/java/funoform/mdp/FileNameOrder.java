@@ -0,0 +1,189 @@
+package funoform.mdp;
+
+import java.nio.file.Path;
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.IntStream;
+
+/**
+ * The order songs are queued and directories are listed in. File names are
+ * sorted the way a person would sort them:
+ * <ul>
+ * <li>Ignoring upper and lower case.</li>
+ * <li>Ignoring accents, so "\u00C9clair" sorts next to "eclair" rather than
+ * after "zed".</li>
+ * <li>Numbers are compared by value, so "Track 2" comes before "Track 10".</li>
+ * </ul>
+ *
+ * Each name is boiled down to a key string once, and then we sort on the keys.
+ * Previously every comparison lowercased both names, meaning millions of throw
+ * away strings to sort a few hundred thousand songs.
+ *
+ * We tried {@link java.text.CollationKey}s first. They know every language's
+ * rules but took three times longer to make than the old sort took in total.
+ */
+public class FileNameOrder {
+	/**
+	 * Below this many names a plain sort on the calling thread beats the overhead
+	 * of splitting the work up.
+	 */
+	private static final int PARALLEL_THRESHOLD = 8192;
+	/**
+	 * Numbers in file names are zero padded to this many digits so they compare by
+	 * value. Longer numbers than this (e.g. a date-time stamp) are left as is.
+	 */
+	private static final int NUMBER_WIDTH = 12;
+	private static final String ZEROS = "0".repeat(NUMBER_WIDTH);
+
+	// Just a bunch of static methods so don't let someone create this thing
+	private FileNameOrder() {
+	}
+
+	/**
+	 * Gets the key a path is sorted by. Keys are compared with
+	 * {@link String#compareTo(String)}. Hang on to these if the same names are
+	 * going to be compared again and again.
+	 */
+	public static String keyOf(Path path) {
+		Path fileName = path.getFileName();
+		// The root directory has no file name
+		String name = (null == fileName) ? path.toString() : fileName.toString();
+		return padNumbers(fold(name));
+	}
+
+	/**
+	 * Sorts the paths in place by file name. Large lists are sorted using every
+	 * processor.
+	 */
+	public static void sort(List<Path> paths) {
+		int size = paths.size();
+		if (size < 2) {
+			return;
+		}
+		int[] order = sortedOrder(paths);
+
+		if (paths instanceof CompactPathList) {
+			// move the songs around without re-encoding every name
+			((CompactPathList) paths).reorder(order);
+		} else {
+			Path[] unsorted = paths.toArray(new Path[0]);
+			for (int i = 0; i < size; i++) {
+				paths.set(i, unsorted[order[i]]);
+			}
+		}
+	}
+
+	/**
+	 * Works out the sorted order of the paths without moving them.
+	 *
+	 * @return The index in paths of the first path in sorted order, then the
+	 *         second, and so on.
+	 */
+	public static int[] sortedOrder(List<Path> paths) {
+		int size = paths.size();
+		Keyed[] keyed = new Keyed[size];
+		IntStream indexes = IntStream.range(0, size);
+		if (size >= PARALLEL_THRESHOLD) {
+			indexes = indexes.parallel();
+		}
+		indexes.forEach(i -> {
+			keyed[i] = new Keyed(keyOf(paths.get(i)), i);
+		});
+
+		if (size >= PARALLEL_THRESHOLD) {
+			Arrays.parallelSort(keyed);
+		} else {
+			Arrays.sort(keyed);
+		}
+
+		int[] order = new int[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = keyed[i].index;
+		}
+		return order;
+	}
+
+	/**
+	 * Lowercases the name and strips any accents.
+	 */
+	static String fold(String name) {
+		boolean isAscii = true;
+		for (int i = 0; i < name.length() && isAscii; i++) {
+			isAscii = name.charAt(i) < 0x80;
+		}
+		if (isAscii) {
+			// by far the most common case, and far cheaper
+			return name.toLowerCase(Locale.ROOT);
+		}
+
+		// Split accented letters into the letter then the accent, and drop the accent
+		String decomposed = Normalizer.normalize(name, Normalizer.Form.NFD);
+		StringBuilder sb = new StringBuilder(decomposed.length());
+		for (int i = 0; i < decomposed.length(); i++) {
+			char c = decomposed.charAt(i);
+			if (Character.NON_SPACING_MARK != Character.getType(c)) {
+				sb.append(c);
+			}
+		}
+		return sb.toString().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Zero pads every run of digits to {@link #NUMBER_WIDTH} digits. Equal length
+	 * digit strings sort alphabetically in the same order as their values.
+	 */
+	static String padNumbers(String name) {
+		StringBuilder sb = null;
+		int len = name.length();
+		int i = 0;
+		while (i < len) {
+			if (!Character.isDigit(name.charAt(i))) {
+				i++;
+				continue;
+			}
+			int start = i;
+			while (i < len && Character.isDigit(name.charAt(i))) {
+				i++;
+			}
+			if (null == sb) {
+				// Most names with numbers in them only have one or two. Leave some room.
+				sb = new StringBuilder(len + 2 * NUMBER_WIDTH);
+				sb.append(name, 0, start);
+			}
+			int numDigits = i - start;
+			if (numDigits < NUMBER_WIDTH) {
+				sb.append(ZEROS, 0, NUMBER_WIDTH - numDigits);
+			}
+			sb.append(name, start, i);
+			// copy everything up to the next number
+			int next = i;
+			while (next < len && !Character.isDigit(name.charAt(next))) {
+				next++;
+			}
+			sb.append(name, i, next);
+			i = next;
+		}
+		// Names without any numbers are used as is
+		return (null == sb) ? name : sb.toString();
+	}
+
+	/**
+	 * Where a path was in the list along with the key it sorts by.
+	 */
+	private static class Keyed implements Comparable<Keyed> {
+		final String key;
+		final int index;
+
+		Keyed(String key, int index) {
+			this.key = key;
+			this.index = index;
+		}
+
+		@Override
+		public int compareTo(Keyed o) {
+			return key.compareTo(o.key);
+		}
+	}
+}
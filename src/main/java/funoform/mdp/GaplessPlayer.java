@@ -0,0 +1,700 @@
+package funoform.mdp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import com.goxr3plus.streamplayer.enums.Status;
+
+/**
+ * Plays songs one after another through the same audio line, so a live or
+ * continuous album plays without a gap between tracks.
+ *
+ * The StreamPlayer opens a new audio line for every song, and we only notice
+ * it has finished a song on our next poll, so there is always a gap. Here a
+ * single thread decodes the songs and writes them to the line. While one song
+ * plays, the next is opened and its start decoded in the background. When the
+ * first runs out, the thread carries straight on writing the next to the same
+ * line, so the speakers never run dry.
+ *
+ * The line can only play one format though. If the next song has a different
+ * sample rate or number of channels we have to let the line finish and open a
+ * new one, which leaves a short gap.
+ *
+ * Optionally songs can crossfade into each other instead, using a
+ * {@link Crossfader}. Again only between songs of the same format.
+ */
+public class GaplessPlayer {
+	private static final Logger sLogger = Logger.getLogger(GaplessPlayer.class.getName());
+	/**
+	 * How much of the next song to decode ahead of time. About 1.5 seconds of CD
+	 * quality audio, so a slow disk at the wrong moment doesn't cause a gap.
+	 */
+	private static final int PREBUFFER_BYTES = 256 * 1024;
+	private static final int CHUNK_BYTES = 16 * 1024;
+
+	private final Object mLock = new Object();
+	// The rest are all guarded by mLock
+	private SourceDataLine mLine;
+	// Decodes and writes to mLine. Any other pump thread is left over from a stop()
+	// and should quit.
+	private Thread mPump;
+	private Status mStatus = Status.STOPPED;
+	// The song being written to the line
+	private Track mDecoding;
+	private Path mNextPath;
+	private Future<Track> mNext;
+	// The song coming out of the speakers. The line holds about half a second of
+	// audio, so this lags behind mDecoding when changing songs.
+	private Track mHeard;
+	private long mHeardStartFrame;
+	private Track mPendingHeard;
+	private long mPendingStartFrame;
+	private int mNumSongsStarted = 0;
+	// How many frames the pump has written to mLine. Only written by the pump.
+	private volatile long mFramesWritten;
+	private volatile int mCrossfadeSecs = 0;
+	private volatile IGaplessListener mListener;
+
+	private final ExecutorService mLoader = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "NextSongLoader");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * Stops anything playing and starts playing a song.
+	 *
+	 * @return False if the song couldn't be played.
+	 */
+	public boolean play(Path song) {
+		return play(song, 0);
+	}
+
+	/**
+	 * Stops anything playing and starts playing a song part way through.
+	 *
+	 * @param startMillis How far into the song to start.
+	 * @return False if the song couldn't be played.
+	 */
+	public boolean play(Path song, long startMillis) {
+		stop();
+
+		Track track = null;
+		long skippedFrames = 0;
+		try {
+			if (0 < startMillis) {
+				// straight to the frame we want, if the seek table knows where it is
+				track = Track.openAt(song, startMillis);
+				if (null != track) {
+					skippedFrames = startMillis * (long) track.format.getFrameRate() / 1000;
+				}
+			}
+			if (null == track) {
+				// no point decoding ahead, we want to hear it now
+				track = Track.open(song, 0);
+				if (0 < startMillis) {
+					// so decode our way there
+					long frames = startMillis * (long) track.format.getFrameRate() / 1000;
+					skippedFrames = track.skip(frames * track.frameSize) / track.frameSize;
+				}
+			}
+		} catch (IOException | UnsupportedAudioFileException e) {
+			sLogger.log(Level.SEVERE, "Exception while trying to start playing the song: " + e.getMessage());
+			return false;
+		}
+
+		synchronized (mLock) {
+			try {
+				openLine(track.format);
+			} catch (LineUnavailableException e) {
+				sLogger.log(Level.SEVERE, "Unable to open the audio line to play " + song + ": " + e.getMessage());
+				track.close();
+				return false;
+			}
+			mDecoding = track;
+			mHeard = track;
+			// so the position counts from the start of the song, not where we started
+			mHeardStartFrame = -skippedFrames;
+			mPendingHeard = null;
+			mNumSongsStarted++;
+			mStatus = Status.PLAYING;
+			IGaplessListener l = mListener;
+			mPump = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					pump(l);
+				}
+			}, "GaplessPump");
+			mPump.setDaemon(true);
+			mPump.start();
+		}
+		return true;
+	}
+
+	/**
+	 * Sets the song to play once the one playing finishes, and starts getting it
+	 * ready. Replaces any song set before.
+	 *
+	 * @param song The next song, or null to stop after this song.
+	 */
+	public void setNext(Path song) {
+		synchronized (mLock) {
+			if (Objects.equals(song, mNextPath)) {
+				return;
+			}
+			discardNext();
+			mNextPath = song;
+			if (null != song) {
+				mNext = mLoader.submit(new Callable<Track>() {
+					@Override
+					public Track call() throws Exception {
+						return Track.open(song, PREBUFFER_BYTES);
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * @param l Hears about songs changing. Called from the thread playing the audio,
+	 *          so hand anything slow off to another thread. Songs started with
+	 *          {@link #play(Path)} keep telling the listener set when they started,
+	 *          even after it is replaced, so news about a song since replaced goes
+	 *          to the listener for that song.
+	 */
+	public void setListener(IGaplessListener l) {
+		mListener = l;
+	}
+
+	/**
+	 * @param secs How many seconds each song fades into the next. 0 to play them
+	 *             back to back. Takes effect from the next song.
+	 */
+	public void setCrossfadeSecs(int secs) {
+		mCrossfadeSecs = secs;
+	}
+
+	public boolean pause() {
+		synchronized (mLock) {
+			if (Status.PLAYING != mStatus) {
+				return false;
+			}
+			// The pump just blocks writing to the line until it is started again
+			mLine.stop();
+			mStatus = Status.PAUSED;
+			return true;
+		}
+	}
+
+	public boolean resume() {
+		synchronized (mLock) {
+			if (Status.PAUSED != mStatus) {
+				return false;
+			}
+			mLine.start();
+			mStatus = Status.PLAYING;
+			return true;
+		}
+	}
+
+	public void stop() {
+		Thread pump;
+		synchronized (mLock) {
+			pump = mPump;
+			mPump = null;
+			mStatus = Status.STOPPED;
+			discardNext();
+			closeLine();
+		}
+
+		// Closing the line lets the pump out of any write it was blocked in
+		if (null != pump) {
+			pump.interrupt();
+			try {
+				pump.join(2000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		synchronized (mLock) {
+			if (null != mDecoding) {
+				mDecoding.close();
+				mDecoding = null;
+			}
+		}
+	}
+
+	public Status getStatus() {
+		synchronized (mLock) {
+			return mStatus;
+		}
+	}
+
+	/**
+	 * @return The song coming out of the speakers, or last to do so.
+	 */
+	public Path getPlayingSong() {
+		synchronized (mLock) {
+			updateHeard();
+			return (null == mHeard) ? null : mHeard.path;
+		}
+	}
+
+	/**
+	 * @return Goes up by one every time a song starts, whether from
+	 *         {@link #play(Path)} or moving on to the next song. Check this rather
+	 *         than {@link #getPlayingSong()} to see if a new song started, as the
+	 *         same song could be next.
+	 */
+	public int getNumSongsStarted() {
+		synchronized (mLock) {
+			updateHeard();
+			return mNumSongsStarted;
+		}
+	}
+
+	/**
+	 * @return How far into the song playing we are.
+	 */
+	public long getPositionMicros() {
+		synchronized (mLock) {
+			updateHeard();
+			if (null == mLine || null == mHeard) {
+				return 0;
+			}
+			long frames = mLine.getLongFramePosition() - mHeardStartFrame;
+			return Math.max(0, frames) * 1000000 / (long) mHeard.format.getFrameRate();
+		}
+	}
+
+	/**
+	 * @return How long the song playing is, or -1 if we don't know.
+	 */
+	public long getDurationSecs() {
+		synchronized (mLock) {
+			updateHeard();
+			return (null == mHeard) ? -1 : mHeard.durationSecs;
+		}
+	}
+
+	/**
+	 * Runs on its own thread, decoding songs and writing them to the line until we
+	 * run out of songs or are stopped.
+	 */
+	private void pump(IGaplessListener l) {
+		byte[] buf = new byte[CHUNK_BYTES];
+		Crossfader fader = new Crossfader(CHUNK_BYTES);
+		synchronized (mLock) {
+			if (null != mDecoding) {
+				fader.reset(mDecoding.format, mCrossfadeSecs);
+			}
+		}
+		while (true) {
+			Track track;
+			SourceDataLine line;
+			synchronized (mLock) {
+				if (Thread.currentThread() != mPump) {
+					return;
+				}
+				track = mDecoding;
+				line = mLine;
+			}
+
+			int n;
+			try {
+				n = track.read(buf, 0, buf.length - (buf.length % track.frameSize));
+			} catch (IOException e) {
+				sLogger.log(Level.WARNING, "Exception while reading " + track.path + ". Skipping the rest of the song. "
+						+ e.getMessage());
+				n = -1;
+			}
+
+			if (0 < n) {
+				mFramesWritten += fader.push(buf, 0, n, line);
+			} else if (!startNextSong(track, line, fader, l)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Called by the pump once it has written all of a song, to carry on with the
+	 * next.
+	 *
+	 * @return True if the pump should keep going.
+	 */
+	private boolean startNextSong(Track finished, SourceDataLine line, Crossfader fader, IGaplessListener l) {
+		Future<Track> next;
+		synchronized (mLock) {
+			if (Thread.currentThread() != mPump) {
+				return false;
+			}
+			next = mNext;
+			mNext = null;
+			mNextPath = null;
+		}
+		// what we wrote is still playing, but we are done reading it
+		finished.close();
+
+		Track track = null;
+		if (null != next) {
+			try {
+				track = next.get();
+			} catch (InterruptedException e) {
+				// we were stopped
+				closeWhenOpen(next);
+				return false;
+			} catch (ExecutionException e) {
+				sLogger.log(Level.WARNING, "Unable to open the next song: " + e.getCause().getMessage());
+			}
+		}
+
+		if (null == track) {
+			// Nothing more to play. Let the speakers finish the song and we are done.
+			mFramesWritten += fader.flush(line);
+			line.drain();
+			synchronized (mLock) {
+				if (Thread.currentThread() != mPump) {
+					return false;
+				}
+				mPump = null;
+				mStatus = Status.STOPPED;
+				closeLine();
+			}
+			notifyFinished(l);
+			return false;
+		}
+
+		long delayMicros;
+		boolean isSameFormat = track.format.matches(line.getFormat());
+		if (!isSameFormat) {
+			mFramesWritten += fader.flush(line);
+			line.drain();
+		}
+
+		boolean isLineOpen = true;
+		synchronized (mLock) {
+			if (Thread.currentThread() != mPump) {
+				track.close();
+				return false;
+			}
+			if (!isSameFormat) {
+				closeLine();
+				try {
+					openLine(track.format);
+				} catch (LineUnavailableException e) {
+					sLogger.log(Level.SEVERE,
+							"Unable to open the audio line to play " + track.path + ": " + e.getMessage());
+					track.close();
+					mPump = null;
+					mStatus = Status.STOPPED;
+					isLineOpen = false;
+				}
+			}
+		}
+		if (!isLineOpen) {
+			notifyFinished(l);
+			return false;
+		}
+
+		synchronized (mLock) {
+			if (Thread.currentThread() != mPump) {
+				track.close();
+				return false;
+			}
+			mDecoding = track;
+			// the song changes for the listener once the line gets to where it starts,
+			// which is where any fade starts
+			mPendingHeard = track;
+			mPendingStartFrame = mFramesWritten;
+			delayMicros = (mPendingStartFrame - mLine.getLongFramePosition()) * 1000000
+					/ (long) track.format.getFrameRate();
+		}
+		if (null != l) {
+			l.songQueued(Math.max(0, delayMicros));
+		}
+
+		if (fader.hasTail()) {
+			try {
+				mFramesWritten += fader.fadeInto(track, line);
+			} catch (IOException e) {
+				sLogger.log(Level.WARNING, "Exception while reading " + track.path + ": " + e.getMessage());
+			}
+		}
+		fader.reset(track.format, mCrossfadeSecs);
+		return true;
+	}
+
+	private void notifyFinished(IGaplessListener l) {
+		if (null != l) {
+			l.playbackFinished();
+		}
+	}
+
+	/**
+	 * Catches up with the line, which might have started playing the next song.
+	 * Call holding mLock.
+	 */
+	private void updateHeard() {
+		if (null != mPendingHeard && null != mLine && mLine.getLongFramePosition() >= mPendingStartFrame) {
+			mHeard = mPendingHeard;
+			mHeardStartFrame = mPendingStartFrame;
+			mPendingHeard = null;
+			mNumSongsStarted++;
+		}
+	}
+
+	/**
+	 * Call holding mLock.
+	 */
+	private void openLine(AudioFormat format) throws LineUnavailableException {
+		SourceDataLine line;
+		try {
+			line = (SourceDataLine) AudioSystem.getLine(new DataLine.Info(SourceDataLine.class, format));
+		} catch (IllegalArgumentException e) {
+			// what we get when no sound card can play the format at all
+			throw new LineUnavailableException(e.getMessage());
+		}
+		line.open(format);
+		line.start();
+		mLine = line;
+		mFramesWritten = 0;
+		if (null != mPendingHeard) {
+			mPendingStartFrame = 0;
+		}
+	}
+
+	/**
+	 * Call holding mLock.
+	 */
+	private void closeLine() {
+		if (null != mLine) {
+			updateHeard();
+			mLine.stop();
+			mLine.flush();
+			mLine.close();
+			mLine = null;
+		}
+	}
+
+	/**
+	 * Throws away the next song. Call holding mLock.
+	 */
+	private void discardNext() {
+		Future<Track> next = mNext;
+		mNext = null;
+		mNextPath = null;
+		if (null != next) {
+			closeWhenOpen(next);
+		}
+	}
+
+	private void closeWhenOpen(Future<Track> next) {
+		// The loader does one thing at a time, so this runs once the song is open
+		mLoader.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Track t = next.get();
+					if (null != t) {
+						t.close();
+					}
+				} catch (InterruptedException | ExecutionException e) {
+					// it never opened, so there is nothing to close
+				}
+			}
+		});
+	}
+
+	/**
+	 * How the {@link GaplessPlayer} tells its owner about songs changing.
+	 */
+	public interface IGaplessListener {
+		/**
+		 * Moved on to the next song, which will start coming out of the speakers in
+		 * about this long. {@link #getNumSongsStarted()} goes up then.
+		 */
+		public void songQueued(long delayMicros);
+
+		/**
+		 * The last song finished playing. Not called when stopped.
+		 */
+		public void playbackFinished();
+	}
+
+	/**
+	 * Somewhere to read decoded audio from.
+	 */
+	public interface PcmSource {
+		/**
+		 * Same as {@link java.io.InputStream#read(byte[], int, int)}.
+		 */
+		public int read(byte[] b, int off, int len) throws IOException;
+	}
+
+	/**
+	 * A song decoded to 16 bit PCM, with the start of it possibly already decoded.
+	 */
+	private static class Track implements PcmSource {
+		final Path path;
+		final AudioFormat format;
+		final int frameSize;
+		final long durationSecs;
+		private final AudioInputStream mPcm;
+		private byte[] mPre;
+		private int mPreLen = 0;
+		private int mPrePos = 0;
+
+		private Track(Path path, AudioInputStream pcm, long durationSecs) {
+			this.path = path;
+			this.format = pcm.getFormat();
+			this.frameSize = Math.max(1, format.getFrameSize());
+			this.durationSecs = durationSecs;
+			mPcm = pcm;
+		}
+
+		/**
+		 * @param prebufferBytes How much of the song to decode now.
+		 */
+		static Track open(Path path, int prebufferBytes) throws IOException, UnsupportedAudioFileException {
+			return open(path, AudioSystem.getAudioInputStream(path.toFile()), prebufferBytes);
+		}
+
+		/**
+		 * Opens the song part way through, without decoding the rest of it first.
+		 *
+		 * @return The song from about startMillis in, or null if the seek table doesn't
+		 *         know where that is.
+		 */
+		static Track openAt(Path path, long startMillis) {
+			InputStream encoded = Mp3SeekTable.openAt(path, startMillis * 1000);
+			if (null == encoded) {
+				return null;
+			}
+			try {
+				return open(path, AudioSystem.getAudioInputStream(encoded), 0);
+			} catch (IOException | UnsupportedAudioFileException e) {
+				sLogger.log(Level.FINE, "Unable to open " + path + " part way through: " + e.getMessage());
+				try {
+					encoded.close();
+				} catch (IOException e1) {
+					// nothing we can do about it
+				}
+				return null;
+			}
+		}
+
+		private static Track open(Path path, AudioInputStream in, int prebufferBytes) throws IOException {
+			AudioFormat base = in.getFormat();
+			AudioFormat pcmFormat = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, base.getSampleRate(), 16,
+					base.getChannels(), base.getChannels() * 2, base.getSampleRate(), false);
+			AudioInputStream pcm = base.matches(pcmFormat) ? in : AudioSystem.getAudioInputStream(pcmFormat, in);
+
+			Track track = new Track(path, pcm, readDurationSecs(path));
+			if (0 < prebufferBytes) {
+				try {
+					track.prebuffer(prebufferBytes);
+				} catch (IOException e) {
+					track.close();
+					throw e;
+				}
+			}
+			return track;
+		}
+
+		private static long readDurationSecs(Path path) {
+			long secs = Mp3Duration.getDurationSecs(path);
+			if (-1 != secs) {
+				return secs;
+			}
+			try {
+				AudioFileFormat aff = AudioSystem.getAudioFileFormat(path.toFile());
+				Map<String, Object> props = aff.properties();
+				// MP3 decoders put the duration here, in microseconds
+				Object duration = props.get("duration");
+				if (duration instanceof Long) {
+					return (Long) duration / 1000000;
+				}
+				if (0 < aff.getFrameLength() && 0 < aff.getFormat().getFrameRate()) {
+					return (long) (aff.getFrameLength() / aff.getFormat().getFrameRate());
+				}
+			} catch (IOException | UnsupportedAudioFileException e) {
+				// we were able to open it to play, so this shouldn't happen. Just don't know
+				// how long it is.
+			}
+			return -1;
+		}
+
+		private void prebuffer(int bytes) throws IOException {
+			mPre = new byte[bytes - (bytes % frameSize)];
+			while (mPreLen < mPre.length) {
+				int n = mPcm.read(mPre, mPreLen, mPre.length - mPreLen);
+				if (0 > n) {
+					break;
+				}
+				mPreLen += n;
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (mPrePos < mPreLen) {
+				int n = Math.min(len, mPreLen - mPrePos);
+				System.arraycopy(mPre, mPrePos, b, off, n);
+				mPrePos += n;
+				if (mPrePos == mPreLen) {
+					mPre = null;
+				}
+				return n;
+			}
+			return mPcm.read(b, off, len);
+		}
+
+		/**
+		 * Throws away the start of the song.
+		 *
+		 * @return How many bytes were skipped. Less than asked for if the song ran
+		 *         out first.
+		 */
+		long skip(long bytes) throws IOException {
+			bytes -= bytes % frameSize;
+			long skipped = 0;
+			while (skipped < bytes) {
+				long n = mPcm.skip(bytes - skipped);
+				if (0 >= n) {
+					break;
+				}
+				skipped += n;
+			}
+			return skipped;
+		}
+
+		void close() {
+			try {
+				mPcm.close();
+			} catch (IOException e) {
+				// nothing we can do about it
+			}
+		}
+	}
+}
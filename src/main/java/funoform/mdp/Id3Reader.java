@@ -0,0 +1,372 @@
+package funoform.mdp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import funoform.mdp.types.SongTags;
+
+/**
+ * Reads the title, artist, album, genre, track number, and year from a song's
+ * ID3 tags, and where its cover art is.
+ *
+ * ID3v2 (versions 2.2 to 2.4) at the start of the file is read a frame at a
+ * time, so only the frames we want are read and never the cover art itself.
+ * Anything missing from there is taken from an ID3v1 tag at the end of the
+ * file, if there is one.
+ */
+public class Id3Reader {
+	private static final int HEADER_LEN = 10;
+	private static final int ID3V1_LEN = 128;
+	/**
+	 * No title or name needs more than this. Anything longer is cut short.
+	 */
+	private static final int MAX_TEXT_LEN = 1024;
+	/**
+	 * Enough of a picture frame to get past its description to the picture.
+	 */
+	private static final int MAX_PICTURE_HEADER_LEN = 512;
+	private static final int FRONT_COVER = 3;
+	/**
+	 * ID3v1 only has a number for the genre, and ID3v2 often has it too. The
+	 * original 80 genres plus Winamp's additions that everyone else copied.
+	 */
+	private static final String[] GENRES = { "Blues", "Classic Rock", "Country", "Dance", "Disco", "Funk", "Grunge",
+			"Hip-Hop", "Jazz", "Metal", "New Age", "Oldies", "Other", "Pop", "R&B", "Rap", "Reggae", "Rock", "Techno",
+			"Industrial", "Alternative", "Ska", "Death Metal", "Pranks", "Soundtrack", "Euro-Techno", "Ambient",
+			"Trip-Hop", "Vocal", "Jazz+Funk", "Fusion", "Trance", "Classical", "Instrumental", "Acid", "House", "Game",
+			"Sound Clip", "Gospel", "Noise", "AlternRock", "Bass", "Soul", "Punk", "Space", "Meditative",
+			"Instrumental Pop", "Instrumental Rock", "Ethnic", "Gothic", "Darkwave", "Techno-Industrial", "Electronic",
+			"Pop-Folk", "Eurodance", "Dream", "Southern Rock", "Comedy", "Cult", "Gangsta", "Top 40", "Christian Rap",
+			"Pop/Funk", "Jungle", "Native American", "Cabaret", "New Wave", "Psychadelic", "Rave", "Showtunes",
+			"Trailer", "Lo-Fi", "Tribal", "Acid Punk", "Acid Jazz", "Polka", "Retro", "Musical", "Rock & Roll",
+			"Hard Rock", "Folk", "Folk-Rock", "National Folk", "Swing", "Fast Fusion", "Bebob", "Latin", "Revival",
+			"Celtic", "Bluegrass", "Avantgarde", "Gothic Rock", "Progressive Rock", "Psychedelic Rock",
+			"Symphonic Rock", "Slow Rock", "Big Band", "Chorus", "Easy Listening", "Acoustic", "Humour", "Speech",
+			"Chanson", "Opera", "Chamber Music", "Sonata", "Symphony", "Booty Bass", "Primus", "Porn Groove",
+			"Satire", "Slow Jam", "Club", "Tango", "Samba", "Folklore", "Ballad", "Power Ballad", "Rhythmic Soul",
+			"Freestyle", "Duet", "Punk Rock", "Drum Solo", "A capella", "Euro-House", "Dance Hall" };
+
+	// Just a bunch of static methods so don't let someone create this thing
+	private Id3Reader() {
+	}
+
+	/**
+	 * @return The tags, which are empty if the song has none.
+	 */
+	public static SongTags read(Path path) throws IOException {
+		try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+			Found found = new Found();
+			readId3v2(fc, found);
+			if (null == found.title || null == found.artist || null == found.album || null == found.genre) {
+				readId3v1(fc, found);
+			}
+			return new SongTags(found.title, found.artist, found.album, found.genre, found.trackNumber, found.year,
+					found.artOffset, found.artLength);
+		}
+	}
+
+	private static void readId3v2(FileChannel fc, Found found) throws IOException {
+		ByteBuffer header = readAt(fc, 0, HEADER_LEN);
+		if (HEADER_LEN != header.limit() || 'I' != header.get(0) || 'D' != header.get(1) || '3' != header.get(2)) {
+			return;
+		}
+		int major = header.get(3);
+		if (2 > major || 4 < major) {
+			return;
+		}
+		int flags = header.get(5);
+		// Unsynchronisation puts a 0 after every 0xFF in the tag. Version 2.4 flags
+		// it per frame instead.
+		boolean isTagUnsynced = 4 != major && 0 != (flags & 0x80);
+		long end = HEADER_LEN + syncSafe(header, 6);
+		long pos = HEADER_LEN;
+		if (2 < major && 0 != (flags & 0x40)) {
+			// skip the extended header. Only 2.4 counts its own size in its size.
+			ByteBuffer ext = readAt(fc, pos, 4);
+			pos += (4 == major) ? syncSafe(ext, 0) : 4 + ext.getInt(0);
+		}
+
+		int idLen = (2 == major) ? 3 : 4;
+		int frameHeaderLen = (2 == major) ? 6 : 10;
+		boolean isFrontCover = false;
+		while (pos + frameHeaderLen <= end) {
+			ByteBuffer fh = readAt(fc, pos, frameHeaderLen);
+			if (frameHeaderLen != fh.limit() || 0 == fh.get(0)) {
+				// the padding after the last frame
+				break;
+			}
+			String id = new String(fh.array(), 0, idLen, StandardCharsets.ISO_8859_1);
+			int size;
+			boolean isUnsynced = isTagUnsynced;
+			boolean isUnreadable = false;
+			long body = pos + frameHeaderLen;
+			if (2 == major) {
+				size = ((fh.get(3) & 0xFF) << 16) | ((fh.get(4) & 0xFF) << 8) | (fh.get(5) & 0xFF);
+			} else if (3 == major) {
+				size = fh.getInt(4);
+				// compressed or encrypted
+				isUnreadable = 0 != (fh.get(9) & 0xC0);
+			} else {
+				size = syncSafe(fh, 4);
+				int format = fh.get(9);
+				isUnreadable = 0 != (format & 0x0C);
+				isUnsynced = 0 != (format & 0x02);
+				if (0 != (format & 0x01)) {
+					// starts with the length it would be without compression or
+					// unsynchronisation
+					body += 4;
+				}
+			}
+			long next = pos + frameHeaderLen + size;
+			if (0 >= size || next > end) {
+				break;
+			}
+			int bodyLen = (int) (next - body);
+			pos = next;
+			if (isUnreadable) {
+				continue;
+			}
+
+			switch (id) {
+			case "TIT2":
+			case "TT2":
+				found.title = readText(fc, body, bodyLen, isUnsynced);
+				break;
+			case "TPE1":
+			case "TP1":
+				found.artist = readText(fc, body, bodyLen, isUnsynced);
+				break;
+			case "TALB":
+			case "TAL":
+				found.album = readText(fc, body, bodyLen, isUnsynced);
+				break;
+			case "TCON":
+			case "TCO":
+				found.genre = genreOf(readText(fc, body, bodyLen, isUnsynced));
+				break;
+			case "TRCK":
+			case "TRK":
+				// e.g. "3/12"
+				found.trackNumber = leadingNumber(readText(fc, body, bodyLen, isUnsynced));
+				break;
+			case "TYER":
+			case "TYE":
+			case "TDRC":
+				// e.g. "2004" or "2004-05-01T12:00"
+				found.year = leadingNumber(readText(fc, body, bodyLen, isUnsynced));
+				break;
+			case "APIC":
+			case "PIC":
+				if (!isFrontCover && !isUnsynced) {
+					isFrontCover = readPicture(fc, body, bodyLen, 2 == major, found);
+				}
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Finds where the picture in a picture frame starts. Keeps the first one
+	 * found, unless a front cover comes along later.
+	 *
+	 * @return True if it was the front cover.
+	 */
+	private static boolean readPicture(FileChannel fc, long body, int bodyLen, boolean isV22, Found found)
+			throws IOException {
+		ByteBuffer b = readAt(fc, body, Math.min(bodyLen, MAX_PICTURE_HEADER_LEN));
+		int encoding = b.get(0);
+		// v2.2 has a 3 letter image format, later versions a MIME type ending in 0
+		int at = 1;
+		if (isV22) {
+			at += 3;
+		} else {
+			while (at < b.limit() && 0 != b.get(at)) {
+				at++;
+			}
+			at++;
+		}
+		if (at >= b.limit()) {
+			return false;
+		}
+		int type = b.get(at++);
+		// then the description, ending in a 0 the width of a character
+		int charLen = (1 == encoding || 2 == encoding) ? 2 : 1;
+		while (at + charLen <= b.limit() && !(0 == b.get(at) && (1 == charLen || 0 == b.get(at + 1)))) {
+			at += charLen;
+		}
+		at += charLen;
+		if (at > b.limit() || at >= bodyLen) {
+			return false;
+		}
+		boolean isFront = FRONT_COVER == type;
+		if (-1 == found.artOffset || isFront) {
+			found.artOffset = body + at;
+			found.artLength = bodyLen - at;
+		}
+		return isFront;
+	}
+
+	private static String readText(FileChannel fc, long body, int bodyLen, boolean isUnsynced) throws IOException {
+		ByteBuffer b = readAt(fc, body, Math.min(bodyLen, MAX_TEXT_LEN));
+		byte[] bytes = b.array();
+		int len = b.limit();
+		if (isUnsynced) {
+			len = removeUnsync(bytes, len);
+		}
+		if (1 > len) {
+			return null;
+		}
+		Charset cs;
+		switch (bytes[0]) {
+		case 1:
+			// with a byte order mark
+			cs = StandardCharsets.UTF_16;
+			break;
+		case 2:
+			cs = StandardCharsets.UTF_16BE;
+			break;
+		case 3:
+			cs = StandardCharsets.UTF_8;
+			break;
+		default:
+			cs = StandardCharsets.ISO_8859_1;
+			break;
+		}
+		return clean(new String(bytes, 1, len - 1, cs));
+	}
+
+	private static void readId3v1(FileChannel fc, Found found) throws IOException {
+		long size = fc.size();
+		if (ID3V1_LEN > size) {
+			return;
+		}
+		ByteBuffer b = readAt(fc, size - ID3V1_LEN, ID3V1_LEN);
+		if (ID3V1_LEN != b.limit() || 'T' != b.get(0) || 'A' != b.get(1) || 'G' != b.get(2)) {
+			return;
+		}
+		byte[] bytes = b.array();
+		if (null == found.title) {
+			found.title = clean(new String(bytes, 3, 30, StandardCharsets.ISO_8859_1));
+		}
+		if (null == found.artist) {
+			found.artist = clean(new String(bytes, 33, 30, StandardCharsets.ISO_8859_1));
+		}
+		if (null == found.album) {
+			found.album = clean(new String(bytes, 63, 30, StandardCharsets.ISO_8859_1));
+		}
+		if (null == found.genre && GENRES.length > (bytes[127] & 0xFF)) {
+			found.genre = GENRES[bytes[127] & 0xFF];
+		}
+		if (0 == found.year) {
+			found.year = leadingNumber(new String(bytes, 93, 4, StandardCharsets.ISO_8859_1));
+		}
+		// ID3v1.1 puts the track number at the end of the comment
+		if (0 == found.trackNumber && 0 == bytes[125] && 0 != bytes[126]) {
+			found.trackNumber = bytes[126] & 0xFF;
+		}
+	}
+
+	/**
+	 * @return The text up to the first 0, trimmed, or null if that leaves nothing.
+	 *         Version 2.4 separates multiple values with 0s. We only want the first.
+	 */
+	private static String clean(String s) {
+		int nul = s.indexOf('\0');
+		if (-1 != nul) {
+			s = s.substring(0, nul);
+		}
+		s = s.trim();
+		return s.isEmpty() ? null : s;
+	}
+
+	/**
+	 * Genres can be a name, a number from {@link #GENRES}, or both as "(17)Rock".
+	 * Version 2.4 drops the brackets.
+	 */
+	private static String genreOf(String s) {
+		if (null == s) {
+			return null;
+		}
+		if (s.startsWith("(")) {
+			int close = s.indexOf(')');
+			if (-1 != close && close + 1 < s.length()) {
+				// the name is better than the number
+				return clean(s.substring(close + 1));
+			}
+			s = s.substring(1, (-1 == close) ? s.length() : close);
+		}
+		int n = leadingNumber(s);
+		if (s.equals(String.valueOf(n))) {
+			return (n < GENRES.length) ? GENRES[n] : null;
+		}
+		return s;
+	}
+
+	private static int leadingNumber(String s) {
+		if (null == s) {
+			return 0;
+		}
+		int n = 0;
+		for (int i = 0; i < s.length() && i < 9; i++) {
+			char c = s.charAt(i);
+			if ('0' > c || '9' < c) {
+				break;
+			}
+			n = n * 10 + (c - '0');
+		}
+		return n;
+	}
+
+	/**
+	 * Turns every 0xFF 0x00 back into 0xFF, in place.
+	 *
+	 * @return The new length.
+	 */
+	private static int removeUnsync(byte[] b, int len) {
+		int out = 0;
+		for (int i = 0; i < len; i++) {
+			b[out++] = b[i];
+			if ((byte) 0xFF == b[i] && i + 1 < len && 0 == b[i + 1]) {
+				i++;
+			}
+		}
+		return out;
+	}
+
+	private static int syncSafe(ByteBuffer b, int at) {
+		// 4 bytes of 7 bits each
+		return ((b.get(at) & 0x7F) << 21) | ((b.get(at + 1) & 0x7F) << 14) | ((b.get(at + 2) & 0x7F) << 7)
+				| (b.get(at + 3) & 0x7F);
+	}
+
+	private static ByteBuffer readAt(FileChannel fc, long pos, int len) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(len);
+		while (buf.hasRemaining()) {
+			if (0 > fc.read(buf, pos + buf.position())) {
+				break;
+			}
+		}
+		return buf.flip();
+	}
+
+	/**
+	 * What we found so far.
+	 */
+	private static class Found {
+		String title;
+		String artist;
+		String album;
+		String genre;
+		int trackNumber = 0;
+		int year = 0;
+		long artOffset = -1;
+		int artLength = 0;
+	}
+}
@@ -0,0 +1,386 @@
+package funoform.mdp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A persistent record of which music files and sub-directories each directory
+ * contained the last time we looked, keyed by the directory's path and
+ * modification time.
+ *
+ * Adding, removing, or renaming an entry in a directory changes that
+ * directory's modification time. So if a directory's modification time matches
+ * what we recorded, its contents haven't changed and we can skip listing it and
+ * stat'ing every file in it. We still have to stat each sub-directory to check
+ * its own modification time, but a music collection has far fewer directories
+ * than songs.
+ *
+ * Symbolic links are recorded separately and resolved again on every scan,
+ * since changing where a link points doesn't change its directory's
+ * modification time.
+ *
+ * The index file is memory mapped when loaded. Only the directory paths are
+ * decoded up front. A directory's file names are decoded from the mapped file
+ * only when that directory is actually played. Directories scanned since the
+ * index was loaded are kept on the heap until the index is written back out.
+ */
+public class LibraryIndex {
+	private static final Logger sLogger = Logger.getLogger(LibraryIndex.class.getName());
+	private static final int MAGIC = 0x4d445049; // "MDPI"
+	private static final int VERSION = 2;
+	/**
+	 * Many file systems only store modification times to the nearest second (or
+	 * worse). A directory changed during the same second we scanned it could end
+	 * up with the same modification time as our scan result. Don't trust listings
+	 * of directories that changed this recently.
+	 */
+	private static final long MIN_AGE_MS = 2000;
+
+	private final Path mFile;
+	private final ByteBuffer mMapped;
+	private final Map<String, Integer> mMappedOffsets;
+	private final Map<String, DirListing> mScanned = new ConcurrentHashMap<>();
+	// Directories that were in the index, but weren't there when their parent was
+	// listed again. Dropped, along with everything under them, on the next save.
+	private final Set<String> mRemoved = ConcurrentHashMap.newKeySet();
+	private final AtomicBoolean mDirty = new AtomicBoolean(false);
+	private final ExecutorService mWriter = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "LibraryIndexWriter");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private LibraryIndex(Path file, ByteBuffer mapped, Map<String, Integer> mappedOffsets) {
+		mFile = file;
+		mMapped = mapped;
+		mMappedOffsets = mappedOffsets;
+	}
+
+	/**
+	 * Loads the index from disk. If the index doesn't exist or can't be read, an
+	 * empty index is returned which will be saved to the specified file later.
+	 */
+	public static LibraryIndex load(Path file) {
+		if (Files.isRegularFile(file)) {
+			try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+				MappedByteBuffer mapped = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+				Map<String, Integer> offsets = readDirOffsets(mapped);
+				sLogger.log(Level.FINE, "Loaded library index with " + offsets.size() + " directories from " + file);
+				return new LibraryIndex(file, mapped, offsets);
+			} catch (IOException | RuntimeException e) {
+				// A corrupt or old index is just a slower scan. Start over with a fresh one.
+				sLogger.log(Level.WARNING, "Ignoring unreadable library index " + file + ". " + e.getMessage());
+			}
+		}
+		return new LibraryIndex(file, null, new HashMap<>());
+	}
+
+	/**
+	 * Gets what a directory contained the last time it was scanned.
+	 *
+	 * @param dir     The directory.
+	 * @param mtimeMs The directory's current modification time.
+	 * @return The listing, or null if the directory was never scanned or has been
+	 *         modified since.
+	 */
+	public DirListing get(Path dir, long mtimeMs) {
+		String key = dir.toString();
+		DirListing listing = mScanned.get(key);
+		if (null == listing) {
+			Integer offset = mMappedOffsets.get(key);
+			if (null != offset) {
+				listing = readListing(mMapped, offset);
+			}
+		}
+		if (null != listing && listing.mtimeMs == mtimeMs) {
+			return listing;
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the music files a directory contained the last time it was scanned,
+	 * whether or not it has changed since. Never touches the disk.
+	 *
+	 * @return The file names, none if the directory has gone since, or null if it
+	 *         was never scanned.
+	 */
+	public Set<String> getLastMusicFiles(Path dir) {
+		String key = dir.toString();
+		if (isRemoved(key)) {
+			return Collections.emptySet();
+		}
+		DirListing listing = mScanned.get(key);
+		if (null == listing) {
+			Integer offset = mMappedOffsets.get(key);
+			if (null == offset) {
+				return null;
+			}
+			listing = readListing(mMapped, offset);
+		}
+		return new HashSet<>(Arrays.asList(listing.musicFiles));
+	}
+
+	/**
+	 * Records what a directory contains right now.
+	 *
+	 * @param dir        The directory.
+	 * @param mtimeMs    The directory's modification time when it was listed.
+	 * @param musicFiles The file names of the playable music files in the
+	 *                   directory.
+	 * @param subDirs    The file names of the sub-directories in the directory.
+	 * @param links      The file names of every symbolic link in the directory,
+	 *                   whatever they point to.
+	 */
+	public void put(Path dir, long mtimeMs, List<String> musicFiles, List<String> subDirs, List<String> links) {
+		if (System.currentTimeMillis() - mtimeMs < MIN_AGE_MS) {
+			return;
+		}
+		String key = dir.toString();
+		DirListing old = mScanned.get(key);
+		if (null == old) {
+			Integer offset = mMappedOffsets.get(key);
+			if (null != offset) {
+				old = readListing(mMapped, offset);
+			}
+		}
+		if (null != old && 0 < old.subDirs.length) {
+			// Sub-directories that have gone since the last listing. We only know about
+			// them here, so this is the time to forget them, rather than checking every
+			// directory in the index still exists when saving.
+			Set<String> now = new HashSet<>(subDirs);
+			for (String subDir : old.subDirs) {
+				if (!now.contains(subDir)) {
+					mRemoved.add(dir.resolve(subDir).toString());
+				}
+			}
+		}
+		// in case any have come back
+		mRemoved.remove(key);
+		if (!mRemoved.isEmpty()) {
+			for (String subDir : subDirs) {
+				mRemoved.remove(dir.resolve(subDir).toString());
+			}
+		}
+		mScanned.put(key, new DirListing(mtimeMs, musicFiles.toArray(new String[0]),
+				subDirs.toArray(new String[0]), links.toArray(new String[0])));
+		mDirty.set(true);
+	}
+
+	/**
+	 * Calls the action with every directory in the index and what it contained
+	 * when last scanned, whether or not it has changed since. Decodes every
+	 * listing, so keep it off any thread that matters.
+	 */
+	public void forEach(BiConsumer<Path, DirListing> action) {
+		for (Map.Entry<String, DirListing> e : mScanned.entrySet()) {
+			action.accept(Path.of(e.getKey()), e.getValue());
+		}
+		for (Map.Entry<String, Integer> e : mMappedOffsets.entrySet()) {
+			if (!mScanned.containsKey(e.getKey())) {
+				action.accept(Path.of(e.getKey()), readListing(mMapped, e.getValue()));
+			}
+		}
+	}
+
+	/**
+	 * Writes the index back to disk on a background thread, if anything changed.
+	 */
+	public void saveInBackground() {
+		if (mDirty.get()) {
+			mWriter.execute(this::saveIfDirty);
+		}
+	}
+
+	/**
+	 * Writes the index back to disk on the calling thread, if anything changed.
+	 */
+	public synchronized void saveIfDirty() {
+		if (!mDirty.getAndSet(false)) {
+			return;
+		}
+		try {
+			save();
+		} catch (IOException e) {
+			mDirty.set(true);
+			sLogger.log(Level.WARNING, "Failed to save library index " + mFile + ". " + e.getMessage());
+		}
+	}
+
+	private void save() throws IOException {
+		// Newly scanned directories win over whatever was in the old file
+		Map<String, DirListing> all = new HashMap<>();
+		for (Map.Entry<String, Integer> e : mMappedOffsets.entrySet()) {
+			all.put(e.getKey(), readListing(mMapped, e.getValue()));
+		}
+		all.putAll(mScanned);
+
+		List<byte[]> chunks = new ArrayList<>();
+		int size = 12;
+		for (Map.Entry<String, DirListing> e : all.entrySet()) {
+			if (isRemoved(e.getKey())) {
+				continue;
+			}
+			byte[] chunk = encode(e.getKey(), e.getValue());
+			chunks.add(chunk);
+			size += chunk.length;
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		buf.putInt(MAGIC);
+		buf.putInt(VERSION);
+		buf.putInt(chunks.size());
+		for (byte[] chunk : chunks) {
+			buf.put(chunk);
+		}
+		buf.flip();
+
+		// Write to a temp file then swap it in so a crash mid-write never leaves us
+		// with a half written index. Our mapping of the old file stays valid after the
+		// swap and anything newer is in mScanned, so there is no need to remap.
+		Files.createDirectories(mFile.getParent());
+		Path tmp = mFile.resolveSibling(mFile.getFileName() + ".tmp");
+		try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (buf.hasRemaining()) {
+				fc.write(buf);
+			}
+		}
+		Files.move(tmp, mFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		sLogger.log(Level.FINE, "Saved library index with " + chunks.size() + " directories to " + mFile);
+	}
+
+	/**
+	 * Checks if a directory, or one it is in, was found to be gone by
+	 * {@link #put(Path, long, List, List, List)}.
+	 */
+	private boolean isRemoved(String dir) {
+		if (mRemoved.isEmpty()) {
+			return false;
+		}
+		for (Path p = Path.of(dir); null != p; p = p.getParent()) {
+			if (mRemoved.contains(p.toString())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Map<String, Integer> readDirOffsets(ByteBuffer buf) throws IOException {
+		if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+			throw new IOException("Not a version " + VERSION + " library index");
+		}
+		int count = buf.getInt(8);
+		Map<String, Integer> offsets = new HashMap<>(count * 2);
+		int pos = 12;
+		for (int i = 0; i < count; i++) {
+			int entryLen = buf.getInt(pos);
+			offsets.put(readString(buf, pos + 4), pos);
+			pos += 4 + entryLen;
+		}
+		return offsets;
+	}
+
+	/**
+	 * Layout of a single directory entry: int entryLen, string dir, long mtimeMs,
+	 * then the music files, sub-directories, and links each as an int count
+	 * followed by that many strings. Where a string is an int byte count followed
+	 * by UTF-8 bytes.
+	 */
+	private static byte[] encode(String dir, DirListing listing) {
+		List<byte[]> strs = new ArrayList<>();
+		strs.add(dir.getBytes(StandardCharsets.UTF_8));
+		int len = 4 + strs.get(0).length + 8;
+		String[][] arrays = { listing.musicFiles, listing.subDirs, listing.links };
+		for (String[] array : arrays) {
+			len += 4;
+			for (String str : array) {
+				byte[] b = str.getBytes(StandardCharsets.UTF_8);
+				strs.add(b);
+				len += 4 + b.length;
+			}
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate(4 + len);
+		buf.putInt(len);
+		int i = 0;
+		putString(buf, strs.get(i++));
+		buf.putLong(listing.mtimeMs);
+		for (String[] array : arrays) {
+			buf.putInt(array.length);
+			for (int a = 0; a < array.length; a++) {
+				putString(buf, strs.get(i++));
+			}
+		}
+		return buf.array();
+	}
+
+	private static DirListing readListing(ByteBuffer buf, int pos) {
+		// skip the entry length and directory name
+		pos += 4;
+		pos += 4 + buf.getInt(pos);
+		long mtimeMs = buf.getLong(pos);
+		pos += 8;
+		String[][] arrays = new String[3][];
+		for (int a = 0; a < arrays.length; a++) {
+			arrays[a] = new String[buf.getInt(pos)];
+			pos += 4;
+			for (int i = 0; i < arrays[a].length; i++) {
+				arrays[a][i] = readString(buf, pos);
+				pos += 4 + buf.getInt(pos);
+			}
+		}
+		return new DirListing(mtimeMs, arrays[0], arrays[1], arrays[2]);
+	}
+
+	private static void putString(ByteBuffer buf, byte[] utf8) {
+		buf.putInt(utf8.length);
+		buf.put(utf8);
+	}
+
+	private static String readString(ByteBuffer buf, int pos) {
+		// Absolute reads only. The mapped buffer is shared by all scanner threads.
+		byte[] b = new byte[buf.getInt(pos)];
+		buf.get(pos + 4, b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The contents of a single directory as of its last scan.
+	 */
+	public static class DirListing {
+		public final long mtimeMs;
+		public final String[] musicFiles;
+		public final String[] subDirs;
+		public final String[] links;
+
+		DirListing(long mtimeMs, String[] musicFiles, String[] subDirs, String[] links) {
+			this.mtimeMs = mtimeMs;
+			this.musicFiles = musicFiles;
+			this.subDirs = subDirs;
+			this.links = links;
+		}
+	}
+}
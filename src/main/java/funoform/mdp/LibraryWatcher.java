@@ -0,0 +1,229 @@
+package funoform.mdp;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the directories the queued songs came from and reports songs being
+ * added or removed, so the queue can be updated without rescanning the whole
+ * directory tree.
+ *
+ * Renaming a song is reported as the old name being removed then the new name
+ * being added. When watching recursively, a newly created sub-directory is
+ * scanned for songs and then watched as well.
+ */
+public class LibraryWatcher {
+	private static final Logger sLogger = Logger.getLogger(LibraryWatcher.class.getName());
+	/**
+	 * Linux only allows 8192 inotify watches per user by default, shared by every
+	 * app that user runs. Don't hog them all.
+	 */
+	private static final int MAX_WATCHED_DIRS = 4096;
+
+	private final ILibraryChangeListener mListener;
+	private final ConfigManager mCfg;
+	private final Supplier<LibraryIndex> mIndex;
+	private final WatchService mWatchService;
+	private final Map<WatchKey, Path> mWatchedDirs = new HashMap<>();
+	private final Thread mThread;
+	private boolean mRecursive = false;
+
+	/**
+	 * @param listener Notified of songs added or removed. Called from the
+	 *                 watcher's own thread.
+	 * @param cfg      Where the time limits and parallelism for searching new
+	 *                 directories come from.
+	 * @param index    Gets the library index new directories are searched with
+	 *                 and recorded in. It can be swapped out, so it is fetched
+	 *                 for every search.
+	 */
+	public LibraryWatcher(ILibraryChangeListener listener, ConfigManager cfg, Supplier<LibraryIndex> index)
+			throws IOException {
+		mListener = listener;
+		mCfg = cfg;
+		mIndex = index;
+		mWatchService = FileSystems.getDefault().newWatchService();
+		mThread = new Thread(this::processEvents, "LibraryWatcher");
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/**
+	 * Stops watching whatever we were watching and starts watching the
+	 * directories containing the specified songs.
+	 *
+	 * @param rootDir   The directory that was played.
+	 * @param songs     The songs queued from that directory.
+	 * @param recursive True if rootDir was played recursively, in which case
+	 *                  every directory between rootDir and each song is watched
+	 *                  so new sub-directories are noticed.
+	 */
+	public void watch(Path rootDir, Collection<Path> songs, boolean recursive) {
+		Set<Path> dirs = new LinkedHashSet<>();
+		dirs.add(rootDir);
+		if (recursive) {
+			for (Path song : songs) {
+				addDirsBetween(rootDir, song, dirs);
+			}
+		}
+
+		synchronized (mWatchedDirs) {
+			unwatchAll();
+			mRecursive = recursive;
+			for (Path dir : dirs) {
+				register(dir);
+			}
+		}
+		sLogger.log(Level.FINE, "Watching " + dirs.size() + " directories for changes");
+	}
+
+	/**
+	 * Stops watching everything.
+	 */
+	public void unwatchAll() {
+		synchronized (mWatchedDirs) {
+			for (WatchKey key : mWatchedDirs.keySet()) {
+				key.cancel();
+			}
+			mWatchedDirs.clear();
+		}
+	}
+
+	/**
+	 * Adds every directory between the root directory and a song.
+	 */
+	private static void addDirsBetween(Path rootDir, Path song, Set<Path> dirs) {
+		// walk up until we hit a directory we already know about
+		Path dir = song.getParent();
+		while (null != dir && dir.startsWith(rootDir) && dirs.add(dir)) {
+			dir = dir.getParent();
+		}
+	}
+
+	private void register(Path dir) {
+		if (mWatchedDirs.size() >= MAX_WATCHED_DIRS) {
+			sLogger.log(Level.FINE, "Not watching " + dir + " as we are already watching too many directories");
+			return;
+		}
+		try {
+			WatchKey key = dir.register(mWatchService, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE);
+			mWatchedDirs.put(key, dir);
+		} catch (IOException | UnsupportedOperationException e) {
+			// Some network file systems can't be watched. Oh well, the user can always
+			// replay the directory to pick up changes.
+			sLogger.log(Level.FINE, "Unable to watch directory " + dir + ". " + e.getMessage());
+		}
+	}
+
+	private void processEvents() {
+		while (!Thread.currentThread().isInterrupted()) {
+			WatchKey key;
+			try {
+				key = mWatchService.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ClosedWatchServiceException e) {
+				return;
+			}
+
+			Path dir;
+			synchronized (mWatchedDirs) {
+				dir = mWatchedDirs.get(key);
+			}
+			if (null != dir) {
+				for (WatchEvent<?> event : key.pollEvents()) {
+					try {
+						handleEvent(dir, event);
+					} catch (Exception e) {
+						sLogger.log(Level.WARNING, "Exception while handling change in " + dir + ". " + e.getMessage());
+					}
+				}
+			}
+			key.reset();
+		}
+	}
+
+	private void handleEvent(Path dir, WatchEvent<?> event) throws IOException {
+		if (StandardWatchEventKinds.OVERFLOW == event.kind()) {
+			sLogger.log(Level.WARNING, "Too many changes in " + dir + " to track. Replay it to pick up all changes.");
+			return;
+		}
+
+		Path changed = dir.resolve((Path) event.context());
+		if (StandardWatchEventKinds.ENTRY_DELETE == event.kind()) {
+			// We can't tell if this was a song or a directory as it is already gone
+			mListener.removed(changed);
+		} else if (Files.isDirectory(changed)) {
+			boolean recursive;
+			synchronized (mWatchedDirs) {
+				recursive = mRecursive;
+			}
+			if (recursive) {
+				// Watch the new directory before scanning it. A song copied in meanwhile is
+				// then reported twice rather than not at all. The queue ignores duplicates.
+				synchronized (mWatchedDirs) {
+					register(changed);
+				}
+				LibraryIndex index = mIndex.get();
+				List<Path> songs = FileUtils.listMusicFiles(changed, true, mCfg.getMaxListFilesWaitTimeSec(),
+						mCfg.getMaxDirReadTimeSec(), mCfg.getScanParallelism(), index);
+				index.saveInBackground();
+				Set<Path> dirs = new LinkedHashSet<>();
+				dirs.add(changed);
+				for (Path song : songs) {
+					addDirsBetween(changed, song, dirs);
+				}
+				synchronized (mWatchedDirs) {
+					for (Path d : dirs) {
+						if (!mWatchedDirs.containsValue(d)) {
+							register(d);
+						}
+					}
+				}
+				if (!songs.isEmpty()) {
+					mListener.added(songs);
+				}
+			}
+		} else if (AudioFileDetector.isPlayable(changed, Files.readAttributes(changed, BasicFileAttributes.class))) {
+			List<Path> songs = new ArrayList<>();
+			songs.add(changed);
+			mListener.added(songs);
+		}
+	}
+
+	/**
+	 * How the {@link LibraryWatcher} reports changes to the watched directories.
+	 */
+	public interface ILibraryChangeListener {
+		/**
+		 * @param songs Songs that were created or renamed into a watched directory.
+		 */
+		public void added(List<Path> songs);
+
+		/**
+		 * @param path A song or directory that was deleted or renamed away. If a
+		 *             directory, every song under it is gone.
+		 */
+		public void removed(Path path);
+	}
+}
@@ -0,0 +1,708 @@
+package funoform.mdp;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import funoform.mdp.types.SongTags;
+
+/**
+ * Finds songs anywhere in the library by their tags or file names, not just
+ * the songs queued. Fed from the {@link LibraryIndex}, and the songs found
+ * since, with whatever tags the {@link TagCache} has for them.
+ *
+ * Tags are kept a column at a time rather than as an object per song. Artist,
+ * album, and genre are each a number into a dictionary of the names seen, since
+ * a library has far fewer of those than songs. Year and track number are plain
+ * int arrays. So a song costs a handful of ints, and filtering every song by
+ * year is one walk along one array.
+ *
+ * Every word of every song's title, artist, album, genre, year, file name, and
+ * directory name is in an inverted index: for each word, the rows of the songs with that word.
+ * A search looks up each of its words and keeps only the rows in every list,
+ * starting from the shortest list, so it only looks at songs that could match.
+ *
+ * Rows are only ever added to the end, which keeps every list of rows sorted
+ * for free. A song whose tags change gets a new row and its old row is marked
+ * dead. Dead rows are thrown away once there are enough of them.
+ *
+ * Changes are made on a background thread in the order they were asked for,
+ * so indexing a whole library never holds up the caller. Searches only find
+ * songs indexed so far. Thread safe.
+ */
+public class MetadataStore {
+	private static final Logger sLogger = Logger.getLogger(MetadataStore.class.getName());
+	private static final int NONE = -1;
+	private static final int EMPTY = -1;
+	private static final int DELETED = -2;
+	private static final int INITIAL_CAPACITY = 16;
+	/**
+	 * Don't bother throwing away dead rows until there are at least this many.
+	 */
+	private static final int MIN_DEAD_TO_COMPACT = 4096;
+	/**
+	 * Up to this many years, a search by year alone starts from the songs with
+	 * those years in the index rather than checking every song.
+	 */
+	private static final int MAX_YEARS_TO_LOOK_UP = 200;
+
+	private final Function<Path, SongTags> mTagsOf;
+	private final ExecutorService mIndexer = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "SearchIndexer");
+		t.setDaemon(true);
+		// never at the expense of playback
+		t.setPriority(Thread.MIN_PRIORITY);
+		return t;
+	});
+
+	// The columns, by row
+	private CompactPathList mSongs = new CompactPathList();
+	private int[] mHash = new int[INITIAL_CAPACITY];
+	private int[] mArtist = new int[INITIAL_CAPACITY];
+	private int[] mAlbum = new int[INITIAL_CAPACITY];
+	private int[] mGenre = new int[INITIAL_CAPACITY];
+	private int[] mYear = new int[INITIAL_CAPACITY];
+	private int[] mTrack = new int[INITIAL_CAPACITY];
+	private BitSet mDead = new BitSet();
+	private int mNumDead = 0;
+
+	private Dictionary mArtists = new Dictionary();
+	private Dictionary mAlbums = new Dictionary();
+	private Dictionary mGenres = new Dictionary();
+
+	// The rows with each word in them
+	private Map<String, Rows> mIndex = new HashMap<>();
+
+	// The live row of each song, by the hash of its path. Open addressing with
+	// linear probing, the same as the PlayQueue.
+	private int[] mTable = newTable(INITIAL_CAPACITY * 2);
+	private int mTableUsed = 0;
+
+	/**
+	 * @param tagsOf Gets a song's tags, or null if they aren't known yet. Must be
+	 *               quick, it is called for every song added.
+	 */
+	public MetadataStore(Function<Path, SongTags> tagsOf) {
+		mTagsOf = tagsOf;
+	}
+
+	/**
+	 * Indexes every song in the library index, along with whatever tags are known
+	 * for them. Decodes the whole index, so it is done in the background.
+	 */
+	public void addLibrary(LibraryIndex library) {
+		mIndexer.execute(() -> {
+			long start = System.currentTimeMillis();
+			library.forEach((dir, listing) -> {
+				for (String name : listing.musicFiles) {
+					doAdd(dir.resolve(name));
+				}
+			});
+			sLogger.log(Level.FINE, "Indexed " + size() + " songs from the library index in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		});
+	}
+
+	/**
+	 * Indexes songs just found, along with whatever tags are known for them.
+	 * Songs already indexed are left as they are.
+	 */
+	public void add(List<Path> songs) {
+		mIndexer.execute(() -> {
+			for (Path song : songs) {
+				doAdd(song);
+			}
+		});
+	}
+
+	/**
+	 * Forgets a song that is gone, or every song in a directory that is gone.
+	 */
+	public void remove(Path path) {
+		mIndexer.execute(() -> doRemove(path));
+	}
+
+	/**
+	 * Re-indexes a song whose tags were just read. Ignored if the song isn't
+	 * indexed. If it is added later its tags are looked up then.
+	 */
+	public void tagsChanged(Path song, SongTags tags) {
+		mIndexer.execute(() -> doTagsChanged(song, tags));
+	}
+
+	/**
+	 * @see #search(String, int)
+	 */
+	public List<Path> search(String query) {
+		return search(query, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Finds the songs matching every word of the query, ignoring case and
+	 * accents. A word matches a whole word of a song's title, artist, album,
+	 * genre, year, or file name. A word can be limited to one of these:
+	 * <ul>
+	 * <li>artist:word, album:word, or genre:word. Put several words in quotes,
+	 * e.g. artist:"pink floyd".</li>
+	 * <li>year:1979 or year:1970-1979, track:3 or track:1-3.</li>
+	 * </ul>
+	 *
+	 * @param maxResults Stop after finding this many songs.
+	 * @return The songs found in the order they were indexed, or nothing for an
+	 *         empty query.
+	 */
+	public synchronized List<Path> search(String query, int maxResults) {
+		Query q = Query.parse(query);
+		if (q.isEmpty()) {
+			return new CompactPathList();
+		}
+
+		// Every row with all the words, found by walking the shortest list of rows
+		// and checking the others for each of those
+		int[] rows = null;
+		int count = mSongs.size();
+		if (!q.words.isEmpty()) {
+			List<Rows> lists = new ArrayList<>(q.words.size());
+			for (String word : q.words) {
+				Rows r = mIndex.get(word);
+				if (null == r) {
+					return new CompactPathList();
+				}
+				lists.add(r);
+			}
+			lists.sort(Comparator.comparingInt(r -> r.size));
+			rows = Arrays.copyOf(lists.get(0).rows, lists.get(0).size);
+			count = rows.length;
+			for (int i = 1; i < lists.size() && 0 < count; i++) {
+				count = lists.get(i).retainAll(rows, count);
+			}
+		} else if ((long) q.maxYear - q.minYear < MAX_YEARS_TO_LOOK_UP) {
+			// Years are words too. Their lists together, in order, are every song from
+			// those years.
+			BitSet inYears = new BitSet(mSongs.size());
+			for (int year = q.minYear; year <= q.maxYear; year++) {
+				Rows r = mIndex.get(String.valueOf(year));
+				for (int i = 0; null != r && i < r.size; i++) {
+					inYears.set(r.rows[i]);
+				}
+			}
+			rows = inYears.stream().toArray();
+			count = rows.length;
+		}
+
+		// Then narrow those down by their columns
+		byte[] artistOk = (null == q.artist) ? null : new byte[mArtists.size()];
+		byte[] albumOk = (null == q.album) ? null : new byte[mAlbums.size()];
+		byte[] genreOk = (null == q.genre) ? null : new byte[mGenres.size()];
+		int[] found = new int[Math.min(count, maxResults)];
+		int numFound = 0;
+		boolean hasDead = 0 < mNumDead;
+		for (int i = 0; i < count && numFound < found.length; i++) {
+			int row = (null == rows) ? i : rows[i];
+			int year = mYear[row];
+			int track = mTrack[row];
+			if (year < q.minYear || year > q.maxYear || track < q.minTrack || track > q.maxTrack
+					|| (hasDead && mDead.get(row))) {
+				continue;
+			}
+			if ((null != artistOk && !mArtists.matches(mArtist[row], q.artist, artistOk))
+					|| (null != albumOk && !mAlbums.matches(mAlbum[row], q.album, albumOk))
+					|| (null != genreOk && !mGenres.matches(mGenre[row], q.genre, genreOk))) {
+				continue;
+			}
+			found[numFound++] = row;
+		}
+		return mSongs.extract(found, numFound);
+	}
+
+	/**
+	 * @return How many songs are indexed.
+	 */
+	public synchronized int size() {
+		return mSongs.size() - mNumDead;
+	}
+
+	private synchronized void doAdd(Path song) {
+		if (NONE == findRow(song)) {
+			addRow(song, mTagsOf.apply(song));
+		}
+	}
+
+	private synchronized void doRemove(Path path) {
+		int row = findRow(path);
+		if (NONE != row) {
+			killRow(row);
+		} else {
+			// A directory, which means checking every song. Rare enough not to be worth
+			// indexing the songs by directory as well.
+			for (row = 0; row < mSongs.size(); row++) {
+				if (!mDead.get(row) && mSongs.get(row).startsWith(path)) {
+					killRow(row);
+				}
+			}
+		}
+		compactIfWorthIt();
+	}
+
+	private synchronized void doTagsChanged(Path song, SongTags tags) {
+		int row = findRow(song);
+		if (NONE != row) {
+			killRow(row);
+			addRow(song, tags);
+			compactIfWorthIt();
+		}
+	}
+
+	private void addRow(Path song, SongTags tags) {
+		int row = mSongs.size();
+		mSongs.add(song);
+		ensureCapacity(row + 1);
+		mHash[row] = mix(song.hashCode());
+		tableInsert(row);
+
+		mArtist[row] = NONE;
+		mAlbum[row] = NONE;
+		mGenre[row] = NONE;
+		mYear[row] = 0;
+		mTrack[row] = 0;
+		if (null != tags) {
+			mArtist[row] = mArtists.idOf(tags.artist);
+			mAlbum[row] = mAlbums.idOf(tags.album);
+			mGenre[row] = mGenres.idOf(tags.genre);
+			mYear[row] = tags.year;
+			mTrack[row] = tags.trackNumber;
+			indexWords(row, tags.title);
+			indexWords(row, tags.artist);
+			indexWords(row, tags.album);
+			indexWords(row, tags.genre);
+			if (0 < tags.year) {
+				indexWord(row, String.valueOf(tags.year));
+			}
+		}
+
+		// Songs without tags, or whose tags haven't been read yet, are usually named
+		// after what they are, in a directory named after the album or artist
+		Path fileName = song.getFileName();
+		if (null != fileName) {
+			String name = fileName.toString();
+			int dot = name.lastIndexOf('.');
+			indexWords(row, (0 < dot) ? name.substring(0, dot) : name);
+		}
+		Path dir = song.getParent();
+		if (null != dir && null != dir.getFileName()) {
+			indexWords(row, dir.getFileName().toString());
+		}
+	}
+
+	private void killRow(int row) {
+		tableRemove(row);
+		mDead.set(row);
+		mNumDead++;
+	}
+
+	private void indexWords(int row, String text) {
+		if (null != text) {
+			for (String word : words(text)) {
+				indexWord(row, word);
+			}
+		}
+	}
+
+	private void indexWord(int row, String word) {
+		Rows r = mIndex.get(word);
+		if (null == r) {
+			r = new Rows();
+			mIndex.put(word, r);
+		}
+		r.add(row);
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > mHash.length) {
+			int newCapacity = Math.max(capacity, mHash.length + (mHash.length >> 1));
+			mHash = Arrays.copyOf(mHash, newCapacity);
+			mArtist = Arrays.copyOf(mArtist, newCapacity);
+			mAlbum = Arrays.copyOf(mAlbum, newCapacity);
+			mGenre = Arrays.copyOf(mGenre, newCapacity);
+			mYear = Arrays.copyOf(mYear, newCapacity);
+			mTrack = Arrays.copyOf(mTrack, newCapacity);
+		}
+	}
+
+	/**
+	 * Throws away the dead rows once they are over half of all rows, renumbering
+	 * the rest in the same order so every list of rows stays sorted.
+	 */
+	private void compactIfWorthIt() {
+		int numRows = mSongs.size();
+		if (mNumDead < MIN_DEAD_TO_COMPACT || mNumDead <= numRows / 2) {
+			return;
+		}
+		int[] newRow = new int[numRows];
+		int[] live = new int[numRows - mNumDead];
+		int numLive = 0;
+		for (int row = 0; row < numRows; row++) {
+			if (mDead.get(row)) {
+				newRow[row] = NONE;
+			} else {
+				newRow[row] = numLive;
+				live[numLive++] = row;
+			}
+		}
+
+		mSongs = mSongs.extract(live, numLive);
+		mHash = select(mHash, live);
+		mArtist = select(mArtist, live);
+		mAlbum = select(mAlbum, live);
+		mGenre = select(mGenre, live);
+		mYear = select(mYear, live);
+		mTrack = select(mTrack, live);
+		mDead = new BitSet();
+		mNumDead = 0;
+		for (Iterator<Rows> it = mIndex.values().iterator(); it.hasNext();) {
+			if (!it.next().renumber(newRow)) {
+				it.remove();
+			}
+		}
+		mTable = newTable(Math.max(INITIAL_CAPACITY, numLive) * 2);
+		mTableUsed = 0;
+		for (int row = 0; row < numLive; row++) {
+			tableInsert(row);
+		}
+		sLogger.log(Level.FINE, "Compacted the search index down to " + numLive + " songs");
+	}
+
+	private static int[] select(int[] column, int[] rows) {
+		int[] ret = new int[Math.max(INITIAL_CAPACITY, rows.length)];
+		for (int i = 0; i < rows.length; i++) {
+			ret[i] = column[rows[i]];
+		}
+		return ret;
+	}
+
+	/**
+	 * Splits text into lower case words without accents. Anything that isn't a
+	 * letter or digit separates words.
+	 */
+	static List<String> words(String text) {
+		String folded = FileNameOrder.fold(text);
+		List<String> ret = new ArrayList<>();
+		int start = -1;
+		for (int i = 0; i <= folded.length(); i++) {
+			boolean isWordChar = i < folded.length() && Character.isLetterOrDigit(folded.charAt(i));
+			if (isWordChar && -1 == start) {
+				start = i;
+			} else if (!isWordChar && -1 != start) {
+				ret.add(folded.substring(start, i));
+				start = -1;
+			}
+		}
+		return ret;
+	}
+
+	// ---- the hash table ----
+
+	private static int[] newTable(int capacity) {
+		int[] table = new int[Integer.highestOneBit(Math.max(2, capacity - 1)) << 1];
+		Arrays.fill(table, EMPTY);
+		return table;
+	}
+
+	private static int mix(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private int findRow(Path song) {
+		int mask = mTable.length - 1;
+		int h = mix(song.hashCode());
+		for (int slot = h & mask;; slot = (slot + 1) & mask) {
+			int row = mTable[slot];
+			if (EMPTY == row) {
+				return NONE;
+			}
+			if (DELETED != row && mHash[row] == h && mSongs.isAt(row, song)) {
+				return row;
+			}
+		}
+	}
+
+	private void tableInsert(int row) {
+		if (2 * (mTableUsed + 1) > mTable.length) {
+			// Too full, or too many deleted slots. Start over with a bigger table.
+			int[] old = mTable;
+			mTable = newTable(Math.max(INITIAL_CAPACITY, 4 * size()));
+			mTableUsed = 0;
+			for (int r : old) {
+				if (0 <= r) {
+					tableInsert(r);
+				}
+			}
+		}
+		int mask = mTable.length - 1;
+		int slot = mHash[row] & mask;
+		while (0 <= mTable[slot]) {
+			slot = (slot + 1) & mask;
+		}
+		if (EMPTY == mTable[slot]) {
+			mTableUsed++;
+		}
+		mTable[slot] = row;
+	}
+
+	private void tableRemove(int row) {
+		int mask = mTable.length - 1;
+		for (int slot = mHash[row] & mask;; slot = (slot + 1) & mask) {
+			if (EMPTY == mTable[slot]) {
+				return;
+			}
+			if (row == mTable[slot]) {
+				// leave a marker so the songs after it can still be found
+				mTable[slot] = DELETED;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * The rows with a word in them, in ascending order.
+	 */
+	private static class Rows {
+		int[] rows = new int[2];
+		int size = 0;
+
+		void add(int row) {
+			// a word can be in a song's title and album both
+			if (0 < size && rows[size - 1] == row) {
+				return;
+			}
+			if (size == rows.length) {
+				rows = Arrays.copyOf(rows, size * 2);
+			}
+			rows[size++] = row;
+		}
+
+		/**
+		 * Keeps only the candidate rows that are in here too. Both are sorted, so
+		 * each search starts where the last one left off. It gallops ahead in
+		 * doubling steps before binary searching, so it is quick both when the next
+		 * row is close by, as when both lists are long, and when it is far off.
+		 *
+		 * @return How many candidates are left, moved to the front.
+		 */
+		int retainAll(int[] candidates, int count) {
+			int kept = 0;
+			int from = 0;
+			for (int i = 0; i < count && from < size; i++) {
+				int want = candidates[i];
+				int step = 1;
+				int to = from;
+				while (to < size && rows[to] < want) {
+					from = to + 1;
+					to += step;
+					step <<= 1;
+				}
+				int at = Arrays.binarySearch(rows, from, Math.min(to + 1, size), want);
+				if (0 <= at) {
+					candidates[kept++] = want;
+					from = at + 1;
+				} else {
+					from = -(at + 1);
+				}
+			}
+			return kept;
+		}
+
+		/**
+		 * @return False if no rows are left.
+		 */
+		boolean renumber(int[] newRow) {
+			int kept = 0;
+			for (int i = 0; i < size; i++) {
+				int row = newRow[rows[i]];
+				if (NONE != row) {
+					rows[kept++] = row;
+				}
+			}
+			size = kept;
+			if (size < rows.length / 4) {
+				rows = Arrays.copyOf(rows, Math.max(2, size));
+			}
+			return 0 < size;
+		}
+	}
+
+	/**
+	 * Every different artist, album, or genre name, by number.
+	 */
+	private static class Dictionary {
+		private final List<String> mValues = new ArrayList<>();
+		private final Map<String, Integer> mIds = new HashMap<>();
+
+		/**
+		 * @return The name's number, or NONE for no name.
+		 */
+		int idOf(String value) {
+			if (null == value) {
+				return NONE;
+			}
+			Integer id = mIds.get(value);
+			if (null == id) {
+				id = mValues.size();
+				mValues.add(value);
+				mIds.put(value, id);
+			}
+			return id;
+		}
+
+		int size() {
+			return mValues.size();
+		}
+
+		/**
+		 * @param words Every word the name has to have.
+		 * @param known What we already worked out for each name in this search. 0 if
+		 *              not yet, 1 if it matched, 2 if it didn't.
+		 */
+		boolean matches(int id, List<String> words, byte[] known) {
+			if (NONE == id) {
+				return false;
+			}
+			if (0 == known[id]) {
+				known[id] = (byte) (words(mValues.get(id)).containsAll(words) ? 1 : 2);
+			}
+			return 1 == known[id];
+		}
+	}
+
+	/**
+	 * A search, picked apart.
+	 */
+	private static class Query {
+		final List<String> words = new ArrayList<>();
+		List<String> artist;
+		List<String> album;
+		List<String> genre;
+		int minYear = Integer.MIN_VALUE;
+		int maxYear = Integer.MAX_VALUE;
+		int minTrack = Integer.MIN_VALUE;
+		int maxTrack = Integer.MAX_VALUE;
+
+		static Query parse(String query) {
+			Query q = new Query();
+			for (String term : splitTerms(query)) {
+				int colon = term.indexOf(':');
+				String field = (0 < colon) ? term.substring(0, colon).toLowerCase(Locale.ROOT) : "";
+				String value = (0 < colon) ? term.substring(colon + 1).replace("\"", "") : term;
+				switch (field) {
+				case "artist":
+					q.artist = q.fieldWords(q.artist, value);
+					break;
+				case "album":
+					q.album = q.fieldWords(q.album, value);
+					break;
+				case "genre":
+					q.genre = q.fieldWords(q.genre, value);
+					break;
+				case "year":
+				case "track":
+					int[] range = parseRange(value);
+					if (null == range) {
+						q.words.addAll(words(term));
+					} else if ("year".equals(field)) {
+						q.minYear = range[0];
+						q.maxYear = range[1];
+					} else {
+						q.minTrack = range[0];
+						q.maxTrack = range[1];
+					}
+					break;
+				default:
+					q.words.addAll(words(term));
+					break;
+				}
+			}
+			return q;
+		}
+
+		/**
+		 * The field's words also go in the words looked up in the index, so we only
+		 * check the field of songs with those words somewhere.
+		 */
+		private List<String> fieldWords(List<String> sofar, String value) {
+			List<String> w = words(value);
+			if (w.isEmpty()) {
+				return sofar;
+			}
+			words.addAll(w);
+			if (null == sofar) {
+				return w;
+			}
+			sofar.addAll(w);
+			return sofar;
+		}
+
+		boolean isEmpty() {
+			return words.isEmpty() && null == artist && null == album && null == genre
+					&& Integer.MIN_VALUE == minYear && Integer.MIN_VALUE == minTrack;
+		}
+
+		/**
+		 * Splits on spaces, except inside quotes.
+		 */
+		private static List<String> splitTerms(String query) {
+			List<String> ret = new ArrayList<>();
+			StringBuilder sb = new StringBuilder();
+			boolean isQuoted = false;
+			for (int i = 0; i < query.length(); i++) {
+				char c = query.charAt(i);
+				if ('"' == c) {
+					isQuoted = !isQuoted;
+				}
+				if (Character.isWhitespace(c) && !isQuoted) {
+					if (0 < sb.length()) {
+						ret.add(sb.toString());
+						sb.setLength(0);
+					}
+				} else {
+					sb.append(c);
+				}
+			}
+			if (0 < sb.length()) {
+				ret.add(sb.toString());
+			}
+			return ret;
+		}
+
+		/**
+		 * @return The lowest and highest number in "1970-1979" or "1979", or null if
+		 *         it isn't either.
+		 */
+		private static int[] parseRange(String value) {
+			try {
+				int dash = value.indexOf('-', 1);
+				if (-1 == dash) {
+					int n = Integer.parseInt(value.trim());
+					return new int[] { n, n };
+				}
+				int from = Integer.parseInt(value.substring(0, dash).trim());
+				int to = Integer.parseInt(value.substring(dash + 1).trim());
+				return new int[] { Math.min(from, to), Math.max(from, to) };
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+	}
+}
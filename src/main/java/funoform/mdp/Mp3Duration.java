@@ -0,0 +1,310 @@
+package funoform.mdp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Works out how long an MP3 is from the first few KB of the file, without
+ * decoding any of it or reading its tags.
+ *
+ * Most encoders put a Xing (or "Info") or VBRI header in the first frame that
+ * says how many frames the song has. Every frame is the same number of samples,
+ * so that gives the exact length. LAME also records how much silence it added
+ * at the start and end, which we take off. Without one of those headers the
+ * song is assumed to be constant bit rate, so its length is just the size of
+ * the audio over the bit rate.
+ *
+ * What we found is remembered for as long as the file's size and modification
+ * time stay the same, so asking again is free.
+ */
+public class Mp3Duration {
+	/**
+	 * Enough to get past the first frame header and the Xing or VBRI header in it.
+	 */
+	private static final int READ_LEN = 4096;
+	private static final int ID3V2_HEADER_LEN = 10;
+	private static final int ID3V1_LEN = 128;
+	private static final int MAX_CACHED_DURATIONS = 10000;
+
+	// Bit rates in kbps by [MPEG 1 or not][layer - 1][index]
+	private static final int[][][] BIT_RATES = {
+			{ { 0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256 },
+					{ 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 },
+					{ 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 } },
+			{ { 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448 },
+					{ 0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384 },
+					{ 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320 } } };
+	// Sample rates for MPEG 1. Halved for MPEG 2, and quartered for MPEG 2.5.
+	private static final int[] SAMPLE_RATES = { 44100, 48000, 32000 };
+
+	private static final Map<Path, Known> sDurations = new ConcurrentHashMap<>();
+
+	// Just a bunch of static methods so don't let someone create this thing
+	private Mp3Duration() {
+	}
+
+	/**
+	 * @return How long the song is in seconds, or -1 if we can't tell.
+	 */
+	public static long getDurationSecs(Path path) {
+		long micros = getDurationMicros(path);
+		return (0 > micros) ? -1 : Math.round(micros / 1000000.0);
+	}
+
+	/**
+	 * @return How long the song is in microseconds, or -1 if we can't tell, such as
+	 *         when it isn't an MP3.
+	 */
+	public static long getDurationMicros(Path path) {
+		BasicFileAttributes attrs;
+		try {
+			attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (IOException | SecurityException e) {
+			return -1;
+		}
+		long size = attrs.size();
+		long mtimeMs = attrs.lastModifiedTime().toMillis();
+		Known k = sDurations.get(path);
+		if (null != k && k.size == size && k.mtimeMs == mtimeMs) {
+			return k.micros;
+		}
+
+		long micros;
+		try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+			Layout layout = readLayout(fc, size);
+			micros = (null == layout) ? -1 : layout.micros;
+		} catch (IOException | SecurityException e) {
+			micros = -1;
+		}
+
+		if (sDurations.size() >= MAX_CACHED_DURATIONS) {
+			sDurations.clear();
+		}
+		sDurations.put(path, new Known(size, mtimeMs, micros));
+		return micros;
+	}
+
+	/**
+	 * @return Where the audio is and what the first frame says about it, or null if
+	 *         this doesn't look like an MP3.
+	 */
+	static Layout readLayout(FileChannel fc, long fileSize) throws IOException {
+		// Skip over any ID3v2 tag, which can be big if there's album art in it
+		long audioStart = 0;
+		ByteBuffer id3 = readAt(fc, 0, ID3V2_HEADER_LEN);
+		if (ID3V2_HEADER_LEN == id3.limit() && 'I' == id3.get(0) && 'D' == id3.get(1) && '3' == id3.get(2)) {
+			// The size is 4 bytes of 7 bits each, not counting the header or footer
+			int tagSize = ((id3.get(6) & 0x7F) << 21) | ((id3.get(7) & 0x7F) << 14) | ((id3.get(8) & 0x7F) << 7)
+					| (id3.get(9) & 0x7F);
+			boolean hasFooter = 0 != (id3.get(5) & 0x10);
+			audioStart = ID3V2_HEADER_LEN + tagSize + (hasFooter ? ID3V2_HEADER_LEN : 0);
+		}
+
+		ByteBuffer buf = readAt(fc, audioStart, READ_LEN);
+		Frame frame = null;
+		int at = 0;
+		for (; at + 4 <= buf.limit(); at++) {
+			frame = Frame.parse(buf.getInt(at));
+			// A frame header's sync bits aren't unusual in junk, so make sure the next
+			// frame starts where this one says it ends, if we have it
+			if (null != frame) {
+				int nextAt = at + frame.length;
+				if (nextAt + 4 > buf.limit() || null != Frame.parse(buf.getInt(nextAt))) {
+					break;
+				}
+			}
+			frame = null;
+		}
+		if (null == frame) {
+			return null;
+		}
+
+		Layout layout = new Layout(audioStart + at, frame);
+		long numFrames = -1;
+		long numSamplesSkipped = 0;
+		int xingAt = at + 4 + frame.sideInfoLen;
+		int vbriAt = at + 4 + 32;
+		if (xingAt + 8 <= buf.limit() && (isTag(buf, xingAt, "Xing") || isTag(buf, xingAt, "Info"))) {
+			// LAME writes "Info" for constant bit rate and "Xing" for variable
+			layout.hasHeaderFrame = true;
+			layout.isVbr = isTag(buf, xingAt, "Xing");
+			int flags = buf.getInt(xingAt + 4);
+			int pos = xingAt + 8;
+			if (0 != (flags & 0x01) && pos + 4 <= buf.limit()) {
+				numFrames = buf.getInt(pos) & 0xFFFFFFFFL;
+				pos += 4;
+			}
+			// then optionally the byte count, table of contents, and quality
+			if (0 != (flags & 0x02) && pos + 4 <= buf.limit()) {
+				layout.tocBytes = buf.getInt(pos) & 0xFFFFFFFFL;
+				pos += 4;
+			}
+			if (0 != (flags & 0x04) && pos + 100 <= buf.limit()) {
+				layout.toc = new byte[100];
+				buf.get(pos, layout.toc);
+				pos += 100;
+			}
+			pos += (0 != (flags & 0x08)) ? 4 : 0;
+			if (pos + 24 <= buf.limit() && isTag(buf, pos, "LAME")) {
+				// 12 bits of encoder delay then 12 bits of padding, in samples
+				int delayPad = ((buf.get(pos + 21) & 0xFF) << 16) | ((buf.get(pos + 22) & 0xFF) << 8)
+						| (buf.get(pos + 23) & 0xFF);
+				numSamplesSkipped = (delayPad >> 12) + (delayPad & 0xFFF);
+			}
+		} else if (vbriAt + 18 <= buf.limit() && isTag(buf, vbriAt, "VBRI")) {
+			layout.hasHeaderFrame = true;
+			layout.isVbr = true;
+			numFrames = buf.getInt(vbriAt + 14) & 0xFFFFFFFFL;
+		}
+
+		// Don't count an ID3v1 tag at the end as audio
+		layout.audioEnd = fileSize;
+		ByteBuffer tail = readAt(fc, fileSize - ID3V1_LEN, 3);
+		if (3 == tail.limit() && 'T' == tail.get(0) && 'A' == tail.get(1) && 'G' == tail.get(2)) {
+			layout.audioEnd -= ID3V1_LEN;
+		}
+
+		if (0 < numFrames) {
+			long numSamples = Math.max(0, numFrames * frame.samplesPerFrame - numSamplesSkipped);
+			layout.micros = numSamples * 1000000 / frame.sampleRate;
+			return layout;
+		}
+
+		// Constant bit rate, so it's all in the size
+		long audioBytes = layout.audioEnd - layout.firstFrameAt;
+		if (0 >= audioBytes) {
+			return null;
+		}
+		layout.micros = audioBytes * 8000 / frame.bitRateKbps;
+		return layout;
+	}
+
+	static ByteBuffer readAt(FileChannel fc, long pos, int len) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(len);
+		if (0 > pos) {
+			return buf.flip();
+		}
+		while (buf.hasRemaining()) {
+			if (0 > fc.read(buf, pos + buf.position())) {
+				break;
+			}
+		}
+		return buf.flip();
+	}
+
+	private static boolean isTag(ByteBuffer buf, int at, String tag) {
+		for (int i = 0; i < tag.length(); i++) {
+			if (buf.get(at + i) != tag.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Where the audio is in an MP3, and what the first frame and any Xing header
+	 * say about it.
+	 */
+	static class Layout {
+		// Where the first frame header is in the file
+		final long firstFrameAt;
+		final Frame first;
+		// Just past the last frame, before any ID3v1 tag
+		long audioEnd;
+		long micros = -1;
+		// True if the first frame is a Xing or VBRI header rather than audio
+		boolean hasHeaderFrame = false;
+		boolean isVbr = false;
+		// The Xing header's table of contents. Entry i says how far into the bytes
+		// the song is i% of the way through, in 256ths. Null if it doesn't have one.
+		byte[] toc;
+		// How many bytes the table of contents is in 256ths of, counting from the
+		// first frame, or -1 if not given
+		long tocBytes = -1;
+
+		Layout(long firstFrameAt, Frame first) {
+			this.firstFrameAt = firstFrameAt;
+			this.first = first;
+		}
+	}
+
+	/**
+	 * What an MPEG audio frame header says about the frame.
+	 */
+	static class Frame {
+		final int header;
+		final int bitRateKbps;
+		final int sampleRate;
+		final int samplesPerFrame;
+		final int length;
+		// How far after the header the Xing header would be
+		final int sideInfoLen;
+
+		private Frame(int header, int bitRateKbps, int sampleRate, int samplesPerFrame, int length, int sideInfoLen) {
+			this.header = header;
+			this.bitRateKbps = bitRateKbps;
+			this.sampleRate = sampleRate;
+			this.samplesPerFrame = samplesPerFrame;
+			this.length = length;
+			this.sideInfoLen = sideInfoLen;
+		}
+
+		/**
+		 * @return The frame, or null if this isn't a valid frame header.
+		 */
+		static Frame parse(int header) {
+			// 11 sync bits, version (01 reserved), layer (00 reserved), bit rate index
+			// (1111 bad), sample rate index (11 reserved)
+			if (0xFFE00000 != (header & 0xFFE00000)) {
+				return null;
+			}
+			int version = (header >> 19) & 0x03;
+			int layer = 4 - ((header >> 17) & 0x03);
+			int bitRateIndex = (header >> 12) & 0x0F;
+			int sampleRateIndex = (header >> 10) & 0x03;
+			if (1 == version || 4 == layer || 0 == bitRateIndex || 15 == bitRateIndex || 3 == sampleRateIndex) {
+				return null;
+			}
+			boolean isMpeg1 = 3 == version;
+			int padding = (header >> 9) & 0x01;
+			boolean isMono = 3 == ((header >> 6) & 0x03);
+
+			int bitRateKbps = BIT_RATES[isMpeg1 ? 1 : 0][layer - 1][bitRateIndex];
+			// MPEG 2.5 is version 00, MPEG 2 is version 10
+			int sampleRate = SAMPLE_RATES[sampleRateIndex] >> (isMpeg1 ? 0 : (2 == version) ? 1 : 2);
+			int samplesPerFrame;
+			int length;
+			if (1 == layer) {
+				samplesPerFrame = 384;
+				length = (12000 * bitRateKbps / sampleRate + padding) * 4;
+			} else if (2 == layer || isMpeg1) {
+				samplesPerFrame = 1152;
+				length = 144000 * bitRateKbps / sampleRate + padding;
+			} else {
+				samplesPerFrame = 576;
+				length = 72000 * bitRateKbps / sampleRate + padding;
+			}
+			int sideInfoLen = isMpeg1 ? (isMono ? 17 : 32) : (isMono ? 9 : 17);
+			return new Frame(header, bitRateKbps, sampleRate, samplesPerFrame, length, sideInfoLen);
+		}
+	}
+
+	private static class Known {
+		final long size;
+		final long mtimeMs;
+		final long micros;
+
+		Known(long size, long mtimeMs, long micros) {
+			this.size = size;
+			this.mtimeMs = mtimeMs;
+			this.micros = micros;
+		}
+	}
+}
@@ -0,0 +1,364 @@
+package funoform.mdp;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import funoform.mdp.Mp3Duration.Frame;
+import funoform.mdp.Mp3Duration.Layout;
+
+/**
+ * Works out where in an MP3 file to start decoding to play it from part way
+ * through, so seeking doesn't mean decoding everything before it.
+ *
+ * How depends on the file. A VBR file with a Xing header has a table of
+ * contents giving how far through the bytes each percent of the song is. A
+ * constant bit rate file is the same number of bytes every second, so the
+ * offset can just be worked out. Anything else, such as a VBR file with no
+ * Xing header, has its frame headers read once in the background to find
+ * where every frame starts. Until that is done seeks in it are a guess from
+ * its average bit rate.
+ *
+ * Each of those is then a sum or a lookup, and whichever is used, we then look
+ * forward from there for the next frame header so decoding starts on a frame.
+ *
+ * The tables are remembered for the last few songs, for as long as the file's
+ * size and modification time stay the same.
+ */
+public class Mp3SeekTable {
+	private static final Logger sLogger = Logger.getLogger(Mp3SeekTable.class.getName());
+	private static final int MAX_CACHED_TABLES = 32;
+	/**
+	 * How far to look for a frame header from where we guessed one would be. More
+	 * than the longest frame.
+	 */
+	private static final int SYNC_SEARCH_LEN = 8192;
+	private static final int SCAN_BUF_LEN = 64 * 1024;
+	/**
+	 * How many places through a file without a Xing header to check the bit rate
+	 * is the same as the first frame's, before believing it is constant.
+	 */
+	private static final int NUM_CBR_CHECKS = 3;
+	/**
+	 * The header bits every frame in a song has the same. The sync bits, version,
+	 * layer and sample rate.
+	 */
+	private static final int SAME_EVERY_FRAME = 0xFFFE0C00;
+
+	private static final Map<Path, Table> sTables = new ConcurrentHashMap<>();
+	private static final ExecutorService sScanner = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "SeekIndexer");
+		t.setDaemon(true);
+		// never at the expense of playback
+		t.setPriority(Thread.MIN_PRIORITY);
+		return t;
+	});
+
+	// Just a bunch of static methods so don't let someone create this thing
+	private Mp3SeekTable() {
+	}
+
+	/**
+	 * Gets the song's table ready, reading its frames in the background if that is
+	 * what it takes. Call when a song starts playing, so it is there to seek with.
+	 */
+	public static void prepare(Path song) {
+		getTable(song);
+	}
+
+	/**
+	 * Opens a song part way through.
+	 *
+	 * @param startMicros How far into the song to start.
+	 * @return The song's encoded audio from the first frame header at or after
+	 *         startMicros, or null if we can't tell where that is, such as when it
+	 *         isn't an MP3. Close it when done.
+	 */
+	public static InputStream openAt(Path song, long startMicros) {
+		long offset = getOffset(song, startMicros);
+		if (-1 == offset) {
+			return null;
+		}
+		try {
+			FileChannel fc = FileChannel.open(song, StandardOpenOption.READ);
+			fc.position(offset);
+			// decoders mark and reset the start to work out the format
+			return new BufferedInputStream(Channels.newInputStream(fc));
+		} catch (IOException | SecurityException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return Where in the file the first frame at or after startMicros starts,
+	 *         or -1 if we can't tell.
+	 */
+	public static long getOffset(Path song, long startMicros) {
+		Table t = getTable(song);
+		if (null == t) {
+			return -1;
+		}
+		long guess = t.offsetOf(Math.max(0, startMicros));
+		if (t.isExact) {
+			return guess;
+		}
+		try (FileChannel fc = FileChannel.open(song, StandardOpenOption.READ)) {
+			return syncFrom(fc, guess, t.layout.audioEnd, t.layout.first);
+		} catch (IOException | SecurityException e) {
+			return -1;
+		}
+	}
+
+	private static Table getTable(Path song) {
+		BasicFileAttributes attrs;
+		try {
+			attrs = Files.readAttributes(song, BasicFileAttributes.class);
+		} catch (IOException | SecurityException e) {
+			return null;
+		}
+		long size = attrs.size();
+		long mtimeMs = attrs.lastModifiedTime().toMillis();
+		Table t = sTables.get(song);
+		if (null != t && t.size == size && t.mtimeMs == mtimeMs) {
+			return t;
+		}
+
+		try (FileChannel fc = FileChannel.open(song, StandardOpenOption.READ)) {
+			Layout layout = Mp3Duration.readLayout(fc, size);
+			if (null == layout || 0 >= layout.micros) {
+				return null;
+			}
+			if (null != layout.toc && 0 < layout.tocBytes) {
+				t = new TocTable(size, mtimeMs, layout);
+			} else if (!layout.isVbr && isConstantBitRate(fc, layout)) {
+				t = new CbrTable(size, mtimeMs, layout);
+			} else {
+				// guess from the average bit rate until we know where the frames are
+				t = new CbrTable(size, mtimeMs, layout);
+				scanInBackground(song, t);
+			}
+		} catch (IOException | SecurityException e) {
+			return null;
+		}
+
+		if (sTables.size() >= MAX_CACHED_TABLES) {
+			sTables.clear();
+		}
+		sTables.put(song, t);
+		return t;
+	}
+
+	/**
+	 * Checks the bit rate at a few places through the song is the same as the
+	 * first frame's. A file without a Xing header is nearly always constant bit
+	 * rate, but not always.
+	 */
+	private static boolean isConstantBitRate(FileChannel fc, Layout layout) throws IOException {
+		long audioLen = layout.audioEnd - layout.firstFrameAt;
+		for (int i = 1; i <= NUM_CBR_CHECKS; i++) {
+			long at = syncFrom(fc, layout.firstFrameAt + audioLen * i / (NUM_CBR_CHECKS + 1), layout.audioEnd,
+					layout.first);
+			if (-1 == at) {
+				// too short to tell, or corrupt. Either way a guess is the best we can do.
+				continue;
+			}
+			ByteBuffer header = Mp3Duration.readAt(fc, at, 4);
+			Frame f = Frame.parse(header.getInt(0));
+			if (f.bitRateKbps != layout.first.bitRateKbps) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param first The song's first frame, which every frame has the same version,
+	 *              layer and sample rate as.
+	 * @return Where the first frame header at or after pos is, or -1 if there isn't
+	 *         one near enough. A frame header counts if another follows where it
+	 *         says it ends, as the sync bits aren't unusual in the audio.
+	 */
+	private static long syncFrom(FileChannel fc, long pos, long audioEnd, Frame first) throws IOException {
+		ByteBuffer buf = Mp3Duration.readAt(fc, pos, SYNC_SEARCH_LEN);
+		int firstHeader = first.header & SAME_EVERY_FRAME;
+		for (int at = 0; at + 4 <= buf.limit() && pos + at < audioEnd; at++) {
+			int header = buf.getInt(at);
+			if (firstHeader != (header & SAME_EVERY_FRAME)) {
+				continue;
+			}
+			Frame f = Frame.parse(header);
+			if (null == f) {
+				continue;
+			}
+			int nextAt = at + f.length;
+			if (pos + nextAt >= audioEnd) {
+				// the last frame
+				return pos + at;
+			}
+			if (nextAt + 4 <= buf.limit() && firstHeader == (buf.getInt(nextAt) & SAME_EVERY_FRAME)
+					&& null != Frame.parse(buf.getInt(nextAt))) {
+				return pos + at;
+			}
+		}
+		return -1;
+	}
+
+	private static void scanInBackground(Path song, Table guess) {
+		sScanner.execute(() -> {
+			if (guess != sTables.get(song)) {
+				// changed or forgotten since
+				return;
+			}
+			long start = System.currentTimeMillis();
+			try (FileChannel fc = FileChannel.open(song, StandardOpenOption.READ)) {
+				ScanTable t = ScanTable.scan(fc, guess);
+				sTables.replace(song, guess, t);
+				sLogger.log(Level.FINE, "Found " + t.numFrames + " frames in " + song + " in "
+						+ (System.currentTimeMillis() - start) + " ms");
+			} catch (IOException | SecurityException e) {
+				sLogger.log(Level.FINE, "Unable to read the frames of " + song + ": " + e.getMessage());
+			}
+		});
+	}
+
+	/**
+	 * How to find where in a file a time in the song is.
+	 */
+	private abstract static class Table {
+		final long size;
+		final long mtimeMs;
+		final Layout layout;
+		// True if offsetOf() gives the start of a frame, not somewhere near one
+		final boolean isExact;
+
+		Table(long size, long mtimeMs, Layout layout, boolean isExact) {
+			this.size = size;
+			this.mtimeMs = mtimeMs;
+			this.layout = layout;
+			this.isExact = isExact;
+		}
+
+		/**
+		 * @return Where in the file the song is micros in.
+		 */
+		abstract long offsetOf(long micros);
+
+		/**
+		 * @return Where the first frame with audio in it starts.
+		 */
+		long audioStart() {
+			return layout.firstFrameAt + (layout.hasHeaderFrame ? layout.first.length : 0);
+		}
+	}
+
+	/**
+	 * Uses a Xing header's table of contents. Between entries we go in a straight
+	 * line.
+	 */
+	private static class TocTable extends Table {
+		TocTable(long size, long mtimeMs, Layout layout) {
+			super(size, mtimeMs, layout, false);
+		}
+
+		@Override
+		long offsetOf(long micros) {
+			double percent = Math.min(99.999, 100.0 * micros / layout.micros);
+			int i = (int) percent;
+			int a = layout.toc[i] & 0xFF;
+			int b = (99 > i) ? layout.toc[i + 1] & 0xFF : 256;
+			double fraction = (a + (b - a) * (percent - i)) / 256;
+			return Math.max(audioStart(), layout.firstFrameAt + (long) (fraction * layout.tocBytes));
+		}
+	}
+
+	/**
+	 * The same number of bytes every second, which is also the best guess for VBR
+	 * songs until we have read their frames.
+	 */
+	private static class CbrTable extends Table {
+		private final double mBytesPerMicro;
+
+		CbrTable(long size, long mtimeMs, Layout layout) {
+			super(size, mtimeMs, layout, false);
+			mBytesPerMicro = (double) (layout.audioEnd - audioStart()) / layout.micros;
+		}
+
+		@Override
+		long offsetOf(long micros) {
+			return Math.min(layout.audioEnd - 1, audioStart() + (long) (micros * mBytesPerMicro));
+		}
+	}
+
+	/**
+	 * Where every frame starts, found by reading each frame header in turn.
+	 */
+	private static class ScanTable extends Table {
+		// By frame, from the start of the first audio frame
+		private final int[] mOffsets;
+		final int numFrames;
+
+		private ScanTable(Table from, int[] offsets, int numFrames) {
+			super(from.size, from.mtimeMs, from.layout, true);
+			mOffsets = offsets;
+			this.numFrames = numFrames;
+		}
+
+		static ScanTable scan(FileChannel fc, Table from) throws IOException {
+			Layout layout = from.layout;
+			long start = from.audioStart();
+			int[] offsets = new int[1024];
+			int numFrames = 0;
+			int firstHeader = layout.first.header & SAME_EVERY_FRAME;
+			ByteBuffer buf = ByteBuffer.allocate(SCAN_BUF_LEN);
+			// where in the file buf starts
+			long bufAt = start;
+			buf.flip();
+			long pos = start;
+			while (pos + 4 <= layout.audioEnd) {
+				if (pos + 4 > bufAt + buf.limit()) {
+					buf = Mp3Duration.readAt(fc, pos, SCAN_BUF_LEN);
+					bufAt = pos;
+					if (4 > buf.limit()) {
+						break;
+					}
+				}
+				int header = buf.getInt((int) (pos - bufAt));
+				Frame f = (firstHeader == (header & SAME_EVERY_FRAME)) ? Frame.parse(header) : null;
+				if (null == f) {
+					// lost sync, such as in some junk in the middle of the song
+					pos++;
+					continue;
+				}
+				if (numFrames == offsets.length) {
+					offsets = Arrays.copyOf(offsets, offsets.length * 2);
+				}
+				offsets[numFrames++] = (int) (pos - start);
+				pos += f.length;
+			}
+			return new ScanTable(from, offsets, numFrames);
+		}
+
+		@Override
+		long offsetOf(long micros) {
+			long frame = micros * layout.first.sampleRate / layout.first.samplesPerFrame / 1000000;
+			if (0 == numFrames) {
+				return audioStart();
+			}
+			return audioStart() + mOffsets[(int) Math.min(frame, numFrames - 1)];
+		}
+	}
+}
@@ -0,0 +1,459 @@
+package funoform.mdp;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds the playable music files in a directory tree using a fork/join (work
+ * stealing) pool. Every sub-directory becomes its own task, so an idle worker
+ * can steal a whole sub-tree from a busy one. Music collections tend to be
+ * wide (Artist/Album/Track) which keeps all the workers busy.
+ *
+ * Each directory entry has its attributes read once. Previously we called
+ * {@link java.io.File#isDirectory()} then {@link java.io.File#isFile()}, each
+ * of which is its own stat call. On a network mount every one of those stat
+ * calls is a round trip to the server. Only symbolic links cost more, as we
+ * have to find out what they point to.
+ *
+ * Symbolic links are handled so every physical directory is searched at most
+ * once, however many paths lead to it:
+ * <ul>
+ * <li>A link to something we would find anyway while searching the tree is
+ * skipped. We will find the real thing by its real path.</li>
+ * <li>Any other link is followed, but each directory and song it leads to is
+ * only searched or queued once. We recognize them by their file key (device
+ * and inode on Linux).</li>
+ * </ul>
+ * This also breaks sym link loops, without limiting how deep a real directory
+ * tree may go.
+ *
+ * The actual reading of each directory is handed off to its own reader thread,
+ * and the worker only waits so long for it. A directory on a hung network mount
+ * can block a thread forever, and nothing can interrupt it. With a time limit
+ * per directory, the worker gives up on it, reports it, and moves on to the rest
+ * of the tree. When running on Java 21 or later the readers are virtual
+ * threads, so a pile of stuck readers costs next to nothing.
+ *
+ * If given a {@link LibraryIndex}, directories that haven't changed since their
+ * last scan are served from the index rather than being listed again. Those are
+ * served by the worker itself, as there is no directory read to wait on.
+ *
+ * If given a {@link IScanListener}, the songs found in each directory are
+ * handed over as soon as that directory is listed. This lets playback start
+ * long before a big scan finishes.
+ *
+ * A scanner owns its worker threads. Call {@link #close()} once done with it.
+ */
+public class MusicFileScanner implements AutoCloseable {
+	private static final Logger sLogger = Logger.getLogger(MusicFileScanner.class.getName());
+	private final ForkJoinPool mPool;
+	private final ExecutorService mReaders;
+	private final long mDirReadTimeoutMs;
+	private final LibraryIndex mIndex;
+	private final IScanListener mListener;
+	private final AtomicInteger mNumDirsCutShort = new AtomicInteger(0);
+	private final Queue<Path> mSlowDirs = new ConcurrentLinkedQueue<>();
+	private final Set<Object> mVisited = ConcurrentHashMap.newKeySet();
+	private Path mRootRealPath;
+	private boolean mRecursive;
+
+	/**
+	 * @param parallelism    The maximum number of directories read at the same
+	 *                       time.
+	 * @param dirReadTimeSec How long to wait on any one directory before skipping
+	 *                       it and everything under it.
+	 * @param index          Remembers directory contents between scans. May be
+	 *                       null.
+	 * @param listener       Receives songs as they are found. May be null.
+	 */
+	public MusicFileScanner(int parallelism, int dirReadTimeSec, LibraryIndex index, IScanListener listener) {
+		mPool = new ForkJoinPool(Math.max(1, parallelism));
+		mReaders = newReaderExecutor();
+		mDirReadTimeoutMs = Math.max(1, dirReadTimeSec) * 1000L;
+		mIndex = index;
+		mListener = listener;
+	}
+
+	/**
+	 * Gets a list of all the playable music files in the specified directory. The
+	 * list is in no particular order.
+	 *
+	 * @param dir       The directory to search.
+	 * @param recursive If false, we only search the specified directory. If true,
+	 *                  we search every sub-directory too.
+	 * @param quitAtMs  Once the system clock reaches this time we stop searching
+	 *                  and return whatever we found so far.
+	 * @return The playable music files found.
+	 */
+	public List<Path> scan(Path dir, boolean recursive, long quitAtMs) {
+		mNumDirsCutShort.set(0);
+		mSlowDirs.clear();
+		mVisited.clear();
+		mRecursive = recursive;
+
+		List<Path> ret = new ArrayList<>();
+		try {
+			mRootRealPath = dir.toRealPath();
+			BasicFileAttributes attrs = Files.readAttributes(mRootRealPath, BasicFileAttributes.class);
+			markVisited(mRootRealPath, attrs);
+			ret = mPool.invoke(new DirTask(dir, attrs.lastModifiedTime().toMillis(), false, quitAtMs));
+		} catch (IOException | SecurityException e) {
+			sLogger.log(Level.WARNING, "Unable to read directory " + dir + ". " + e.getMessage());
+		}
+
+		int numCutShort = mNumDirsCutShort.get();
+		if (0 < numCutShort) {
+			sLogger.log(Level.WARNING, "Stopped searching " + dir + " before finishing. " + numCutShort
+					+ " directories were not fully searched. Found " + ret.size() + " songs.");
+		}
+		if (!mSlowDirs.isEmpty()) {
+			sLogger.log(Level.WARNING, "Skipped " + mSlowDirs.size() + " directories that took longer than "
+					+ mDirReadTimeoutMs / 1000 + " seconds to read: " + mSlowDirs);
+		}
+		if (null != mListener) {
+			mListener.scanFinished(numCutShort);
+		}
+		return ret;
+	}
+
+	@Override
+	public void close() {
+		mPool.shutdownNow();
+		// Any reader still stuck on a hung mount is abandoned. Its thread is a daemon
+		// so it won't keep the app from exiting.
+		mReaders.shutdownNow();
+	}
+
+	/**
+	 * Makes the threads directories are read on. A reader spends all its time
+	 * blocked on the file system, which is exactly what virtual threads are good at.
+	 * They only exist from Java 21 on though, and we still support Java 17, so we
+	 * go looking for them by reflection.
+	 */
+	private static ExecutorService newReaderExecutor() {
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// Plain old threads then. They sit idle for a minute before going away so a
+			// scan reuses them rather than starting a thread per directory.
+			return Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "DirReader");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+	}
+
+	/**
+	 * @return True once we have run out of time or the listener has lost interest.
+	 */
+	private boolean shouldQuit(long quitAtMs) {
+		return quitAtMs <= System.currentTimeMillis() || (null != mListener && mListener.isCancelled())
+				|| Thread.currentThread().isInterrupted();
+	}
+
+	/**
+	 * Records that we have reached a physical file or directory.
+	 *
+	 * @return True the first time a file or directory is reached, false if we have
+	 *         already been there through some other path.
+	 */
+	private boolean markVisited(Path path, BasicFileAttributes attrs) throws IOException {
+		// Not every file system has file keys (e.g. Windows). Fall back to the path
+		// with all links resolved, which catches everything but bind mounts.
+		Object key = attrs.fileKey();
+		if (null == key) {
+			key = path.toRealPath().toString();
+		}
+		return mVisited.add(key);
+	}
+
+	/**
+	 * @return True if searching the tree would reach this real path without
+	 *         following any links.
+	 */
+	private boolean isInTree(Path realPath) {
+		if (mRecursive) {
+			return realPath.startsWith(mRootRealPath);
+		}
+		return mRootRealPath.equals(realPath.getParent());
+	}
+
+	/**
+	 * Finds the music files in a single directory, forking a new task for each
+	 * sub-directory found.
+	 */
+	private class DirTask extends RecursiveTask<List<Path>> {
+		private static final long serialVersionUID = 1L;
+		private final transient Path mDir;
+		private final long mMtimeMs;
+		// True if we got here by following a link out of the tree. Songs out here
+		// could also be reached by some other link so we have to track them.
+		private final boolean mIsOutsideTree;
+		private final long mQuitAtMs;
+
+		DirTask(Path dir, long mtimeMs, boolean isOutsideTree, long quitAtMs) {
+			mDir = dir;
+			mMtimeMs = mtimeMs;
+			mIsOutsideTree = isOutsideTree;
+			mQuitAtMs = quitAtMs;
+		}
+
+		@Override
+		protected List<Path> compute() {
+			List<Path> ret = new ArrayList<>();
+			List<DirTask> subTasks = new ArrayList<>();
+			if (!readInTime(ret, subTasks)) {
+				mNumDirsCutShort.incrementAndGet();
+			}
+			for (DirTask sub : subTasks) {
+				sub.fork();
+			}
+
+			// Hand over this directory's songs now, rather than waiting on all the
+			// sub-directories. Give the listener its own copy as we keep adding to ours.
+			if (null != mListener && !ret.isEmpty()) {
+				mListener.songsFound(new ArrayList<>(ret));
+			}
+
+			// Join in the reverse order we forked. Tasks still sitting in our own queue are
+			// then run directly by this thread rather than waiting on a thief.
+			for (int i = subTasks.size() - 1; i >= 0; i--) {
+				ret.addAll(subTasks.get(i).join());
+			}
+			return ret;
+		}
+
+		/**
+		 * Gets what is in the directory from the index if we can. Otherwise reads the
+		 * directory on a reader thread, giving up if that takes too long.
+		 *
+		 * @return False if the directory wasn't fully read.
+		 */
+		private boolean readInTime(List<Path> ret, List<DirTask> subTasks) {
+			long remainingMs = mQuitAtMs - System.currentTimeMillis();
+			long waitMs = Math.min(mDirReadTimeoutMs, remainingMs);
+			if (waitMs <= 0 || shouldQuit(mQuitAtMs)) {
+				return false;
+			}
+
+			// There is no directory to read for an unchanged one, so nothing to get stuck
+			// on. Handing it off to a reader would only cost a thread switch.
+			LibraryIndex.DirListing cached = (null == mIndex) ? null : mIndex.get(mDir, mMtimeMs);
+			if (null != cached) {
+				return listFromIndex(cached, ret, subTasks);
+			}
+
+			// The reader fills in its own lists. We only look at them if it finishes in
+			// time, otherwise it could still be adding to them while we use them.
+			List<Path> songs = new ArrayList<>();
+			List<DirTask> subs = new ArrayList<>();
+			Future<Boolean> read;
+			try {
+				read = mReaders.submit(() -> listFromDisk(songs, subs));
+			} catch (RejectedExecutionException e) {
+				// the scanner was closed
+				return false;
+			}
+
+			try {
+				boolean complete = read.get(waitMs, TimeUnit.MILLISECONDS);
+				ret.addAll(songs);
+				subTasks.addAll(subs);
+				return complete;
+			} catch (TimeoutException e) {
+				read.cancel(true);
+				if (mDirReadTimeoutMs <= remainingMs) {
+					// it was this directory that was too slow, rather than the whole scan
+					mSlowDirs.add(mDir);
+				}
+			} catch (ExecutionException e) {
+				sLogger.log(Level.FINE, "Exception while reading directory " + mDir + ". " + e.getCause());
+			} catch (InterruptedException e) {
+				read.cancel(true);
+				Thread.currentThread().interrupt();
+			}
+			return false;
+		}
+
+		/**
+		 * Uses what the directory contained last time we scanned it. We only need to
+		 * stat the sub-directories, to get their modification times, and re-check
+		 * where any links point.
+		 *
+		 * @return False if we quit before finishing.
+		 */
+		private boolean listFromIndex(LibraryIndex.DirListing cached, List<Path> ret, List<DirTask> subTasks) {
+			for (String musicFile : cached.musicFiles) {
+				Path song = mDir.resolve(musicFile);
+				try {
+					if (!mIsOutsideTree || markVisited(song, Files.readAttributes(song, BasicFileAttributes.class))) {
+						ret.add(song);
+					}
+				} catch (IOException | SecurityException e) {
+					// deleted since we looked? Oh well, skip it
+				}
+			}
+			for (String subDir : cached.subDirs) {
+				if (!mRecursive) {
+					break;
+				}
+				if (shouldQuit(mQuitAtMs)) {
+					return false;
+				}
+				Path sub = mDir.resolve(subDir);
+				try {
+					addDir(sub, Files.readAttributes(sub, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS),
+							mIsOutsideTree, subTasks);
+				} catch (IOException | SecurityException e) {
+					// deleted since we looked? Oh well, skip it
+				}
+			}
+			for (String link : cached.links) {
+				try {
+					addLink(mDir.resolve(link), ret, subTasks);
+				} catch (IOException | SecurityException e) {
+					// broken link
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Runs on a reader thread.
+		 *
+		 * @return False if we quit before finishing.
+		 */
+		private boolean listFromDisk(List<Path> ret, List<DirTask> subTasks) {
+			List<String> musicFiles = new ArrayList<>();
+			List<String> subDirs = new ArrayList<>();
+			List<String> links = new ArrayList<>();
+			boolean complete = true;
+			try (DirectoryStream<Path> s = Files.newDirectoryStream(mDir)) {
+				for (Path entry : s) {
+					// Check to see if we have taken too long. If so, break out now to stop
+					// searching and return what we got so far
+					if (shouldQuit(mQuitAtMs)) {
+						complete = false;
+						break;
+					}
+
+					try {
+						BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class,
+								LinkOption.NOFOLLOW_LINKS);
+						if (attrs.isSymbolicLink()) {
+							links.add(entry.getFileName().toString());
+							addLink(entry, ret, subTasks);
+						} else if (attrs.isDirectory()) {
+							subDirs.add(entry.getFileName().toString());
+							if (mRecursive) {
+								addDir(entry, attrs, mIsOutsideTree, subTasks);
+							}
+						} else if (AudioFileDetector.isPlayable(entry, attrs)) {
+							musicFiles.add(entry.getFileName().toString());
+							if (!mIsOutsideTree || markVisited(entry, attrs)) {
+								ret.add(entry);
+							}
+						}
+					} catch (IOException | SecurityException e) {
+						// Probably a broken sym link or permissions denied. Just ignore this entry and
+						// move on to the next one.
+					}
+				}
+			} catch (IOException | SecurityException e) {
+				// Probably a permissions denied exception. Just ignore this directory and move
+				// on.
+				sLogger.log(Level.FINE, "Unable to read directory " + mDir + ". " + e.getMessage());
+				complete = false;
+			}
+
+			// Only remember complete listings. A partial one would hide songs next time.
+			if (complete && null != mIndex) {
+				mIndex.put(mDir, mMtimeMs, musicFiles, subDirs, links);
+			}
+			return complete;
+		}
+
+		/**
+		 * Follows a symbolic link, unless it leads somewhere we would find anyway.
+		 */
+		private void addLink(Path link, List<Path> ret, List<DirTask> subTasks) throws IOException {
+			Path target = link.toRealPath();
+			if (isInTree(target)) {
+				return;
+			}
+			BasicFileAttributes attrs = Files.readAttributes(target, BasicFileAttributes.class);
+			if (attrs.isDirectory()) {
+				if (mRecursive) {
+					addDir(link, attrs, true, subTasks);
+				}
+			} else if (AudioFileDetector.isPlayable(link, attrs) && markVisited(target, attrs)) {
+				ret.add(link);
+			}
+		}
+
+		/**
+		 * Lines up a sub-directory to be searched, unless we already have through some
+		 * other path. It is forked once this directory is done being read, as reader
+		 * threads aren't part of the pool.
+		 */
+		private void addDir(Path dir, BasicFileAttributes attrs, boolean isOutsideTree, List<DirTask> subTasks)
+				throws IOException {
+			if (markVisited(dir, attrs)) {
+				subTasks.add(new DirTask(dir, attrs.lastModifiedTime().toMillis(), isOutsideTree, mQuitAtMs));
+			}
+		}
+	}
+
+	/**
+	 * Receives the songs found by a {@link MusicFileScanner} while the scan is
+	 * still in progress. Called from the scanner's worker threads, possibly
+	 * several at the same time.
+	 */
+	public interface IScanListener {
+		/**
+		 * @param songs The songs found in a single directory, in no particular
+		 *              order. The listener may keep or modify this list.
+		 */
+		public void songsFound(List<Path> songs);
+
+		/**
+		 * @param numDirsCutShort How many directories were not fully searched because
+		 *                        we ran out of time or were cancelled. 0 if every song
+		 *                        was found.
+		 */
+		public default void scanFinished(int numDirsCutShort) {
+		}
+
+		/**
+		 * @return True to stop scanning as soon as possible.
+		 */
+		public default boolean isCancelled() {
+			return false;
+		}
+	}
+}
@@ -1,13 +1,22 @@
 package funoform.mdp;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.goxr3plus.streamplayer.enums.Status;
 import com.goxr3plus.streamplayer.stream.StreamPlayer;
+import com.goxr3plus.streamplayer.stream.StreamPlayerEvent;
 import com.goxr3plus.streamplayer.stream.StreamPlayerException;
+import com.goxr3plus.streamplayer.stream.StreamPlayerListener;
 
+import funoform.mdp.GaplessPlayer.IGaplessListener;
 import funoform.mdp.types.PlaybackPercentage;
 import funoform.mdp.types.PlaybackStatus;
 
@@ -18,101 +27,422 @@ import funoform.mdp.types.PlaybackStatus;
 public class MusicPlayer {
 
 	private static final Logger sLogger = Logger.getLogger(MusicPlayer.class.getName());
-	private IPlaybackStatusListener mPbL;
-	private Thread mPlaybackMonitor;
+	/**
+	 * How often the listener hears how far into the song we are. Times are only
+	 * shown to the second, so no need to go any faster. The end of a song is
+	 * reported as soon as the player tells us, not on this tick.
+	 */
+	private static final long PROGRESS_TICK_MS = 500;
+	private volatile IPlaybackStatusListener mPbL;
 	private Object mLockNowPlaying = new Object();
 	private StreamPlayer mPlayer = new StreamPlayer(sLogger);
-	private Status mLastStatus = Status.NOT_SPECIFIED;
+	private GaplessPlayer mGapless = new GaplessPlayer();
+	private volatile boolean mIsGapless = false;
+	private volatile int mCrossfadeSecs = 0;
+	// Whether the song playing was started with mGapless. Guarded by
+	// mLockNowPlaying, like the rest.
+	private boolean mIsGaplessPlaying = false;
+	private int mGaplessSongsStarted = 0;
 	private long mCurSongDurSecs = -1;
+	// How far into the song the player started, when not from the beginning
+	private long mStartMillis = 0;
+	// What mPlayer is playing. mGapless keeps track of its own.
+	private Path mPlayerSong;
+	// What setNextMusicFile() was last told, since the song playing started
+	private Path mNextSong;
+	// Where to jump to when resumed, after a seek while paused. -1 for nowhere.
+	private long mPendingSeekMillis = -1;
+	// Goes up every time a song is played from scratch, so news about a song since
+	// replaced can be ignored. Only changed holding mLockNowPlaying, but read
+	// without it from the players' threads.
+	private volatile int mPlayId = 0;
+	// Hears about the song mPlayer has open ending. Replaced for every song.
+	private StreamPlayerListener mPlayerListener;
+	// The listener is only ever called from this thread, one update at a time and
+	// without holding mLockNowPlaying, so a slow listener can't hold up playback
+	private ScheduledExecutorService mEvents = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "PlaybackEvents");
+		t.setDaemon(true);
+		return t;
+	});
 
 	public MusicPlayer() {
-
-		// monitor the song playback by running this task periodically
-		mPlaybackMonitor = new Thread(new Runnable() {
+		mEvents.scheduleAtFixedRate(new Runnable() {
 			@Override
 			public void run() {
-				while (!Thread.currentThread().isInterrupted()) {
-					try {
-						Thread.sleep(100);
-					} catch (InterruptedException e) {
-						Thread.currentThread().interrupt();
-						return;
+				reportProgress();
+			}
+		}, PROGRESS_TICK_MS, PROGRESS_TICK_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Hears about the song mPlayer is about to open ending straight from the
+	 * player, rather than noticing on the next poll. The player tells its
+	 * listeners on another thread, so the end of a song can arrive after the next
+	 * has been played. Each song gets its own listener knowing which play it was
+	 * for, so that isn't taken as the new song ending. Call holding
+	 * mLockNowPlaying.
+	 */
+	private void listenForEnd(int playId) {
+		if (null != mPlayerListener) {
+			mPlayer.removeStreamPlayerListener(mPlayerListener);
+		}
+		mPlayerListener = new StreamPlayerListener() {
+			@Override
+			public void opened(Object dataSource, Map<String, Object> properties) {
+			}
+
+			@Override
+			public void progress(int nEncodedBytes, long microsecondPosition, byte[] pcmData,
+					Map<String, Object> properties) {
+			}
+
+			@Override
+			public void statusUpdated(StreamPlayerEvent event) {
+				// End of media. STOPPED is what we get from stop(), which isn't the song
+				// finishing.
+				if (Status.EOM == event.getPlayerStatus()) {
+					songFinished(playId);
+				}
+			}
+		};
+		mPlayer.addStreamPlayerListener(mPlayerListener);
+	}
+
+	/**
+	 * The same as {@link #listenForEnd(int)}, for mGapless.
+	 */
+	private IGaplessListener gaplessListener(int playId) {
+		return new IGaplessListener() {
+			@Override
+			public void songQueued(long delayMicros) {
+				// Tell the listener once the song is actually coming out of the speakers
+				mEvents.schedule(new Runnable() {
+					@Override
+					public void run() {
+						reportProgress();
 					}
+				}, delayMicros + 20000, TimeUnit.MICROSECONDS);
+			}
 
-					synchronized (mLockNowPlaying) {
-						// Get the player's current status (playing, stopped, paused, etc.)
-						Status s = mPlayer.getStatus();
-
-						// figure out the current playback status
-						PlaybackStatus pbs = new PlaybackStatus();
-
-						if (Status.PLAYING == s || Status.PAUSED == s) {
-							// if a song is playing, report on the playback
-							mLastStatus = s;
-							pbs.isPlaybackComplete = false;
-
-							long curTime = 0;
-							try {
-								// Even if the player said it was playing, there is no guarantee that on the
-								// next line it is still playing. If it just stopped playing, we will get a NPE.
-								// Ignore it
-								curTime = mPlayer.getSourceDataLine().getMicrosecondPosition() / 1000000;
-
-								// Getting the song duration is expensive as mp3 tags are read. Only do once
-								// until the song changes
-								if (-1 == mCurSongDurSecs) {
-									mCurSongDurSecs = mPlayer.getDurationInSeconds();
-								}
-							} catch (Exception e) {
-								// just send a time of 0/0 and get a better update next time
-							}
-							pbs.pbPercentage = new PlaybackPercentage(curTime, mCurSongDurSecs);
-						} else if (s != mLastStatus) {
-							// if a song isn't playing, notify the user the playback is complete. But only
-							// do this once immediately after playback stops. Don't keep sending the same
-							// playback complete status over and over
-							mLastStatus = s;
-							pbs.isPlaybackComplete = true;
-							pbs.pbPercentage = new PlaybackPercentage(0, 0);
-
-						} else {
-							// Don't keep repeating ourselves when there is nothing new to report on
-							continue;
-						}
+			@Override
+			public void playbackFinished() {
+				songFinished(playId);
+			}
+		};
+	}
+
+	/**
+	 * Lets the listener know how far into the song we are, and if gapless playback
+	 * has moved on to the next song. Runs on mEvents.
+	 */
+	private void reportProgress() {
+		PlaybackStatus pbs = new PlaybackStatus();
+		synchronized (mLockNowPlaying) {
+			// Get the player's current status (playing, stopped, paused, etc.)
+			Status s = mIsGaplessPlaying ? mGapless.getStatus() : mPlayer.getStatus();
+
+			if (mIsGaplessPlaying && mGaplessSongsStarted != mGapless.getNumSongsStarted()) {
+				// moved straight on to the next song
+				mGaplessSongsStarted = mGapless.getNumSongsStarted();
+				pbs.songStarted = mGapless.getPlayingSong();
+				mCurSongDurSecs = -1;
+			}
 
-						// notify the listener of the current playback status
-						synchronized (mPlaybackMonitor) {
-							if (null != mPbL) {
-								try {
-									mPbL.playbackStatusChanged(pbs);
-								} catch (Exception e) {
-									sLogger.log(Level.WARNING,
-											"Exeption while notifying playback status changed listener of update: "
-													+ e.getMessage());
-								}
-							}
+			if (Status.PLAYING == s || Status.PAUSED == s) {
+				long curTime = 0;
+				if (0 <= mPendingSeekMillis) {
+					// paused, and where we'll be once resumed is what matters
+					curTime = mPendingSeekMillis / 1000;
+				} else if (mIsGaplessPlaying) {
+					curTime = mGapless.getPositionMicros() / 1000000;
+					mCurSongDurSecs = mGapless.getDurationSecs();
+				} else {
+					try {
+						// Even if the player said it was playing, there is no guarantee that on the
+						// next line it is still playing. If it just stopped playing, we will get a NPE.
+						// Ignore it
+						// The line counts from where we started playing, even after seeking
+						curTime = (mStartMillis * 1000 + mPlayer.getSourceDataLine().getMicrosecondPosition()) / 1000000;
+
+						// Getting the song duration from the player is expensive as mp3 tags are
+						// read. Only for songs Mp3Duration couldn't work out, and only once until
+						// the song changes
+						if (-1 == mCurSongDurSecs) {
+							mCurSongDurSecs = mPlayer.getDurationInSeconds();
 						}
+					} catch (Exception e) {
+						// just send a time of 0/0 and get a better update next time
 					}
 				}
+				pbs.pbPercentage = new PlaybackPercentage(curTime, mCurSongDurSecs);
+			} else if (null != pbs.songStarted) {
+				// and finished it already
+				pbs.pbPercentage = new PlaybackPercentage(0, 0);
+			} else {
+				// Don't keep repeating ourselves when there is nothing new to report on. The
+				// end of a song is reported by songFinished().
+				return;
+			}
+		}
+		notifyListener(pbs);
+	}
+
+	/**
+	 * Called when a player reaches the end of a song, or fails to play it, to
+	 * tell the listener playback is complete.
+	 *
+	 * @param playId {@link #mPlayId} when the song ended.
+	 */
+	private void songFinished(int playId) {
+		mEvents.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (playId != mPlayId) {
+					// another song was played since
+					return;
+				}
+				PlaybackStatus pbs = new PlaybackStatus();
+				pbs.isPlaybackComplete = true;
+				pbs.pbPercentage = new PlaybackPercentage(0, 0);
+				notifyListener(pbs);
+			}
+		});
+	}
+
+	private void notifyListener(PlaybackStatus pbs) {
+		IPlaybackStatusListener l = mPbL;
+		if (null != l) {
+			try {
+				l.playbackStatusChanged(pbs);
+			} catch (Exception e) {
+				sLogger.log(Level.WARNING,
+						"Exeption while notifying playback status changed listener of update: " + e.getMessage());
 			}
-		}, "PlaybackMonitor");
-		mPlaybackMonitor.start();
+		}
 	}
 
 	public boolean playMusicFile(Path path) {
+		return playMusicFile(path, 0);
+	}
+
+	/**
+	 * Plays a song, starting part way through.
+	 *
+	 * @param startSecs How far into the song to start.
+	 */
+	public boolean playMusicFile(Path path, long startSecs) {
+		return play(path, startSecs * 1000);
+	}
+
+	/**
+	 * @param startMillis How far into the song to start.
+	 */
+	private boolean play(Path path, long startMillis) {
+		long durSecs = prepareToPlay(path);
 		synchronized (mLockNowPlaying) {
-			stop();
+			start(path, startMillis, durSecs);
+		}
+		return true;
+	}
+
+	/**
+	 * Reads what playing a song needs ahead of time, without holding
+	 * mLockNowPlaying, so a slow disk can't hold up the progress tick or anything
+	 * else waiting on it.
+	 *
+	 * @return The song's length, or -1 if we can't tell without the player.
+	 */
+	private static long prepareToPlay(Path path) {
+		// Only the first few KB of the file, and usually already known
+		long durSecs = Mp3Duration.getDurationSecs(path);
+		// so seeking in it later doesn't have to wait
+		Mp3SeekTable.prepare(path);
+		return durSecs;
+	}
+
+	/**
+	 * Stops anything playing and starts playing a song. Call holding
+	 * mLockNowPlaying, having called {@link #prepareToPlay(Path)} first.
+	 */
+	private void start(Path path, long startMillis, long durSecs) {
+		stop();
+		mPlayId++;
+		mStartMillis = 0;
+		mPlayerSong = path;
+		mNextSong = null;
+		// Crossfading is done by the gapless player too
+		mIsGaplessPlaying = mIsGapless || 0 < mCrossfadeSecs;
+		mGapless.setCrossfadeSecs(mCrossfadeSecs);
+		// -1 forces reading the new songs duration from the player
+		mCurSongDurSecs = durSecs;
+		if (mIsGaplessPlaying) {
+			mGapless.setListener(gaplessListener(mPlayId));
+			if (mGapless.play(path, startMillis)) {
+				mGaplessSongsStarted = mGapless.getNumSongsStarted();
+			} else {
+				// move on to the next song
+				songFinished(mPlayId);
+			}
+			return;
+		}
+		listenForEnd(mPlayId);
+		if (0 < startMillis && openAt(path, startMillis)) {
+			mStartMillis = startMillis;
+			return;
+		}
+		try {
+			mPlayer.open(path.toFile());
+			mPlayer.play();
+		} catch (StreamPlayerException e) {
+			sLogger.log(Level.SEVERE, "Exception while trying to start playing the song: " + e.getMessage());
+			songFinished(mPlayId);
+			return;
+		}
+		if (1000 <= startMillis) {
+			// The seek table doesn't know where to start, so leave it to the player. It
+			// only knows the average bit rate, so may be off in a VBR song, and only
+			// seeks to the second.
 			try {
-				mPlayer.open(path.toFile());
-				mPlayer.play();
-				// force reading the new songs duration
-				mCurSongDurSecs = -1;
+				mPlayer.seekTo((int) (startMillis / 1000));
+				mStartMillis = startMillis / 1000 * 1000;
 			} catch (StreamPlayerException e) {
-				sLogger.log(Level.SEVERE, "Exception while trying to start playing the song: " + e.getMessage());
+				// just play it from the start
+				sLogger.log(Level.WARNING, "Unable to start " + path + " part way through: " + e.getMessage());
 			}
 		}
+	}
 
-		return true;
+	/**
+	 * Starts mPlayer part way through a song, from the frame the seek table says
+	 * is there. Call holding mLockNowPlaying.
+	 *
+	 * @return False if the seek table doesn't know where that is, or the player
+	 *         couldn't start from there.
+	 */
+	private boolean openAt(Path path, long startMillis) {
+		InputStream encoded = Mp3SeekTable.openAt(path, startMillis * 1000);
+		if (null == encoded) {
+			return false;
+		}
+		try {
+			mPlayer.open(encoded);
+			mPlayer.play();
+			return true;
+		} catch (StreamPlayerException e) {
+			sLogger.log(Level.FINE, "Unable to start " + path + " part way through: " + e.getMessage());
+			mPlayer.stop();
+			try {
+				encoded.close();
+			} catch (IOException e1) {
+				// nothing we can do about it
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * @return How far into the song playing we are, or -1 if nothing is playing.
+	 */
+	public long getPositionMillis() {
+		synchronized (mLockNowPlaying) {
+			Status s = mIsGaplessPlaying ? mGapless.getStatus() : mPlayer.getStatus();
+			if (Status.PLAYING != s && Status.PAUSED != s) {
+				return -1;
+			}
+			if (0 <= mPendingSeekMillis) {
+				return mPendingSeekMillis;
+			}
+			if (mIsGaplessPlaying) {
+				return mGapless.getPositionMicros() / 1000;
+			}
+			try {
+				return mStartMillis + mPlayer.getSourceDataLine().getMicrosecondPosition() / 1000;
+			} catch (Exception e) {
+				// just stopped, see reportProgress()
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Jumps to somewhere else in the song playing. Stays paused if it was paused,
+	 * and jumps there once resumed.
+	 *
+	 * @return False if nothing is playing, or another song started meanwhile.
+	 */
+	public boolean seekTo(long millis) {
+		Path song;
+		int playId;
+		synchronized (mLockNowPlaying) {
+			Status s = mIsGaplessPlaying ? mGapless.getStatus() : mPlayer.getStatus();
+			song = mIsGaplessPlaying ? mGapless.getPlayingSong() : mPlayerSong;
+			if (null == song || (Status.PLAYING != s && Status.PAUSED != s)) {
+				return false;
+			}
+			if (Status.PAUSED == s) {
+				// Starting over now would play a moment of the song before we could pause it
+				// again
+				mPendingSeekMillis = millis;
+				return true;
+			}
+			playId = mPlayId;
+		}
+
+		long durSecs = prepareToPlay(song);
+		synchronized (mLockNowPlaying) {
+			Path now = mIsGaplessPlaying ? mGapless.getPlayingSong() : mPlayerSong;
+			if (playId != mPlayId || !song.equals(now)) {
+				// whatever is playing now wins
+				return false;
+			}
+			start(song, millis, durSecs);
+			return true;
+		}
+	}
+
+	/**
+	 * Sets the song to play straight after the one playing, without a gap. Only
+	 * used in gapless mode. Otherwise, or if never called, the player stops at the
+	 * end of the song and reports playback complete.
+	 *
+	 * @param path The next song, or null to stop after this one.
+	 */
+	public void setNextMusicFile(Path path) {
+		synchronized (mLockNowPlaying) {
+			mNextSong = path;
+			if (mIsGaplessPlaying) {
+				mGapless.setNext(path);
+			}
+		}
+		if (null != path) {
+			Mp3SeekTable.prepare(path);
+		}
+	}
+
+	/**
+	 * Turns gapless playback on or off. Takes effect from the next song played
+	 * with {@link #playMusicFile(Path)}.
+	 */
+	public void setGapless(boolean isGapless) {
+		mIsGapless = isGapless;
+	}
+
+	/**
+	 * Sets how many seconds each song fades into the next. 0 for no crossfade.
+	 * Takes effect from the next song played with {@link #playMusicFile(Path)}.
+	 */
+	public void setCrossfadeSecs(int secs) {
+		mCrossfadeSecs = secs;
+	}
+
+	/**
+	 * @return True if the next song will be played straight after the one playing,
+	 *         with or without a crossfade, once told what it is with
+	 *         {@link #setNextMusicFile(Path)}.
+	 */
+	public boolean isGapless() {
+		return mIsGapless || 0 < mCrossfadeSecs;
 	}
 
 	/**
@@ -124,6 +454,24 @@ public class MusicPlayer {
 	 */
 	public boolean togglePauseResume() {
 		synchronized (mLockNowPlaying) {
+			if (0 <= mPendingSeekMillis) {
+				// Paused, so resume from where it was sought to. The song and its seek table
+				// were already prepared when it started.
+				Path song = mIsGaplessPlaying ? mGapless.getPlayingSong() : mPlayerSong;
+				if (null != song) {
+					Path next = mNextSong;
+					start(song, mPendingSeekMillis, mCurSongDurSecs);
+					// starting over forgets the next song
+					mNextSong = next;
+					if (mIsGaplessPlaying) {
+						mGapless.setNext(next);
+					}
+					return true;
+				}
+			}
+			if (mIsGaplessPlaying) {
+				return mGapless.pause() ? false : mGapless.resume();
+			}
 			if (mPlayer.isPlaying()) {
 				// pause
 				mPlayer.pause();
@@ -139,14 +487,14 @@ public class MusicPlayer {
 	}
 
 	public void init(IPlaybackStatusListener l) {
-		synchronized (mPlaybackMonitor) {
-			mPbL = l;
-		}
+		mPbL = l;
 	}
 
 	public void stop() {
 		synchronized (mLockNowPlaying) {
+			mPendingSeekMillis = -1;
 			mPlayer.stop();
+			mGapless.stop();
 		}
 	}
 
@@ -0,0 +1,682 @@
+package funoform.mdp;
+
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+/**
+ * The songs queued to play, in play order, along with which one is playing.
+ *
+ * An ArrayList is fine for playing a queue front to back, but finding a song in
+ * it means checking every song, and putting a song anywhere but the end means
+ * shuffling everything after it along. Here:
+ * <ul>
+ * <li>Finding a song's place in the queue takes a hash lookup plus a walk up a
+ * balanced tree, i.e. log time.</li>
+ * <li>Getting the Nth song, adding, removing, and moving songs anywhere in the
+ * queue are all log time too.</li>
+ * </ul>
+ *
+ * The order is kept in an implicit treap. Each song is a node, a node's
+ * position is the number of nodes before it, and each node knows how many
+ * nodes are in its sub-tree so positions can be counted without visiting
+ * every node. Random priorities keep the tree balanced without any rebalancing
+ * logic. The tree is a set of int arrays indexed by node, rather than an object
+ * per song, and the songs themselves are kept in a {@link CompactPathList} in
+ * the order they were added.
+ *
+ * The song playing is remembered by its node, so it stays the song playing
+ * however the queue changes around it.
+ *
+ * The queue also keeps track of whether it is still in {@link FileNameOrder},
+ * so {@link #addInOrder(Path)} can find where a new song goes by walking down
+ * the tree rather than by binary searching with {@link #get(int)}, which would
+ * be a walk down the tree per step.
+ *
+ * Songs can be marked as played, for {@link Shuffle}. The mark goes with the
+ * song wherever it moves to in the queue, and costs a bit per song.
+ *
+ * A song can only be queued once. Not thread safe.
+ */
+public class PlayQueue extends AbstractList<Path> implements RandomAccess {
+	private static final int NIL = -1;
+	private static final int EMPTY = -1;
+	private static final int DELETED = -2;
+	private static final int INITIAL_CAPACITY = 16;
+
+	// Every song ever added, by node. Nodes removed from the queue stay in here
+	// until there are enough of them to be worth compacting.
+	private CompactPathList mSongs = new CompactPathList();
+	private int mNumDead = 0;
+
+	// The tree, by node
+	private int[] mLeft = new int[INITIAL_CAPACITY];
+	private int[] mRight = new int[INITIAL_CAPACITY];
+	private int[] mParent = new int[INITIAL_CAPACITY];
+	private int[] mSize = new int[INITIAL_CAPACITY];
+	private int[] mPriority = new int[INITIAL_CAPACITY];
+	private int[] mHash = new int[INITIAL_CAPACITY];
+	private int mRoot = NIL;
+	private int mCurrent = NIL;
+	private int mSeed = 0x2545F491;
+
+	// True while the songs are known to be in FileNameOrder. Along with the key of
+	// the last song, if we've worked it out, for checking songs added to the end.
+	private boolean mIsSorted = true;
+	private String mLastKey = null;
+
+	// The nodes marked played, and how many of them are still queued
+	private BitSet mPlayed = new BitSet();
+	private int mNumPlayed = 0;
+
+	// Hash table of nodes, by the hash of their song. Open addressing with linear
+	// probing, so it is just one more int array.
+	private int[] mTable = newTable(INITIAL_CAPACITY * 2);
+	private int mTableUsed = 0;
+
+	// split() results
+	private int mSplitLeft;
+	private int mSplitRight;
+
+	public PlayQueue() {
+	}
+
+	@Override
+	public int size() {
+		return sizeOf(mRoot);
+	}
+
+	@Override
+	public Path get(int index) {
+		return mSongs.get(nodeAt(index));
+	}
+
+	/**
+	 * Queues a song at the specified position.
+	 *
+	 * @throws IllegalArgumentException If the song is already queued.
+	 */
+	@Override
+	public void add(int index, Path song) {
+		if (index < 0 || index > size()) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+		}
+		if (NIL != findNode(song)) {
+			throw new IllegalArgumentException("Already queued: " + song);
+		}
+		int node = newNode(song);
+		insertNode(index, node);
+		// Not worth checking. addInOrder() is the way to keep the queue sorted.
+		mIsSorted = false;
+		mLastKey = null;
+		modCount++;
+	}
+
+	/**
+	 * Queues a song where it belongs in {@link FileNameOrder}, if the queue is
+	 * still in that order. Otherwise, such as once songs have been moved, it goes
+	 * on the end.
+	 *
+	 * @return Where the song was queued, or -1 if it was already queued.
+	 */
+	public int addInOrder(Path song) {
+		if (NIL != findNode(song)) {
+			return -1;
+		}
+		int index = size();
+		if (mIsSorted) {
+			index = sortedIndexOf(FileNameOrder.keyOf(song));
+		}
+		insertNode(index, newNode(song));
+		mLastKey = null;
+		modCount++;
+		return index;
+	}
+
+	/**
+	 * Queues the songs at the end, skipping any that are already queued.
+	 *
+	 * @return True if any songs were added.
+	 */
+	@Override
+	public boolean addAll(Collection<? extends Path> songs) {
+		int before = size();
+		for (Path song : songs) {
+			if (NIL == findNode(song)) {
+				if (mIsSorted) {
+					checkStillSorted(song);
+				}
+				insertNode(size(), newNode(song));
+			}
+		}
+		modCount++;
+		return size() != before;
+	}
+
+	@Override
+	public Path remove(int index) {
+		int node = detach(index);
+		Path song = mSongs.get(node);
+		if (node == mCurrent) {
+			// The next song is whatever followed the removed one
+			mCurrent = (0 < index) ? nodeAt(index - 1) : NIL;
+		}
+		tableRemove(node);
+		if (mPlayed.get(node)) {
+			mNumPlayed--;
+		}
+		mNumDead++;
+		// it might have been the last song
+		mLastKey = null;
+		modCount++;
+		if (mNumDead > INITIAL_CAPACITY && mNumDead > size()) {
+			rebuild(inOrder());
+		}
+		return song;
+	}
+
+	@Override
+	public void clear() {
+		mSongs = new CompactPathList();
+		mNumDead = 0;
+		mRoot = NIL;
+		mCurrent = NIL;
+		mTable = newTable(INITIAL_CAPACITY * 2);
+		mTableUsed = 0;
+		mIsSorted = true;
+		mLastKey = null;
+		mPlayed = new BitSet();
+		mNumPlayed = 0;
+		modCount++;
+	}
+
+	/**
+	 * Finds a song in log time.
+	 */
+	@Override
+	public int indexOf(Object o) {
+		if (!(o instanceof Path)) {
+			return -1;
+		}
+		int node = findNode((Path) o);
+		return (NIL == node) ? -1 : rankOf(node);
+	}
+
+	@Override
+	public int lastIndexOf(Object o) {
+		// songs are only ever queued once
+		return indexOf(o);
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return (o instanceof Path) && NIL != findNode((Path) o);
+	}
+
+	/**
+	 * Moves a song to another place in the queue. If it is the song playing, it
+	 * stays the song playing.
+	 *
+	 * @param from The song's current position.
+	 * @param to   Where the song ends up once moved.
+	 */
+	public void move(int from, int to) {
+		if (to < 0 || to >= size()) {
+			throw new IndexOutOfBoundsException("Index: " + to + ", Size: " + size());
+		}
+		int node = detach(from);
+		insertNode(to, node);
+		if (from != to) {
+			mIsSorted = false;
+			mLastKey = null;
+		}
+		modCount++;
+	}
+
+	/**
+	 * @return The position of the song playing, or -1 if none is.
+	 */
+	public int getCurrentIndex() {
+		return (NIL == mCurrent) ? -1 : rankOf(mCurrent);
+	}
+
+	/**
+	 * @param index The position of the song playing, or -1 if none is.
+	 */
+	public void setCurrentIndex(int index) {
+		mCurrent = (-1 == index) ? NIL : nodeAt(index);
+	}
+
+	/**
+	 * Marks the song at the position as played.
+	 */
+	public void markPlayed(int index) {
+		int node = nodeAt(index);
+		if (!mPlayed.get(node)) {
+			mPlayed.set(node);
+			mNumPlayed++;
+		}
+	}
+
+	/**
+	 * @return True if the song at the position has been marked played.
+	 */
+	public boolean isPlayed(int index) {
+		return mPlayed.get(nodeAt(index));
+	}
+
+	/**
+	 * @return How many of the songs queued are marked played.
+	 */
+	public int getNumPlayed() {
+		return mNumPlayed;
+	}
+
+	/**
+	 * Unmarks every song.
+	 */
+	public void clearPlayed() {
+		mPlayed.clear();
+		mNumPlayed = 0;
+	}
+
+	/**
+	 * Sorts the queue by {@link FileNameOrder}. The song playing stays the song
+	 * playing, wherever it ends up.
+	 */
+	public void sort() {
+		int[] nodes = inOrder();
+		int[] order = FileNameOrder.sortedOrder(new AbstractList<Path>() {
+			@Override
+			public Path get(int index) {
+				return mSongs.get(nodes[index]);
+			}
+
+			@Override
+			public int size() {
+				return nodes.length;
+			}
+		});
+		int[] sorted = new int[nodes.length];
+		for (int i = 0; i < sorted.length; i++) {
+			sorted[i] = nodes[order[i]];
+		}
+		// Put the songs themselves in order too. Then the nodes are in play order,
+		// which is friendlier to the CPU cache when playing through the queue.
+		rebuild(sorted);
+		mIsSorted = true;
+		mLastKey = null;
+		modCount++;
+	}
+
+	/**
+	 * @return The songs in play order, as a list that won't change however the
+	 *         queue changes afterwards.
+	 */
+	public CompactPathList toCompactList() {
+		return mSongs.select(inOrder());
+	}
+
+	/**
+	 * Called before a song goes on the end, while the queue is sorted.
+	 */
+	private void checkStillSorted(Path song) {
+		String key = FileNameOrder.keyOf(song);
+		if (null == mLastKey && NIL != mRoot) {
+			mLastKey = FileNameOrder.keyOf(get(size() - 1));
+		}
+		if (null != mLastKey && mLastKey.compareTo(key) > 0) {
+			mIsSorted = false;
+			mLastKey = null;
+		} else {
+			mLastKey = key;
+		}
+	}
+
+	/**
+	 * @return Where a song with this sort key goes in the sorted queue. After any
+	 *         songs with the same key.
+	 */
+	private int sortedIndexOf(String key) {
+		int index = 0;
+		int node = mRoot;
+		while (NIL != node) {
+			if (key.compareTo(FileNameOrder.keyOf(mSongs.get(node))) < 0) {
+				node = mLeft[node];
+			} else {
+				index += sizeOf(mLeft[node]) + 1;
+				node = mRight[node];
+			}
+		}
+		return index;
+	}
+
+	// ---- the tree ----
+
+	private int sizeOf(int node) {
+		return (NIL == node) ? 0 : mSize[node];
+	}
+
+	/**
+	 * Fixes a node's size and its children's parents after its children changed.
+	 */
+	private void update(int node) {
+		int l = mLeft[node];
+		int r = mRight[node];
+		mSize[node] = 1 + sizeOf(l) + sizeOf(r);
+		if (NIL != l) {
+			mParent[l] = node;
+		}
+		if (NIL != r) {
+			mParent[r] = node;
+		}
+	}
+
+	private int newNode(Path song) {
+		int node = mSongs.size();
+		mSongs.add(song);
+		ensureCapacity(node + 1);
+		mLeft[node] = NIL;
+		mRight[node] = NIL;
+		mParent[node] = NIL;
+		mSize[node] = 1;
+		mPriority[node] = nextPriority();
+		mHash[node] = mix(song.hashCode());
+		tableInsert(node);
+		return node;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > mLeft.length) {
+			int newCapacity = Math.max(capacity, mLeft.length + (mLeft.length >> 1));
+			mLeft = Arrays.copyOf(mLeft, newCapacity);
+			mRight = Arrays.copyOf(mRight, newCapacity);
+			mParent = Arrays.copyOf(mParent, newCapacity);
+			mSize = Arrays.copyOf(mSize, newCapacity);
+			mPriority = Arrays.copyOf(mPriority, newCapacity);
+			mHash = Arrays.copyOf(mHash, newCapacity);
+		}
+	}
+
+	private int nextPriority() {
+		// xorshift, plenty random enough to keep the tree balanced
+		mSeed ^= mSeed << 13;
+		mSeed ^= mSeed >>> 17;
+		mSeed ^= mSeed << 5;
+		return mSeed;
+	}
+
+	private void insertNode(int index, int node) {
+		mLeft[node] = NIL;
+		mRight[node] = NIL;
+		mSize[node] = 1;
+		split(mRoot, index);
+		int right = mSplitRight;
+		mRoot = merge(merge(mSplitLeft, node), right);
+		mParent[mRoot] = NIL;
+	}
+
+	/**
+	 * Takes the node at the index out of the tree, without forgetting its song.
+	 */
+	private int detach(int index) {
+		if (index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+		}
+		split(mRoot, index);
+		int left = mSplitLeft;
+		split(mSplitRight, 1);
+		int node = mSplitLeft;
+		mRoot = merge(left, mSplitRight);
+		if (NIL != mRoot) {
+			mParent[mRoot] = NIL;
+		}
+		return node;
+	}
+
+	/**
+	 * Joins two trees, with every node of a before every node of b.
+	 */
+	private int merge(int a, int b) {
+		if (NIL == a) {
+			return b;
+		}
+		if (NIL == b) {
+			return a;
+		}
+		if (mPriority[a] > mPriority[b]) {
+			mRight[a] = merge(mRight[a], b);
+			update(a);
+			return a;
+		}
+		mLeft[b] = merge(a, mLeft[b]);
+		update(b);
+		return b;
+	}
+
+	/**
+	 * Splits a tree so the first count nodes end up in mSplitLeft and the rest in
+	 * mSplitRight.
+	 */
+	private void split(int node, int count) {
+		if (NIL == node) {
+			mSplitLeft = NIL;
+			mSplitRight = NIL;
+			return;
+		}
+		if (sizeOf(mLeft[node]) >= count) {
+			split(mLeft[node], count);
+			mLeft[node] = mSplitRight;
+			update(node);
+			mSplitRight = node;
+		} else {
+			split(mRight[node], count - sizeOf(mLeft[node]) - 1);
+			mRight[node] = mSplitLeft;
+			update(node);
+			mSplitLeft = node;
+		}
+		if (NIL != mSplitLeft) {
+			mParent[mSplitLeft] = NIL;
+		}
+		if (NIL != mSplitRight) {
+			mParent[mSplitRight] = NIL;
+		}
+	}
+
+	private int nodeAt(int index) {
+		if (index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+		}
+		int node = mRoot;
+		while (true) {
+			int leftSize = sizeOf(mLeft[node]);
+			if (index < leftSize) {
+				node = mLeft[node];
+			} else if (index == leftSize) {
+				return node;
+			} else {
+				index -= leftSize + 1;
+				node = mRight[node];
+			}
+		}
+	}
+
+	/**
+	 * @return The position of a node, found by walking up to the root.
+	 */
+	private int rankOf(int node) {
+		int rank = sizeOf(mLeft[node]);
+		while (NIL != mParent[node]) {
+			int parent = mParent[node];
+			if (mRight[parent] == node) {
+				rank += sizeOf(mLeft[parent]) + 1;
+			}
+			node = parent;
+		}
+		return rank;
+	}
+
+	/**
+	 * @return Every node in play order.
+	 */
+	private int[] inOrder() {
+		int[] ret = new int[size()];
+		int[] stack = new int[64];
+		int top = 0;
+		int i = 0;
+		int node = mRoot;
+		while (NIL != node || 0 < top) {
+			while (NIL != node) {
+				if (top == stack.length) {
+					stack = Arrays.copyOf(stack, top * 2);
+				}
+				stack[top++] = node;
+				node = mLeft[node];
+			}
+			node = stack[--top];
+			ret[i++] = node;
+			node = mRight[node];
+		}
+		return ret;
+	}
+
+	/**
+	 * Rebuilds the tree with the nodes in the specified order, in linear time.
+	 * Throws away the songs of removed nodes and renumbers the nodes in play order
+	 * while we are at it.
+	 */
+	private void rebuild(int[] nodes) {
+		CompactPathList songs = mSongs.select(nodes);
+		int[] priority = new int[Math.max(INITIAL_CAPACITY, nodes.length)];
+		int[] hash = new int[priority.length];
+		BitSet played = new BitSet();
+		int current = NIL;
+		for (int i = 0; i < nodes.length; i++) {
+			priority[i] = mPriority[nodes[i]];
+			hash[i] = mHash[nodes[i]];
+			if (mPlayed.get(nodes[i])) {
+				played.set(i);
+			}
+			if (nodes[i] == mCurrent) {
+				current = i;
+			}
+			nodes[i] = i;
+		}
+		mPlayed = played;
+		mSongs = songs;
+		mNumDead = 0;
+		mCurrent = current;
+		mLeft = new int[priority.length];
+		mRight = new int[priority.length];
+		mParent = new int[priority.length];
+		mSize = new int[priority.length];
+		mPriority = priority;
+		mHash = hash;
+		mTable = newTable(Math.max(INITIAL_CAPACITY, nodes.length) * 2);
+		mTableUsed = 0;
+		for (int node : nodes) {
+			tableInsert(node);
+		}
+
+		// Build the tree left to right, keeping the right most path in a stack. Each
+		// node pops off anything with a lower priority, which becomes its left child.
+		int[] stack = new int[Math.max(1, nodes.length)];
+		int top = 0;
+		for (int node : nodes) {
+			mLeft[node] = NIL;
+			mRight[node] = NIL;
+			int last = NIL;
+			while (0 < top && mPriority[stack[top - 1]] < mPriority[node]) {
+				last = stack[--top];
+			}
+			mLeft[node] = last;
+			if (0 < top) {
+				mRight[stack[top - 1]] = node;
+			}
+			stack[top++] = node;
+		}
+		mRoot = (0 < top) ? stack[0] : NIL;
+		if (NIL != mRoot) {
+			mParent[mRoot] = NIL;
+			fixSizes(mRoot);
+		}
+	}
+
+	private void fixSizes(int node) {
+		if (NIL == node) {
+			return;
+		}
+		fixSizes(mLeft[node]);
+		fixSizes(mRight[node]);
+		update(node);
+	}
+
+	// ---- the hash table ----
+
+	private static int[] newTable(int capacity) {
+		int[] table = new int[Integer.highestOneBit(Math.max(2, capacity - 1)) << 1];
+		Arrays.fill(table, EMPTY);
+		return table;
+	}
+
+	private static int mix(int h) {
+		// Spread the bits out. Path hashes of songs in the same directory can be very
+		// similar.
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private int findNode(Path song) {
+		int mask = mTable.length - 1;
+		int h = mix(song.hashCode());
+		for (int slot = h & mask;; slot = (slot + 1) & mask) {
+			int node = mTable[slot];
+			if (EMPTY == node) {
+				return NIL;
+			}
+			if (DELETED != node && mHash[node] == h && mSongs.isAt(node, song)) {
+				return node;
+			}
+		}
+	}
+
+	private void tableInsert(int node) {
+		if (2 * (mTableUsed + 1) > mTable.length) {
+			// Too full, or too many deleted slots. Start over with a bigger table.
+			int[] old = mTable;
+			mTable = newTable(Math.max(INITIAL_CAPACITY, 4 * size()));
+			mTableUsed = 0;
+			for (int n : old) {
+				if (0 <= n) {
+					tableInsert(n);
+				}
+			}
+		}
+		int mask = mTable.length - 1;
+		int slot = mHash[node] & mask;
+		while (0 <= mTable[slot]) {
+			slot = (slot + 1) & mask;
+		}
+		if (EMPTY == mTable[slot]) {
+			mTableUsed++;
+		}
+		mTable[slot] = node;
+	}
+
+	private void tableRemove(int node) {
+		int mask = mTable.length - 1;
+		for (int slot = mHash[node] & mask;; slot = (slot + 1) & mask) {
+			if (EMPTY == mTable[slot]) {
+				return;
+			}
+			if (node == mTable[slot]) {
+				// leave a marker so the songs after it can still be found
+				mTable[slot] = DELETED;
+				return;
+			}
+		}
+	}
+}
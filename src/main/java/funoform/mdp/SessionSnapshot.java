@@ -0,0 +1,267 @@
+package funoform.mdp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToIntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * What was playing when we last ran: the directory, the queue, the song
+ * playing and how far into it we were, and where random mode was up to. So the
+ * next time we start we can carry on straight away, rather than sitting through
+ * a search of the whole directory first.
+ *
+ * The file is memory mapped and written to as things change, so there's
+ * nothing to do at exit and a crash loses nothing. Most changes are just the
+ * position in the song, which is a single number at a fixed place in the file.
+ * The queue is only written out again when it changes.
+ *
+ * Layout: a fixed size header of int magic, int version, int queue byte count,
+ * int queue CRC, int index of the song playing, int spare, long seconds into
+ * the song, then {@link Shuffle#STATE_BYTES} of random mode. The queue follows
+ * the header as string directory, int recursive, int song count, then the
+ * songs as strings relative to the directory. Where a string is an int byte
+ * count followed by UTF-8 bytes. If we die part way through writing the queue
+ * the CRC won't match, and the snapshot is ignored.
+ *
+ * Not thread safe. Only the {@link Controller}'s command thread should use it.
+ */
+public class SessionSnapshot {
+	private static final Logger sLogger = Logger.getLogger(SessionSnapshot.class.getName());
+	private static final int MAGIC = 0x4d445053; // "MDPS"
+	private static final int VERSION = 1;
+	private static final int QUEUE_BYTES_AT = 8;
+	private static final int QUEUE_CRC_AT = 12;
+	private static final int INDEX_AT = 16;
+	private static final int POSITION_AT = 24;
+	private static final int SHUFFLE_AT = 32;
+	private static final int HEADER_BYTES = SHUFFLE_AT + Shuffle.STATE_BYTES;
+
+	private final Path mFile;
+	private FileChannel mChannel;
+	private MappedByteBuffer mMapped;
+	private boolean mIsBroken = false;
+
+	public SessionSnapshot(Path file) {
+		mFile = file;
+	}
+
+	/**
+	 * Reads what was saved last time.
+	 *
+	 * @return What was playing, or null if nothing was saved or it can't be read.
+	 */
+	public Session load() {
+		if (!Files.isRegularFile(mFile)) {
+			return null;
+		}
+		try {
+			ByteBuffer buf = map(0);
+			if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+				throw new IOException("Not a version " + VERSION + " session snapshot");
+			}
+			int queueBytes = buf.getInt(QUEUE_BYTES_AT);
+			if (0 >= queueBytes || HEADER_BYTES + queueBytes > buf.capacity()) {
+				throw new IOException("No queue saved");
+			}
+			CRC32 crc = new CRC32();
+			crc.update(buf.slice(HEADER_BYTES, queueBytes));
+			if ((int) crc.getValue() != buf.getInt(QUEUE_CRC_AT)) {
+				throw new IOException("The queue was only partly written");
+			}
+
+			int pos = HEADER_BYTES;
+			Path dir = Path.of(readString(buf, pos));
+			pos += 4 + buf.getInt(pos);
+			boolean recursive = 0 != buf.getInt(pos);
+			int count = buf.getInt(pos + 4);
+			pos += 8;
+			List<Path> songs = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				// resolving an absolute path just gives the absolute path
+				songs.add(dir.resolve(readString(buf, pos)));
+				pos += 4 + buf.getInt(pos);
+			}
+
+			ByteBuffer shuffle = ByteBuffer.allocate(Shuffle.STATE_BYTES);
+			shuffle.put(0, buf, SHUFFLE_AT, Shuffle.STATE_BYTES);
+			sLogger.log(Level.FINE, "Loaded session snapshot with " + count + " songs from " + mFile);
+			return new Session(dir, recursive, songs, buf.getInt(INDEX_AT), buf.getLong(POSITION_AT), shuffle);
+		} catch (IOException | RuntimeException e) {
+			// no worse than starting from scratch
+			sLogger.log(Level.WARNING, "Ignoring unreadable session snapshot " + mFile + ". " + e.getMessage());
+			if (null != mMapped) {
+				clear();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Saves the directory playing and the songs queued from it.
+	 */
+	public void saveQueue(Path dir, boolean recursive, List<Path> songs) {
+		// Encode first so we know how big to make the file
+		List<byte[]> strs = new ArrayList<>(songs.size() + 1);
+		strs.add(dir.toString().getBytes(StandardCharsets.UTF_8));
+		int len = 4 + strs.get(0).length + 8;
+		for (Path song : songs) {
+			String name = song.startsWith(dir) ? dir.relativize(song).toString() : song.toString();
+			byte[] b = name.getBytes(StandardCharsets.UTF_8);
+			strs.add(b);
+			len += 4 + b.length;
+		}
+
+		ByteBuffer buf = map(HEADER_BYTES + len);
+		if (null == buf) {
+			return;
+		}
+		// Invalid until the CRC is written at the end
+		buf.putInt(QUEUE_BYTES_AT, 0);
+		int pos = HEADER_BYTES;
+		for (int i = 0; i < strs.size(); i++) {
+			byte[] b = strs.get(i);
+			buf.putInt(pos, b.length);
+			buf.put(pos + 4, b);
+			pos += 4 + b.length;
+			if (0 == i) {
+				buf.putInt(pos, recursive ? 1 : 0);
+				buf.putInt(pos + 4, songs.size());
+				pos += 8;
+			}
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buf.slice(HEADER_BYTES, len));
+		buf.putInt(QUEUE_CRC_AT, (int) crc.getValue());
+		buf.putInt(QUEUE_BYTES_AT, len);
+	}
+
+	/**
+	 * Saves which song is playing and where random mode is up to. Call after
+	 * {@link #saveQueue(Path, boolean, List)} if the queue changed too.
+	 *
+	 * @param index   Where the song playing is in the queue, or -1 if nothing is.
+	 * @param indexOf Where a song is in the queue, or -1 if it isn't.
+	 */
+	public void savePlaying(int index, Shuffle shuffle, ToIntFunction<Path> indexOf) {
+		ByteBuffer buf = map(HEADER_BYTES);
+		if (null == buf) {
+			return;
+		}
+		buf.putInt(INDEX_AT, index);
+		shuffle.save(buf, SHUFFLE_AT, indexOf);
+	}
+
+	/**
+	 * Saves how far into the song playing we are.
+	 */
+	public void savePosition(long secs) {
+		ByteBuffer buf = map(HEADER_BYTES);
+		if (null == buf) {
+			return;
+		}
+		buf.putLong(POSITION_AT, secs);
+	}
+
+	/**
+	 * Makes sure everything saved has reached the disk, for when the OS might not
+	 * get the chance to write it out for us.
+	 */
+	public void force() {
+		if (null != mMapped) {
+			mMapped.force();
+		}
+	}
+
+	/**
+	 * Maps at least this many bytes of the file, creating or growing it if need
+	 * be. Returns null if the file can't be written, after logging it once.
+	 */
+	private MappedByteBuffer map(int minBytes) {
+		if (null != mMapped && mMapped.capacity() >= minBytes) {
+			return mMapped;
+		}
+		if (mIsBroken) {
+			return null;
+		}
+		try {
+			if (null == mChannel) {
+				Files.createDirectories(mFile.getParent());
+				mChannel = FileChannel.open(mFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+						StandardOpenOption.WRITE);
+			}
+			// Grow in big steps so a growing queue doesn't mean remapping every time
+			long size = Math.max(mChannel.size(), HEADER_BYTES);
+			while (size < minBytes) {
+				size *= 2;
+			}
+			boolean isNew = 0 == mChannel.size();
+			mMapped = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			if (isNew) {
+				clear();
+			}
+			return mMapped;
+		} catch (IOException e) {
+			mIsBroken = true;
+			sLogger.log(Level.WARNING, "Unable to save the session to " + mFile + ". " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Starts the mapped file over with nothing saved.
+	 */
+	private void clear() {
+		mMapped.putInt(0, MAGIC);
+		mMapped.putInt(4, VERSION);
+		mMapped.putInt(QUEUE_BYTES_AT, 0);
+		mMapped.putInt(INDEX_AT, -1);
+	}
+
+	private static String readString(ByteBuffer buf, int pos) {
+		byte[] b = new byte[buf.getInt(pos)];
+		buf.get(pos + 4, b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * What was playing the last time we ran.
+	 */
+	public static class Session {
+		public final Path dir;
+		public final boolean recursive;
+		public final List<Path> songs;
+		/**
+		 * Where the song playing was in {@link #songs}, or -1 if nothing was playing.
+		 */
+		public final int index;
+		public final long positionSecs;
+		private final ByteBuffer mShuffle;
+
+		Session(Path dir, boolean recursive, List<Path> songs, int index, long positionSecs, ByteBuffer shuffle) {
+			this.dir = dir;
+			this.recursive = recursive;
+			this.songs = songs;
+			this.index = index;
+			this.positionSecs = positionSecs;
+			mShuffle = shuffle;
+		}
+
+		/**
+		 * Puts random mode back where it was, over {@link #songs}.
+		 */
+		public void restoreShuffle(Shuffle shuffle) {
+			shuffle.restore(mShuffle, 0, i -> (0 <= i && i < songs.size()) ? songs.get(i) : null);
+		}
+	}
+}
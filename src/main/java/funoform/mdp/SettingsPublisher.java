@@ -0,0 +1,151 @@
+package funoform.mdp;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import funoform.mdp.types.SettingsChanged;
+
+/**
+ * Hands out the {@link Controller}'s settings to subscribers, each on their own
+ * time.
+ *
+ * Every subscriber has a queue that only ever holds the latest settings. A new
+ * update replaces one the subscriber hasn't got to yet rather than queuing
+ * behind it. A subscriber that is slow, say sending over DBus, just skips the
+ * progress updates it was too busy for and catches up with the latest. And
+ * whoever publishes never waits on any of them, so nothing a subscriber does
+ * can hold up playback.
+ *
+ * When an update is skipped, the fields it changed are added to those marked
+ * as changed on the update that replaced it. So subscribers can rely on
+ * {@link SettingsChanged#isChanged(int)} to say what changed since the last
+ * update they got.
+ *
+ * Subscribers are called from a pool of threads, one at a time per subscriber
+ * and in the order the settings were submitted.
+ */
+public class SettingsPublisher implements Flow.Publisher<SettingsChanged> {
+	private static final Logger sLogger = Logger.getLogger(SettingsPublisher.class.getName());
+
+	private final List<LatestSubscription> mSubscriptions = new CopyOnWriteArrayList<>();
+	// Guarded by this, so a new subscriber is offered the latest before anything
+	// newer
+	private SettingsChanged mLatest;
+	private final ExecutorService mExecutor = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "SettingsEvents");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * Subscribes. The subscriber is sent the latest settings, if any, as soon as it
+	 * requests them.
+	 */
+	@Override
+	public void subscribe(Flow.Subscriber<? super SettingsChanged> subscriber) {
+		LatestSubscription sub = new LatestSubscription(subscriber);
+		subscriber.onSubscribe(sub);
+		// Locked the same as submit(), or settings submitted between adding the
+		// subscription and offering it the latest would be replaced by older ones
+		synchronized (this) {
+			mSubscriptions.add(sub);
+			SettingsChanged latest = mLatest;
+			if (null != latest) {
+				// everything is new to a new subscriber
+				sub.offer(latest.withChanged(SettingsChanged.ALL));
+			}
+		}
+	}
+
+	/**
+	 * Sends settings to every subscriber. Returns right away.
+	 *
+	 * @param settings Don't change it after this. Subscribers all get the same
+	 *                 object.
+	 */
+	public synchronized void submit(SettingsChanged settings) {
+		mLatest = settings;
+		for (LatestSubscription sub : mSubscriptions) {
+			sub.offer(settings);
+		}
+	}
+
+	/**
+	 * A subscription with room for just the latest settings.
+	 */
+	private class LatestSubscription implements Flow.Subscription, Runnable {
+		private final Flow.Subscriber<? super SettingsChanged> mSubscriber;
+		private final AtomicReference<SettingsChanged> mPending = new AtomicReference<>();
+		private final AtomicLong mDemand = new AtomicLong();
+		// How many times we were asked to deliver since we last checked. Only the one
+		// that took it from 0 starts delivering, so deliveries never overlap.
+		private final AtomicInteger mWork = new AtomicInteger();
+		private volatile boolean mIsCancelled = false;
+
+		LatestSubscription(Flow.Subscriber<? super SettingsChanged> subscriber) {
+			mSubscriber = subscriber;
+		}
+
+		void offer(SettingsChanged settings) {
+			mPending.getAndUpdate(skipped -> (null == skipped) ? settings : settings.withChanged(skipped.getChanged()));
+			deliver();
+		}
+
+		@Override
+		public void request(long n) {
+			if (0 >= n) {
+				cancel();
+				mSubscriber.onError(new IllegalArgumentException("Must request a positive number, not " + n));
+				return;
+			}
+			mDemand.getAndAccumulate(n, (cur, add) -> (Long.MAX_VALUE - cur < add) ? Long.MAX_VALUE : cur + add);
+			deliver();
+		}
+
+		@Override
+		public void cancel() {
+			mIsCancelled = true;
+			mSubscriptions.remove(this);
+		}
+
+		private void deliver() {
+			if (0 == mWork.getAndIncrement()) {
+				mExecutor.execute(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			int work = 1;
+			while (true) {
+				while (!mIsCancelled && 0 < mDemand.get()) {
+					SettingsChanged settings = mPending.getAndSet(null);
+					if (null == settings) {
+						break;
+					}
+					if (Long.MAX_VALUE != mDemand.get()) {
+						mDemand.decrementAndGet();
+					}
+					try {
+						mSubscriber.onNext(settings);
+					} catch (Exception e) {
+						// Don't let one jerk ruin it for everyone. Log the error and move on.
+						sLogger.log(Level.SEVERE, "Exception while handling new settings: " + e.getMessage());
+					}
+				}
+				work = mWork.addAndGet(-work);
+				if (0 == work) {
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,295 @@
+package funoform.mdp;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * Decides what plays next in random mode, and remembers what played so the
+ * previous track button still works.
+ *
+ * Picking a random song each time means songs repeat long before the queue has
+ * all been played. Shuffling a copy of the queue up front fixes that, but costs
+ * an int per song and a pause to shuffle a big queue. Instead we walk through
+ * the queue positions in a random order worked out one step at a time: a
+ * Feistel network scrambles the numbers 0, 1, 2, ... into every position in the
+ * queue exactly once. All it needs to remember is a key and how far along we
+ * are.
+ *
+ * The queue grows while a directory is being searched, and whenever songs are
+ * added to it later, so the order covers twice as many positions as there are
+ * songs and skips any past the end of the queue. Songs added later just fill
+ * in positions the order hasn't reached yet. Only once the queue outgrows that
+ * does the order start over with a new key.
+ *
+ * Positions move around when songs are inserted or the queue is sorted, so the
+ * order alone can't say which songs have played. The queue marks each song
+ * that plays in random mode ({@link PlayQueue#markPlayed(int)}), one bit per
+ * song, and the order skips any it lands on. Songs in positions the order had
+ * already passed when they were added are picked up by going round again in a
+ * new order once this one runs out, skipping everything played.
+ *
+ * Not thread safe.
+ */
+public class Shuffle {
+	/**
+	 * How many songs back the previous track button can go.
+	 */
+	private static final int HISTORY_SIZE = 512;
+	private static final int NUM_ROUNDS = 4;
+	/**
+	 * How many bytes {@link #save(ByteBuffer, int, ToIntFunction)} takes.
+	 */
+	public static final int STATE_BYTES = 8 + 4 * 4 + 4 * HISTORY_SIZE;
+
+	private final Random mRandom;
+	// How many positions the current order covers
+	private int mDomain = 0;
+	private long mKey;
+	private int mHalfBits;
+	private long mHalfMask;
+	// How far through the current order we are
+	private int mNumStepped = 0;
+
+	// A ring of the songs played, oldest first. mHistoryPos is the song playing,
+	// which is only before the newest when we have gone back.
+	private final Path[] mHistory = new Path[HISTORY_SIZE];
+	private int mHistoryStart = 0;
+	private int mHistoryLen = 0;
+	private int mHistoryPos = -1;
+
+	public Shuffle(Random random) {
+		mRandom = random;
+	}
+
+	/**
+	 * Forgets the random order, for when the queue is replaced with another. A
+	 * new one is worked out when next needed.
+	 */
+	public void reset() {
+		setOrder(0, 0);
+		mNumStepped = 0;
+	}
+
+	/**
+	 * Starts a new random order with room for the queue to grow.
+	 */
+	private void newOrder(int size) {
+		setOrder(Math.max(16, size * 2), mRandom.nextLong());
+		mNumStepped = 0;
+	}
+
+	/**
+	 * Writes where we are in the random order, and the songs played, so they can
+	 * be picked up again with {@link #restore(ByteBuffer, int, IntFunction)}.
+	 * Songs are written as their position in the queue.
+	 *
+	 * @param indexOf Where a song is in the queue, or -1 if it isn't.
+	 */
+	public void save(ByteBuffer buf, int pos, ToIntFunction<Path> indexOf) {
+		buf.putLong(pos, mKey);
+		buf.putInt(pos + 8, mDomain);
+		buf.putInt(pos + 12, mNumStepped);
+		// songs no longer queued are left out
+		int len = 0;
+		int histPos = mHistoryPos;
+		for (int i = 0; i < mHistoryLen; i++) {
+			int index = indexOf.applyAsInt(mHistory[ringIndex(i)]);
+			if (-1 == index) {
+				if (i <= mHistoryPos) {
+					histPos--;
+				}
+				continue;
+			}
+			buf.putInt(pos + 24 + len * 4, index);
+			len++;
+		}
+		buf.putInt(pos + 16, len);
+		buf.putInt(pos + 20, clampHistoryPos(histPos, len));
+	}
+
+	/**
+	 * Picks up where {@link #save(ByteBuffer, int, ToIntFunction)} left off.
+	 *
+	 * @param songAt The song at a position in the queue, or null if there's no
+	 *               such position.
+	 */
+	public void restore(ByteBuffer buf, int pos, IntFunction<Path> songAt) {
+		setOrder(buf.getInt(pos + 8), buf.getLong(pos));
+		mNumStepped = buf.getInt(pos + 12);
+		int len = Math.min(HISTORY_SIZE, buf.getInt(pos + 16));
+		int histPos = buf.getInt(pos + 20);
+		mHistoryStart = 0;
+		mHistoryLen = 0;
+		for (int i = 0; i < len; i++) {
+			Path song = songAt.apply(buf.getInt(pos + 24 + i * 4));
+			if (null != song) {
+				mHistory[mHistoryLen++] = song;
+			} else if (i <= histPos) {
+				histPos--;
+			}
+		}
+		mHistoryPos = clampHistoryPos(histPos, mHistoryLen);
+	}
+
+	/**
+	 * The song playing may have been taken out of the history, in which case the
+	 * one after it takes its place. Only -1 when the history is empty.
+	 */
+	private static int clampHistoryPos(int histPos, int len) {
+		return (0 == len) ? -1 : Math.max(0, Math.min(histPos, len - 1));
+	}
+
+	private void setOrder(int domain, long key) {
+		mDomain = domain;
+		mKey = key;
+		// Scramble numbers with enough bits to cover every position, split evenly into
+		// the left and right halves the network works on
+		int bits = Math.max(2, 32 - Integer.numberOfLeadingZeros(Math.max(1, domain - 1)));
+		mHalfBits = (bits + 1) / 2;
+		mHalfMask = (1L << mHalfBits) - 1;
+	}
+
+	/**
+	 * Picks the next song to play. Picks the same song until it has been marked
+	 * played in the queue, so this is also how to find out what is next.
+	 *
+	 * @param queue  The songs queued, and which have played.
+	 * @param repeat True to start a new random order once every song has played.
+	 * @return The position of the next song to play, or -1 if every song has
+	 *         played.
+	 */
+	public int nextIndex(PlayQueue queue, boolean repeat) {
+		int size = queue.size();
+		if (0 == size) {
+			return -1;
+		}
+		if (queue.getNumPlayed() >= size) {
+			if (!repeat) {
+				return -1;
+			}
+			queue.clearPlayed();
+			int current = queue.getCurrentIndex();
+			if (1 < size && -1 != current) {
+				// don't play the song playing again straight away
+				queue.markPlayed(current);
+			}
+			newOrder(size);
+		} else if (size > mDomain) {
+			newOrder(size);
+		}
+
+		// There is a song yet to play, and going through a whole order reaches every
+		// position, so this finds it within two orders at most
+		while (true) {
+			if (mNumStepped >= mDomain) {
+				// Songs were added in positions we'd already been past
+				newOrder(size);
+			}
+			int index = permute(mNumStepped);
+			if (index < size && !queue.isPlayed(index)) {
+				return index;
+			}
+			mNumStepped++;
+		}
+	}
+
+	/**
+	 * Records a song that started playing. Forgets any songs we went back past.
+	 */
+	public void played(Path song) {
+		if (0 <= mHistoryPos && song.equals(mHistory[ringIndex(mHistoryPos)])) {
+			// e.g. playing the song we just went back to
+			return;
+		}
+		// drop anything after where we are now, which is everything if there is no
+		// song playing
+		mHistoryLen = Math.max(0, mHistoryPos + 1);
+		if (mHistoryLen == HISTORY_SIZE) {
+			// forget the oldest
+			mHistoryStart = (mHistoryStart + 1) % HISTORY_SIZE;
+			mHistoryLen--;
+		}
+		mHistory[ringIndex(mHistoryLen)] = song;
+		mHistoryLen++;
+		mHistoryPos = mHistoryLen - 1;
+	}
+
+	/**
+	 * Steps back through the songs played.
+	 *
+	 * @return The song played before the one playing, or null if we can't go back
+	 *         any further.
+	 */
+	public Path back() {
+		if (mHistoryPos <= 0) {
+			return null;
+		}
+		mHistoryPos--;
+		return mHistory[ringIndex(mHistoryPos)];
+	}
+
+	/**
+	 * Steps forward again after going {@link #back()}.
+	 *
+	 * @return The song played after the one playing, or null if the song playing
+	 *         is the newest and a new song should be picked.
+	 */
+	public Path forward() {
+		if (mHistoryPos >= mHistoryLen - 1) {
+			return null;
+		}
+		mHistoryPos++;
+		return mHistory[ringIndex(mHistoryPos)];
+	}
+
+	/**
+	 * @return What {@link #forward()} would return, without moving forward.
+	 */
+	public Path peekForward() {
+		if (mHistoryPos >= mHistoryLen - 1) {
+			return null;
+		}
+		return mHistory[ringIndex(mHistoryPos + 1)];
+	}
+
+	private int ringIndex(int pos) {
+		return (mHistoryStart + pos) % HISTORY_SIZE;
+	}
+
+	/**
+	 * Maps 0 to mDomain-1 onto 0 to mDomain-1 with each number hit exactly once.
+	 */
+	private int permute(int i) {
+		// The network scrambles every number with 2 * mHalfBits bits, which can be up
+		// to 4 times as many numbers as we have. Anything that lands outside the domain
+		// is scrambled again until it lands inside. Still one to one, and on average
+		// only a couple of rounds.
+		long x = i;
+		do {
+			x = encrypt(x);
+		} while (x >= mDomain);
+		return (int) x;
+	}
+
+	private long encrypt(long x) {
+		long left = x >>> mHalfBits;
+		long right = x & mHalfMask;
+		for (int round = 0; round < NUM_ROUNDS; round++) {
+			long next = left ^ (mix(right, round) & mHalfMask);
+			left = right;
+			right = next;
+		}
+		return (left << mHalfBits) | right;
+	}
+
+	private long mix(long x, int round) {
+		// SplitMix64 finalizer
+		long z = x + mKey + round * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
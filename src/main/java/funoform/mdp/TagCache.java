@@ -0,0 +1,427 @@
+package funoform.mdp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import funoform.mdp.types.SongTags;
+
+/**
+ * Every song's tags, read in the background and kept on disk between runs, so
+ * showing a song's title never means reading the song.
+ *
+ * {@link #get(Path)} only ever looks in the cache. Songs are read by a couple
+ * of background threads once asked for with {@link #read(List)}, or
+ * {@link #readFirst(Path)} to jump the line. A song is only read again if its
+ * modification time changed since.
+ *
+ * Saved the same way as the {@link LibraryIndex}: the file is memory mapped
+ * when loaded, and a song's tags are only decoded from it when asked for. Tags
+ * read since are kept on the heap until written back out. Songs that have gone
+ * are dropped when saving: those found missing when read, and those missing
+ * from the {@link LibraryIndex} listing of their directory.
+ */
+public class TagCache {
+	private static final Logger sLogger = Logger.getLogger(TagCache.class.getName());
+	private static final int MAGIC = 0x4d445054; // "MDPT"
+	private static final int VERSION = 2;
+	/**
+	 * How many songs to read at once. Reading tags is mostly waiting on the disk,
+	 * and a phone's flash doesn't get any faster with more at once.
+	 */
+	private static final int NUM_READERS = 2;
+
+	private final Path mFile;
+	private final Supplier<LibraryIndex> mIndex;
+	private final ByteBuffer mMapped;
+	private final Map<String, Integer> mMappedOffsets;
+	private final Map<String, Entry> mRead = new ConcurrentHashMap<>();
+	// Songs found to be gone since they were read. Dropped on the next save.
+	private final Set<String> mGone = ConcurrentHashMap.newKeySet();
+	private final AtomicBoolean mDirty = new AtomicBoolean(false);
+	private final LinkedBlockingDeque<Path> mToRead = new LinkedBlockingDeque<>();
+	private final Set<Path> mWaiting = ConcurrentHashMap.newKeySet();
+	private volatile ITagListener mListener;
+	private final ExecutorService mWriter = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "TagCacheWriter");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private TagCache(Path file, Supplier<LibraryIndex> index, ByteBuffer mapped, Map<String, Integer> mappedOffsets) {
+		mFile = file;
+		mIndex = index;
+		mMapped = mapped;
+		mMappedOffsets = mappedOffsets;
+		for (int i = 0; i < NUM_READERS; i++) {
+			Thread t = new Thread(this::readSongs, "TagReader");
+			t.setDaemon(true);
+			// never at the expense of playback
+			t.setPriority(Thread.MIN_PRIORITY);
+			t.start();
+		}
+	}
+
+	/**
+	 * Loads the cache from disk. If the cache doesn't exist or can't be read, an
+	 * empty cache is returned which will be saved to the specified file later.
+	 *
+	 * @param index Gets the library index, to check which songs are still there
+	 *              when saving. Can give null if there isn't one yet.
+	 */
+	public static TagCache load(Path file, Supplier<LibraryIndex> index) {
+		if (Files.isRegularFile(file)) {
+			try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+				MappedByteBuffer mapped = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+				Map<String, Integer> offsets = readSongOffsets(mapped);
+				sLogger.log(Level.FINE, "Loaded tags for " + offsets.size() + " songs from " + file);
+				return new TagCache(file, index, mapped, offsets);
+			} catch (IOException | RuntimeException e) {
+				// we'll just have to read the tags again
+				sLogger.log(Level.WARNING, "Ignoring unreadable tag cache " + file + ". " + e.getMessage());
+			}
+		}
+		return new TagCache(file, index, null, new HashMap<>());
+	}
+
+	/**
+	 * @param l Hears about songs whose tags were read, or changed. Called from the
+	 *          reader threads.
+	 */
+	public void setListener(ITagListener l) {
+		mListener = l;
+	}
+
+	/**
+	 * Gets a song's tags, from the cache only. Never touches the disk.
+	 *
+	 * @return The tags, or null if the song hasn't been read yet.
+	 */
+	public SongTags get(Path song) {
+		Entry e = getEntry(song.toString());
+		return (null == e) ? null : e.tags;
+	}
+
+	/**
+	 * Reads these songs' tags in the background, if not already cached. Songs
+	 * already waiting to be read stay where they are in line.
+	 */
+	public void read(List<Path> songs) {
+		for (Path song : songs) {
+			if (mWaiting.add(song)) {
+				mToRead.offerLast(song);
+			}
+		}
+	}
+
+	/**
+	 * Reads a song's tags in the background before any others still waiting, if
+	 * not already cached. For the song about to play.
+	 */
+	public void readFirst(Path song) {
+		mWaiting.add(song);
+		mToRead.offerFirst(song);
+	}
+
+	/**
+	 * Runs on each of the reader threads, for as long as we run.
+	 */
+	private void readSongs() {
+		while (true) {
+			Path song;
+			try {
+				song = mToRead.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			mWaiting.remove(song);
+			readSong(song);
+			if (mToRead.isEmpty()) {
+				saveInBackground();
+			}
+		}
+	}
+
+	private void readSong(Path song) {
+		String key = song.toString();
+		long mtimeMs;
+		try {
+			mtimeMs = Files.getLastModifiedTime(song).toMillis();
+		} catch (NoSuchFileException e) {
+			if (null != mRead.remove(key) || mMappedOffsets.containsKey(key)) {
+				mGone.add(key);
+				mDirty.set(true);
+			}
+			return;
+		} catch (IOException | SecurityException e) {
+			// maybe just the network mount playing up, so keep what we have
+			return;
+		}
+		Entry cached = getEntry(key);
+		if (null != cached && cached.mtimeMs == mtimeMs) {
+			return;
+		}
+
+		SongTags tags;
+		try {
+			tags = Id3Reader.read(song);
+		} catch (IOException | RuntimeException e) {
+			sLogger.log(Level.FINE, "Unable to read the tags of " + song + ". " + e.getMessage());
+			// Remember it has none, so we don't try again until it changes
+			tags = new SongTags(null, null, null, null, 0, 0, -1, 0);
+		}
+		mRead.put(key, new Entry(mtimeMs, tags));
+		mGone.remove(key);
+		mDirty.set(true);
+
+		ITagListener l = mListener;
+		if (null != l) {
+			try {
+				l.tagsRead(song, tags);
+			} catch (Exception e) {
+				sLogger.log(Level.WARNING, "Exception while handling tags read: " + e.getMessage());
+			}
+		}
+	}
+
+	private Entry getEntry(String key) {
+		Entry e = mRead.get(key);
+		if (null == e) {
+			Integer offset = mMappedOffsets.get(key);
+			if (null != offset) {
+				e = readEntry(mMapped, offset);
+			}
+		}
+		return e;
+	}
+
+	/**
+	 * Writes the cache back to disk on a background thread, if anything changed.
+	 */
+	public void saveInBackground() {
+		if (mDirty.get()) {
+			mWriter.execute(this::saveIfDirty);
+		}
+	}
+
+	/**
+	 * Writes the cache back to disk on the calling thread, if anything changed.
+	 */
+	public synchronized void saveIfDirty() {
+		if (!mDirty.getAndSet(false)) {
+			return;
+		}
+		try {
+			save();
+		} catch (IOException e) {
+			mDirty.set(true);
+			sLogger.log(Level.WARNING, "Failed to save tag cache " + mFile + ". " + e.getMessage());
+		}
+	}
+
+	private void save() throws IOException {
+		// Songs from the old file are copied across as they are, without decoding
+		// them. Newly read songs win over whatever was in the old file.
+		LibraryIndex index = mIndex.get();
+		Map<String, Set<String>> listings = new HashMap<>();
+		List<Integer> kept = new ArrayList<>();
+		int size = 12;
+		for (Map.Entry<String, Integer> e : mMappedOffsets.entrySet()) {
+			String key = e.getKey();
+			if (mRead.containsKey(key) || mGone.contains(key) || isUnlisted(key, index, listings)) {
+				continue;
+			}
+			kept.add(e.getValue());
+			size += 4 + mMapped.getInt(e.getValue());
+		}
+		// Songs read this run were there when read, so are always kept
+		List<byte[]> chunks = new ArrayList<>();
+		for (Map.Entry<String, Entry> e : mRead.entrySet()) {
+			byte[] chunk = encode(e.getKey(), e.getValue());
+			chunks.add(chunk);
+			size += chunk.length;
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		buf.putInt(MAGIC);
+		buf.putInt(VERSION);
+		buf.putInt(kept.size() + chunks.size());
+		for (int offset : kept) {
+			int len = 4 + mMapped.getInt(offset);
+			buf.put(buf.position(), mMapped, offset, len);
+			buf.position(buf.position() + len);
+		}
+		for (byte[] chunk : chunks) {
+			buf.put(chunk);
+		}
+		buf.flip();
+
+		// Write to a temp file then swap it in so a crash mid-write never leaves us
+		// with a half written cache. Our mapping of the old file stays valid after the
+		// swap and anything newer is in mRead, so there is no need to remap.
+		Files.createDirectories(mFile.getParent());
+		Path tmp = mFile.resolveSibling(mFile.getFileName() + ".tmp");
+		try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (buf.hasRemaining()) {
+				fc.write(buf);
+			}
+		}
+		Files.move(tmp, mFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		sLogger.log(Level.FINE, "Saved tags for " + (kept.size() + chunks.size()) + " songs to " + mFile);
+	}
+
+	/**
+	 * Checks if the library index's last listing of a song's directory is missing
+	 * the song. Songs in directories it never listed are given the benefit of the
+	 * doubt.
+	 *
+	 * @param listings The listings looked up so far, so each directory is only
+	 *                 decoded once per save.
+	 */
+	private static boolean isUnlisted(String song, LibraryIndex index, Map<String, Set<String>> listings) {
+		if (null == index) {
+			return false;
+		}
+		Path p = Path.of(song);
+		Path dir = p.getParent();
+		if (null == dir) {
+			return false;
+		}
+		String key = dir.toString();
+		Set<String> files = listings.get(key);
+		if (null == files && !listings.containsKey(key)) {
+			files = index.getLastMusicFiles(dir);
+			listings.put(key, files);
+		}
+		return null != files && !files.contains(p.getFileName().toString());
+	}
+
+	private static Map<String, Integer> readSongOffsets(ByteBuffer buf) throws IOException {
+		if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+			throw new IOException("Not a version " + VERSION + " tag cache");
+		}
+		int count = buf.getInt(8);
+		Map<String, Integer> offsets = new HashMap<>(count * 2);
+		int pos = 12;
+		for (int i = 0; i < count; i++) {
+			int entryLen = buf.getInt(pos);
+			offsets.put(readString(buf, pos + 4), pos);
+			pos += 4 + entryLen;
+		}
+		return offsets;
+	}
+
+	/**
+	 * Layout of a single song's entry: int entryLen, string path, long mtimeMs,
+	 * strings title, artist, album, and genre, int track number, int year, long art
+	 * offset, int art length. Where a string is an int byte count followed by UTF-8
+	 * bytes, or a count of -1 for no string at all.
+	 */
+	private static byte[] encode(String song, Entry entry) {
+		SongTags tags = entry.tags;
+		byte[][] strs = { utf8(song), utf8(tags.title), utf8(tags.artist), utf8(tags.album), utf8(tags.genre) };
+		int len = 8 + 4 + 4 + 8 + 4;
+		for (byte[] b : strs) {
+			len += 4 + ((null == b) ? 0 : b.length);
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate(4 + len);
+		buf.putInt(len);
+		putString(buf, strs[0]);
+		buf.putLong(entry.mtimeMs);
+		putString(buf, strs[1]);
+		putString(buf, strs[2]);
+		putString(buf, strs[3]);
+		putString(buf, strs[4]);
+		buf.putInt(tags.trackNumber);
+		buf.putInt(tags.year);
+		buf.putLong(tags.artOffset);
+		buf.putInt(tags.artLength);
+		return buf.array();
+	}
+
+	private static Entry readEntry(ByteBuffer buf, int pos) {
+		// skip the entry length and song path
+		pos += 4;
+		pos += 4 + buf.getInt(pos);
+		long mtimeMs = buf.getLong(pos);
+		pos += 8;
+		String[] strs = new String[4];
+		for (int i = 0; i < strs.length; i++) {
+			strs[i] = readString(buf, pos);
+			pos += 4 + Math.max(0, buf.getInt(pos));
+		}
+		SongTags tags = new SongTags(strs[0], strs[1], strs[2], strs[3], buf.getInt(pos), buf.getInt(pos + 4),
+				buf.getLong(pos + 8), buf.getInt(pos + 16));
+		return new Entry(mtimeMs, tags);
+	}
+
+	private static byte[] utf8(String s) {
+		return (null == s) ? null : s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void putString(ByteBuffer buf, byte[] utf8) {
+		if (null == utf8) {
+			buf.putInt(-1);
+			return;
+		}
+		buf.putInt(utf8.length);
+		buf.put(utf8);
+	}
+
+	private static String readString(ByteBuffer buf, int pos) {
+		// Absolute reads only. The mapped buffer is shared by all reader threads.
+		int len = buf.getInt(pos);
+		if (0 > len) {
+			return null;
+		}
+		byte[] b = new byte[len];
+		buf.get(pos + 4, b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * A song's tags as of its modification time when they were read.
+	 */
+	private static class Entry {
+		final long mtimeMs;
+		final SongTags tags;
+
+		Entry(long mtimeMs, SongTags tags) {
+			this.mtimeMs = mtimeMs;
+			this.tags = tags;
+		}
+	}
+
+	/**
+	 * How the {@link TagCache} tells its owner about tags read.
+	 */
+	public interface ITagListener {
+		/**
+		 * A song's tags were read for the first time, or read again because the song
+		 * changed.
+		 */
+		public void tagsRead(Path song, SongTags tags);
+	}
+}
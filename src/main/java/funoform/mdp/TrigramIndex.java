@@ -0,0 +1,583 @@
+package funoform.mdp;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds songs and directories anywhere in the library from part of their name,
+ * spelt roughly right, as fast as someone can type.
+ *
+ * Every name is broken into trigrams, each run of three letters, e.g. "floyd"
+ * is " fl", "flo", "loy", "oyd", "yd ". Each trigram lists the rows of the names
+ * it is in. A search breaks the query into trigrams the same way and counts how
+ * many of them each name shares. Names sharing most of them are a match even
+ * with a typo or a missing word, and names sharing all of them rank first,
+ * shorter names before longer ones.
+ *
+ * A trigram's rows are ascending, so they are kept as the gap from one row to
+ * the next, a byte or two each, rather than an int each. A million names come
+ * to around 20 million of those.
+ *
+ * Searches run on their own thread. Starting a search cancels the one before
+ * it, so typing quickly only ever searches for what was typed last. Names are
+ * added on another thread, at low priority. Thread safe.
+ */
+public class TrigramIndex {
+	private static final Logger sLogger = Logger.getLogger(TrigramIndex.class.getName());
+	private static final int NONE = -1;
+	private static final int EMPTY = -1;
+	private static final int DELETED = -2;
+	private static final int INITIAL_CAPACITY = 16;
+	private static final int MIN_DEAD_TO_COMPACT = 4096;
+	/**
+	 * A name has to share at least this much of the query's trigrams to match.
+	 * One typo in a word loses up to three of its trigrams, so this lets a short
+	 * query like "pnk floid" still find "Pink Floyd".
+	 */
+	private static final float MIN_SHARED = 0.5f;
+	/**
+	 * How often a search checks whether it has been cancelled, in rows.
+	 */
+	private static final int CANCEL_CHECK_ROWS = 65536;
+
+	private final ExecutorService mIndexer = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "PathIndexer");
+		t.setDaemon(true);
+		// never at the expense of playback
+		t.setPriority(Thread.MIN_PRIORITY);
+		return t;
+	});
+	private final ExecutorService mSearcher = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "PathFinder");
+		t.setDaemon(true);
+		return t;
+	});
+	private final Object mLatestLock = new Object();
+	private CompletableFuture<List<Match>> mLatest;
+
+	// By row
+	private CompactPathList mPaths = new CompactPathList();
+	private int[] mHash = new int[INITIAL_CAPACITY];
+	private int[] mNumTrigrams = new int[INITIAL_CAPACITY];
+	private BitSet mIsDir = new BitSet();
+	private BitSet mDead = new BitSet();
+	private int mNumDead = 0;
+
+	// The rows of the names with each trigram in them, by the trigram's three
+	// chars packed into a long
+	private Map<Long, Rows> mTrigrams = new HashMap<>();
+
+	// The live row of each path, by the hash of the path
+	private int[] mTable = newTable(INITIAL_CAPACITY * 2);
+	private int mTableUsed = 0;
+
+	// How many of the query's trigrams each row has, and which rows have any.
+	// Only used while holding the lock.
+	private int[] mShared = new int[INITIAL_CAPACITY];
+	private int[] mTouched = new int[INITIAL_CAPACITY];
+
+	/**
+	 * Indexes every directory and song in the library index, as of their last
+	 * scan.
+	 */
+	public void addLibrary(LibraryIndex library) {
+		mIndexer.execute(() -> {
+			long start = System.currentTimeMillis();
+			library.forEach((dir, listing) -> {
+				synchronized (this) {
+					addIfNew(dir, true);
+					for (String name : listing.musicFiles) {
+						addIfNew(dir.resolve(name), false);
+					}
+				}
+			});
+			sLogger.log(Level.FINE, "Indexed " + size() + " paths from the library index in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		});
+	}
+
+	/**
+	 * Indexes songs just found, and the directories they are in, all the way up.
+	 * An artist directory may only have album directories in it, no songs.
+	 */
+	public void addSongs(List<Path> songs) {
+		mIndexer.execute(() -> {
+			for (Path song : songs) {
+				synchronized (this) {
+					// once a directory is already there, so are all the ones above it
+					Path dir = song.getParent();
+					while (null != dir && addIfNew(dir, true)) {
+						dir = dir.getParent();
+					}
+					addIfNew(song, false);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Forgets a song or directory that is gone. Anything under a directory is
+	 * forgotten separately.
+	 */
+	public void remove(Path path) {
+		mIndexer.execute(() -> {
+			synchronized (this) {
+				int row = findRow(path);
+				if (NONE != row) {
+					tableRemove(row);
+					mDead.set(row);
+					mNumDead++;
+					compactIfWorthIt();
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return How many songs and directories are indexed.
+	 */
+	public synchronized int size() {
+		return mPaths.size() - mNumDead;
+	}
+
+	/**
+	 * Searches in the background, cancelling any search still waiting or
+	 * running. For searching as someone types.
+	 *
+	 * @return The best matches first. Cancelled if another search starts before
+	 *         this one is done.
+	 */
+	public CompletableFuture<List<Match>> find(String query, int maxResults) {
+		CompletableFuture<List<Match>> ret = new CompletableFuture<>();
+		CompletableFuture<List<Match>> prior;
+		synchronized (mLatestLock) {
+			prior = mLatest;
+			mLatest = ret;
+		}
+		if (null != prior) {
+			prior.cancel(false);
+		}
+		mSearcher.execute(() -> {
+			if (ret.isDone()) {
+				// cancelled before it started
+				return;
+			}
+			try {
+				List<Match> matches = search(query, maxResults, ret::isCancelled);
+				if (null != matches) {
+					ret.complete(matches);
+				}
+			} catch (RuntimeException e) {
+				ret.completeExceptionally(e);
+			}
+		});
+		return ret;
+	}
+
+	/**
+	 * @return The best matches first, or null if cancelled part way.
+	 */
+	private synchronized List<Match> search(String query, int maxResults, BooleanSupplier isCancelled) {
+		long[] trigrams = trigramsOf(normalize(query), false);
+		if (0 == trigrams.length) {
+			return new ArrayList<>();
+		}
+
+		// Count how many of the query's trigrams each name has
+		int numRows = mPaths.size();
+		if (mShared.length < numRows) {
+			mShared = new int[numRows];
+			mTouched = new int[numRows];
+		}
+		int numTouched = 0;
+		for (long trigram : trigrams) {
+			Rows r = mTrigrams.get(trigram);
+			if (null == r) {
+				continue;
+			}
+			for (int at = 0, row = -1; at < r.len;) {
+				// gaps are 7 bits per byte, with the top bit set on all but the last byte
+				int gap = 0;
+				int shift = 0;
+				byte b;
+				do {
+					b = r.bytes[at++];
+					gap |= (b & 0x7F) << shift;
+					shift += 7;
+				} while (0 > b);
+				row += gap;
+				if (0 == mShared[row]++) {
+					mTouched[numTouched++] = row;
+				}
+			}
+			if (isCancelled.getAsBoolean()) {
+				clearShared(numTouched);
+				return null;
+			}
+		}
+
+		// Keep the best. The heap holds each match as its score's bits, which sort the
+		// same as the score for positive floats, then its row.
+		int minShared = (3 > trigrams.length) ? trigrams.length : (int) Math.ceil(trigrams.length * MIN_SHARED);
+		long[] heap = new long[Math.max(1, Math.min(maxResults, numTouched))];
+		int heapSize = 0;
+		for (int i = 0; i < numTouched; i++) {
+			int row = mTouched[i];
+			int shared = mShared[row];
+			mShared[row] = 0;
+			if (shared < minShared || mDead.get(row)) {
+				continue;
+			}
+			// Mostly how much of the query it has, then how little else it has
+			float score = (float) shared / trigrams.length + 0.25f * shared / mNumTrigrams[row];
+			long entry = ((long) Float.floatToIntBits(score) << 32) | (Integer.MAX_VALUE - row);
+			if (heapSize < heap.length) {
+				heap[heapSize++] = entry;
+				siftUp(heap, heapSize - 1);
+			} else if (entry > heap[0]) {
+				heap[0] = entry;
+				siftDown(heap, heapSize);
+			}
+			if (0 == i % CANCEL_CHECK_ROWS && isCancelled.getAsBoolean()) {
+				clearShared(numTouched);
+				return null;
+			}
+		}
+
+		long[] best = Arrays.copyOf(heap, heapSize);
+		Arrays.sort(best);
+		List<Match> ret = new ArrayList<>(heapSize);
+		for (int i = best.length - 1; i >= 0; i--) {
+			int row = Integer.MAX_VALUE - (int) best[i];
+			float score = Float.intBitsToFloat((int) (best[i] >>> 32));
+			ret.add(new Match(mPaths.get(row), mIsDir.get(row), score));
+		}
+		return ret;
+	}
+
+	private void clearShared(int numTouched) {
+		for (int i = 0; i < numTouched; i++) {
+			mShared[mTouched[i]] = 0;
+		}
+	}
+
+	private static void siftUp(long[] heap, int at) {
+		while (0 < at) {
+			int parent = (at - 1) / 2;
+			if (heap[parent] <= heap[at]) {
+				return;
+			}
+			long tmp = heap[parent];
+			heap[parent] = heap[at];
+			heap[at] = tmp;
+			at = parent;
+		}
+	}
+
+	private static void siftDown(long[] heap, int size) {
+		int at = 0;
+		while (true) {
+			int smallest = at;
+			int l = 2 * at + 1;
+			int r = l + 1;
+			if (l < size && heap[l] < heap[smallest]) {
+				smallest = l;
+			}
+			if (r < size && heap[r] < heap[smallest]) {
+				smallest = r;
+			}
+			if (smallest == at) {
+				return;
+			}
+			long tmp = heap[smallest];
+			heap[smallest] = heap[at];
+			heap[at] = tmp;
+			at = smallest;
+		}
+	}
+
+	/**
+	 * @return False if it was already indexed, or is the root directory.
+	 */
+	private boolean addIfNew(Path path, boolean isDir) {
+		if (NONE != findRow(path)) {
+			return false;
+		}
+		Path fileName = path.getFileName();
+		if (null == fileName) {
+			// the root directory is no use to search for
+			return false;
+		}
+		String name = fileName.toString();
+		if (!isDir) {
+			int dot = name.lastIndexOf('.');
+			name = (0 < dot) ? name.substring(0, dot) : name;
+		}
+
+		int row = mPaths.size();
+		mPaths.add(path);
+		ensureCapacity(row + 1);
+		mHash[row] = mix(path.hashCode());
+		mIsDir.set(row, isDir);
+		tableInsert(row);
+		long[] trigrams = trigramsOf(normalize(name), true);
+		for (long trigram : trigrams) {
+			Rows r = mTrigrams.get(trigram);
+			if (null == r) {
+				r = new Rows();
+				mTrigrams.put(trigram, r);
+			}
+			r.add(row);
+		}
+		mNumTrigrams[row] = Math.max(1, trigrams.length);
+		return true;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > mHash.length) {
+			int newCapacity = Math.max(capacity, mHash.length + (mHash.length >> 1));
+			mHash = Arrays.copyOf(mHash, newCapacity);
+			mNumTrigrams = Arrays.copyOf(mNumTrigrams, newCapacity);
+		}
+	}
+
+	/**
+	 * Throws away the dead rows once they are over half of all rows.
+	 */
+	private void compactIfWorthIt() {
+		int numRows = mPaths.size();
+		if (mNumDead < MIN_DEAD_TO_COMPACT || mNumDead <= numRows / 2) {
+			return;
+		}
+		int[] newRow = new int[numRows];
+		int[] live = new int[numRows - mNumDead];
+		int numLive = 0;
+		BitSet isDir = new BitSet();
+		for (int row = 0; row < numRows; row++) {
+			if (mDead.get(row)) {
+				newRow[row] = NONE;
+			} else {
+				isDir.set(numLive, mIsDir.get(row));
+				newRow[row] = numLive;
+				live[numLive++] = row;
+			}
+		}
+
+		mPaths = mPaths.extract(live, numLive);
+		int[] hash = new int[Math.max(INITIAL_CAPACITY, numLive)];
+		int[] numTrigrams = new int[hash.length];
+		for (int i = 0; i < numLive; i++) {
+			hash[i] = mHash[live[i]];
+			numTrigrams[i] = mNumTrigrams[live[i]];
+		}
+		mHash = hash;
+		mNumTrigrams = numTrigrams;
+		mIsDir = isDir;
+		mDead = new BitSet();
+		mNumDead = 0;
+		for (Iterator<Rows> it = mTrigrams.values().iterator(); it.hasNext();) {
+			if (!it.next().renumber(newRow)) {
+				it.remove();
+			}
+		}
+		mTable = newTable(Math.max(INITIAL_CAPACITY, numLive) * 2);
+		mTableUsed = 0;
+		for (int row = 0; row < numLive; row++) {
+			tableInsert(row);
+		}
+		mShared = new int[INITIAL_CAPACITY];
+		mTouched = new int[INITIAL_CAPACITY];
+		sLogger.log(Level.FINE, "Compacted the path index down to " + numLive + " paths");
+	}
+
+	/**
+	 * Lower case without accents, with anything that isn't a letter or digit
+	 * turned into a single space. So "Pink_Floyd-The Wall" is "pink floyd the
+	 * wall".
+	 */
+	static String normalize(String name) {
+		String folded = FileNameOrder.fold(name);
+		StringBuilder sb = new StringBuilder(folded.length());
+		for (int i = 0; i < folded.length(); i++) {
+			char c = folded.charAt(i);
+			if (Character.isLetterOrDigit(c)) {
+				sb.append(c);
+			} else if (0 < sb.length() && ' ' != sb.charAt(sb.length() - 1)) {
+				sb.append(' ');
+			}
+		}
+		return sb.toString().trim();
+	}
+
+	/**
+	 * @param isWhole True for a name, which ends where it ends. False for a query,
+	 *                which is probably the start of a longer word still being
+	 *                typed.
+	 * @return Each different trigram, as its three chars packed into a long.
+	 *         Padded with a space at the start so names starting with the query
+	 *         rank higher.
+	 */
+	static long[] trigramsOf(String s, boolean isWhole) {
+		String padded = " " + s + (isWhole ? " " : "");
+		if (3 > padded.length()) {
+			// a single letter query would match nearly everything
+			return new long[0];
+		}
+		long[] ret = new long[padded.length() - 2];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = ((long) padded.charAt(i) << 32) | ((long) padded.charAt(i + 1) << 16) | padded.charAt(i + 2);
+		}
+		return Arrays.stream(ret).distinct().toArray();
+	}
+
+	// ---- the hash table ----
+
+	private static int[] newTable(int capacity) {
+		int[] table = new int[Integer.highestOneBit(Math.max(2, capacity - 1)) << 1];
+		Arrays.fill(table, EMPTY);
+		return table;
+	}
+
+	private static int mix(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private int findRow(Path path) {
+		int mask = mTable.length - 1;
+		int h = mix(path.hashCode());
+		for (int slot = h & mask;; slot = (slot + 1) & mask) {
+			int row = mTable[slot];
+			if (EMPTY == row) {
+				return NONE;
+			}
+			if (DELETED != row && mHash[row] == h && mPaths.isAt(row, path)) {
+				return row;
+			}
+		}
+	}
+
+	private void tableInsert(int row) {
+		if (2 * (mTableUsed + 1) > mTable.length) {
+			// Too full, or too many deleted slots. Start over with a bigger table.
+			int[] old = mTable;
+			mTable = newTable(Math.max(INITIAL_CAPACITY, 4 * size()));
+			mTableUsed = 0;
+			for (int r : old) {
+				if (0 <= r) {
+					tableInsert(r);
+				}
+			}
+		}
+		int mask = mTable.length - 1;
+		int slot = mHash[row] & mask;
+		while (0 <= mTable[slot]) {
+			slot = (slot + 1) & mask;
+		}
+		if (EMPTY == mTable[slot]) {
+			mTableUsed++;
+		}
+		mTable[slot] = row;
+	}
+
+	private void tableRemove(int row) {
+		int mask = mTable.length - 1;
+		for (int slot = mHash[row] & mask;; slot = (slot + 1) & mask) {
+			if (EMPTY == mTable[slot]) {
+				return;
+			}
+			if (row == mTable[slot]) {
+				// leave a marker so the paths after it can still be found
+				mTable[slot] = DELETED;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * The rows with a trigram in them, as the gaps between ascending rows.
+	 */
+	private static class Rows {
+		byte[] bytes = new byte[4];
+		int len = 0;
+		int last = -1;
+
+		void add(int row) {
+			if (row == last) {
+				// a trigram can be in a name twice
+				return;
+			}
+			if (len + 5 > bytes.length) {
+				bytes = Arrays.copyOf(bytes, bytes.length * 2);
+			}
+			int gap = row - last;
+			while (gap >= 0x80) {
+				bytes[len++] = (byte) (gap | 0x80);
+				gap >>>= 7;
+			}
+			bytes[len++] = (byte) gap;
+			last = row;
+		}
+
+		/**
+		 * @return False if no rows are left.
+		 */
+		boolean renumber(int[] newRow) {
+			byte[] old = bytes;
+			int oldLen = len;
+			bytes = new byte[Math.max(4, oldLen)];
+			len = 0;
+			last = -1;
+			for (int at = 0, row = -1; at < oldLen;) {
+				int gap = 0;
+				int shift = 0;
+				byte b;
+				do {
+					b = old[at++];
+					gap |= (b & 0x7F) << shift;
+					shift += 7;
+				} while (0 > b);
+				row += gap;
+				if (NONE != newRow[row]) {
+					add(newRow[row]);
+				}
+			}
+			return 0 < len;
+		}
+	}
+
+	/**
+	 * A song or directory found, and how well it matched.
+	 */
+	public static class Match {
+		public final Path path;
+		public final boolean isDir;
+		/**
+		 * Higher is better. 1 or more means it had all of the query.
+		 */
+		public final float score;
+
+		Match(Path path, boolean isDir, float score) {
+			this.path = path;
+			this.isDir = isDir;
+			this.score = score;
+		}
+
+		@Override
+		public String toString() {
+			return "[Match: " + path + (isDir ? "/" : "") + " " + score + "]";
+		}
+	}
+}
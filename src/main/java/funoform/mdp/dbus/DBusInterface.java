@@ -1,5 +1,6 @@
 package funoform.mdp.dbus;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -18,6 +19,7 @@ import org.mpris.mediaplayer2.Player;
 import funoform.mdp.Controller;
 import funoform.mdp.Controller.SettingsListener;
 import funoform.mdp.types.SettingsChanged;
+import funoform.mdp.types.SongTags;
 
 /**
  * MPRIS (Media Player Remote Interfacing Specification). See:
@@ -37,13 +39,13 @@ import funoform.mdp.types.SettingsChanged;
  */
 public class DBusInterface implements MediaPlayer2, Player {
 	private static final Logger sLogger = Logger.getLogger(DBusInterface.class.getName());
+	private static final String TRACK_ID_PREFIX = "/funoform/mdp/track/";
 	private Controller mCtrl;
 	private DBusConnection mDbusConn;
 	private RaiseWindowRequestListener mRaiseListener;
 	private SettingsChanged mLastSettings = null;
 	private Object mLastSettingsLock = new Object();
 	private String mLastPlaybackStatus = "";
-	private String mLastSongPlaying = "";
 	private String mAppIcon = "file://" + System.getProperty("user.home") + "/.local/share/icons/mdp.png";
 	private String mDesktopFile = System.getProperty("user.home") + "/.local/share/applications/mdp.desktop";
 
@@ -68,12 +70,14 @@ public class DBusInterface implements MediaPlayer2, Player {
 					mLastSettings = newSettings;
 
 					// if we change state between playing, paused, and stopped, notify DBUS
-					String curPlaybackStatus = getPlaybackStatus();
-					if (curPlaybackStatus.compareToIgnoreCase(mLastPlaybackStatus) != 0) {
-						mLastPlaybackStatus = curPlaybackStatus;
-						Map<String, Variant<?>> prop = new HashMap<>();
-						prop.put("PlaybackStatus", new Variant<String>(mLastPlaybackStatus));
-						sendDbusPropeties(prop);
+					if (newSettings.isChanged(SettingsChanged.SONG | SettingsChanged.PAUSE)) {
+						String curPlaybackStatus = getPlaybackStatus();
+						if (curPlaybackStatus.compareToIgnoreCase(mLastPlaybackStatus) != 0) {
+							mLastPlaybackStatus = curPlaybackStatus;
+							Map<String, Variant<?>> prop = new HashMap<>();
+							prop.put("PlaybackStatus", new Variant<String>(mLastPlaybackStatus));
+							sendDbusPropeties(prop);
+						}
 					}
 
 					// If we started playing a new song, send updated metadata. We must manually
@@ -88,8 +92,7 @@ public class DBusInterface implements MediaPlayer2, Player {
 					// commented out the code below, our meta data would never update on the media
 					// control widget from what our app returned during the first get properties
 					// call.
-					if (mLastSongPlaying.compareTo(newSettings.songPlaying.toString()) != 0) {
-						mLastSongPlaying = newSettings.songPlaying.toString();
+					if (newSettings.isChanged(SettingsChanged.SONG) && null != newSettings.songPlaying) {
 						// Send the metadata map, but within a map, which dbus-java doesn't natively
 						// support. See https://github.com/hypfvieh/dbus-java/issues/74
 						Map<String, Variant<?>> md = getMetadata();
@@ -98,6 +101,12 @@ public class DBusInterface implements MediaPlayer2, Player {
 						changedProperties.put("Metadata", metaDataVariant);
 						sendDbusPropeties(changedProperties);
 					}
+
+					// Position doesn't send changes, as it changes all the time. Clients work it
+					// out from when we last said, unless we jump.
+					if (newSettings.isChanged(SettingsChanged.SEEK)) {
+						sendSeeked(getPosition());
+					}
 				}
 			}
 		});
@@ -116,6 +125,23 @@ public class DBusInterface implements MediaPlayer2, Player {
 		}
 	}
 
+	/**
+	 * @return The song's mpris:trackid. It has to be a D-Bus object path, which
+	 *         only allows letters, digits and underscores between the slashes, so
+	 *         the file's path won't do. A hash of it will.
+	 */
+	private static String getTrackId(Path song) {
+		return TRACK_ID_PREFIX + Integer.toHexString(song.toAbsolutePath().hashCode());
+	}
+
+	private void sendSeeked(long positionMicros) {
+		try {
+			mDbusConn.sendMessage(new Player.Seeked(getObjectPath(), positionMicros));
+		} catch (DBusException e) {
+			sLogger.log(Level.WARNING, "Failed to publish dbus seek. Exception = " + e.getMessage());
+		}
+	}
+
 	@Override
 	public String getObjectPath() {
 		// REQ: "The media player must expose the /org/mpris/MediaPlayer2 object path"
@@ -166,7 +192,9 @@ public class DBusInterface implements MediaPlayer2, Player {
 
 	@Override
 	public void Seek(long _arg0) {
-		sLogger.log(Level.WARNING, "DBus Seek is not supported");
+		sLogger.log(Level.FINE, "DBus: Seek " + _arg0);
+		// The offset is in microseconds. Past the end moves on to the next song.
+		mCtrl.seekBy(_arg0 / 1000);
 	}
 
 	@Override
@@ -176,7 +204,17 @@ public class DBusInterface implements MediaPlayer2, Player {
 
 	@Override
 	public void SetPosition(DBusPath _arg0, long _arg1) {
-		sLogger.log(Level.WARNING, "DBus SetPosition is not supported");
+		sLogger.log(Level.FINE, "DBus: SetPosition " + _arg1);
+		synchronized (mLastSettingsLock) {
+			// Per the spec, ignore it if the song has changed since, or it is outside the
+			// song
+			if (null == mLastSettings || null == mLastSettings.songPlaying
+					|| !getTrackId(mLastSettings.songPlaying).equals(_arg0.getPath()) || 0 > _arg1
+					|| _arg1 > mLastSettings.pbPercentage.getMaxTimeSecs() * 1000000) {
+				return;
+			}
+		}
+		mCtrl.seekTo(_arg1 / 1000);
 	}
 
 	@Override
@@ -274,7 +312,17 @@ public class DBusInterface implements MediaPlayer2, Player {
 
 	@Override
 	public boolean getCanSeek() {
-		return false;
+		return true;
+	}
+
+	@Override
+	public long getPosition() {
+		synchronized (mLastSettingsLock) {
+			if (null == mLastSettings) {
+				return 0;
+			}
+			return mLastSettings.pbPercentage.getCurTimeSecs() * 1000000;
+		}
 	}
 
 	@Override
@@ -308,7 +356,8 @@ public class DBusInterface implements MediaPlayer2, Player {
 		// https://www.freedesktop.org/wiki/Specifications/mpris-spec/metadata/
 		Map<String, Variant<?>> md = new HashMap<>();
 
-		md.put("mpris:trackid", new Variant<String>("Unknown trackId"));
+		// the spec's special value for no track
+		md.put("mpris:trackid", new Variant<DBusPath>(new DBusPath("/org/mpris/MediaPlayer2/TrackList/NoTrack")));
 		md.put("xesam:title", new Variant<String>("Unknown title"));
 		md.put("xesam:album", new Variant<String>("Unknown album"));
 		String[] tempArtist = { "Unknown artist" };
@@ -316,17 +365,29 @@ public class DBusInterface implements MediaPlayer2, Player {
 
 		synchronized (mLastSettingsLock) {
 			if (null != mLastSettings) {
-				int trackLenInMicroSecs = (int) (mLastSettings.pbPercentage.getMaxTimeSecs() * 10000);
+				long trackLenInMicroSecs = mLastSettings.pbPercentage.getMaxTimeSecs() * 1000000;
 				// mpris:trackid is the only required field. The rest are optional
-				md.put("mpris:trackid", new Variant<String>(mLastSettings.songPlaying.toAbsolutePath().toString()));
+				md.put("mpris:trackid", new Variant<DBusPath>(new DBusPath(getTrackId(mLastSettings.songPlaying))));
 				md.put("mpris:artUrl", new Variant<String>(mAppIcon)); // DISPLAYED
 
-				md.put("mpris:length", new Variant<Integer>(trackLenInMicroSecs));
-				md.put("xesam:title", new Variant<String>(mLastSettings.songPlaying.getFileName().toString())); // DISPLAYED
+				md.put("mpris:length", new Variant<Long>(trackLenInMicroSecs));
 
+				// Use the song's tags where it has them, otherwise the file and directory names
+				SongTags tags = mLastSettings.songTags;
 				String dirPlaying = mLastSettings.playingDir.getFileName().toString();
-				md.put("xesam:album", new Variant<String>(dirPlaying)); // DISPLAYED
+				String title = mLastSettings.songPlaying.getFileName().toString();
+				String album = dirPlaying;
 				String[] artist = { dirPlaying };
+				if (null != tags) {
+					title = (null != tags.title) ? tags.title : title;
+					album = (null != tags.album) ? tags.album : album;
+					artist[0] = (null != tags.artist) ? tags.artist : artist[0];
+					if (0 < tags.trackNumber) {
+						md.put("xesam:trackNumber", new Variant<Integer>(tags.trackNumber));
+					}
+				}
+				md.put("xesam:title", new Variant<String>(title)); // DISPLAYED
+				md.put("xesam:album", new Variant<String>(album)); // DISPLAYED
 				md.put("xesam:artist", new Variant<String[]>(artist)); // DISPLAYED
 			}
 		}
@@ -17,10 +17,15 @@ import javax.swing.JButton;
 import javax.swing.JComponent;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
+import javax.swing.JTextField;
 import javax.swing.SwingConstants;
 import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 
 import funoform.mdp.Controller;
+import funoform.mdp.DisplayUtils;
+import funoform.mdp.TrigramIndex.Match;
 
 /**
  * Provides a nice GUI for selecting the directory of music to play or play
@@ -31,6 +36,10 @@ import funoform.mdp.Controller;
  * them play the files in that directory, or play the files in that directory
  * and all sub-directories (recursive).
  * 
+ * There is also a find box along the top. Typing in it replaces the listing
+ * with the songs and directories anywhere in the library whose names look like
+ * what was typed, misspellings and all. Clearing it goes back to the listing.
+ * 
  * Once the user makes their selection, the {@link PathSelectionListener} is
  * notified. It is expected that the {@link PathSelectionListener} handler will
  * do something to hide the DirectoryPicker user interface once this selection
@@ -41,9 +50,14 @@ public class DirectoryPicker {
 	private PathSelectionListener mListener;
 	private JPanel mPanel = new JPanel();
 	private JScrollPane mScrollPane = new JScrollPane(mPanel);
+	private JTextField mFindField = new JTextField();
+	private JPanel mRoot = new JPanel(new BorderLayout());
+	private Path mCurDir;
 	private static final int MAX_DIR_CHARS = 40;
 	private static final int MAX_PARENTS = 3;
+	private static final String TOOLTIP_FIND = "Find a song or directory by name";
 	private static final int BUTTON_SIZE = 32;
+	private static final int MAX_FIND_MATCHES = 50;
 	private Icon mIconPlay;
 	private Icon mIconRecursive;
 	private Controller mCtrl;
@@ -72,13 +86,35 @@ public class DirectoryPicker {
 			// TODO: read value from config
 			mScrollPane.getVerticalScrollBar().setPreferredSize(new Dimension(30, 1));
 		}
+
+		mFindField.setToolTipText(TOOLTIP_FIND);
+		mFindField.getDocument().addDocumentListener(new DocumentListener() {
+			@Override
+			public void insertUpdate(DocumentEvent e) {
+				findChanged();
+			}
+
+			@Override
+			public void removeUpdate(DocumentEvent e) {
+				findChanged();
+			}
+
+			@Override
+			public void changedUpdate(DocumentEvent e) {
+				// attribute changes only, the text is the same
+			}
+		});
+
+		mRoot.add(mFindField, BorderLayout.NORTH);
+		mRoot.add(mScrollPane, BorderLayout.CENTER);
 	}
 
 	public JComponent getComponent() {
-		return mScrollPane;
+		return mRoot;
 	}
 
 	public void setStartingDir(Path p) {
+		mCurDir = p;
 		List<Path> subDirs = mCtrl.getAvailableDirs(p);
 
 		SwingUtilities.invokeLater(new Runnable() {
@@ -102,6 +138,58 @@ public class DirectoryPicker {
 		});
 	}
 
+	/**
+	 * Runs every time a character is typed into or deleted from the find box. Each
+	 * search cancels the one before it, so typing quickly doesn't pile them up, and
+	 * the results are only shown if the box still says what was searched for.
+	 */
+	private void findChanged() {
+		String query = mFindField.getText();
+		if (query.isBlank()) {
+			setStartingDir(mCurDir);
+			return;
+		}
+
+		mCtrl.findPaths(query, MAX_FIND_MATCHES).thenAccept(matches -> {
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					if (query.equals(mFindField.getText())) {
+						showMatches(matches);
+					}
+				}
+			});
+		});
+	}
+
+	private void showMatches(List<Match> matches) {
+		mPanel.removeAll();
+		for (Match m : matches) {
+			if (m.isDir) {
+				mPanel.add(new PathMenuItem(m.path, firstNChars(m.path.getFileName().toString() + "/", MAX_DIR_CHARS),
+						false));
+			} else {
+				mPanel.add(new SongMenuItem(m.path));
+			}
+		}
+		mPanel.revalidate();
+		mPanel.repaint();
+		mScrollPane.getVerticalScrollBar().setValue(0);
+	}
+
+	/**
+	 * Shows the given directory's listing, getting rid of any find results first.
+	 */
+	private void browseTo(Path p) {
+		mCurDir = p;
+		if (mFindField.getText().isEmpty()) {
+			setStartingDir(p);
+		} else {
+			// the find box going blank puts the listing for mCurDir back
+			mFindField.setText("");
+		}
+	}
+
 	public void scrollDownToNextPage() {
 		Rectangle oldView = mScrollPane.getVisibleRect();
 		int newY = oldView.y + oldView.height;
@@ -180,6 +268,8 @@ public class DirectoryPicker {
 
 	public interface PathSelectionListener {
 		public void setPathSelected(Path selPath, boolean isRecursive);
+
+		public void setSongSelected(Path song);
 	}
 
 	private class PathMenuItem extends JPanel {
@@ -223,7 +313,7 @@ public class DirectoryPicker {
 			dir.addActionListener(new ActionListener() {
 				@Override
 				public void actionPerformed(ActionEvent e) {
-					setStartingDir(p);
+					browseTo(p);
 				}
 			});
 
@@ -243,6 +333,37 @@ public class DirectoryPicker {
 		}
 	}
 
+	/**
+	 * A single song from the find results. Clicking anywhere on it plays it.
+	 */
+	private class SongMenuItem extends JPanel {
+		private static final long serialVersionUID = 1L;
+		private static final int DESIRED_HEIGHT = 32;
+		private static final int MAX_HEIGHT = 60;
+
+		public SongMenuItem(Path song) {
+			this.setMaximumSize(new Dimension(Integer.MAX_VALUE, MAX_HEIGHT));
+			this.setPreferredSize(new Dimension(-1, DESIRED_HEIGHT));
+
+			String label = firstNChars(DisplayUtils.getSongName(song, mCtrl.getTags(song), -1), MAX_DIR_CHARS);
+			JButton play = new JButton(label, mIconPlay);
+			play.setHorizontalAlignment(SwingConstants.LEFT);
+			play.setFont(play.getFont().deriveFont(Font.PLAIN));
+			play.setBorderPainted(false);
+			play.setToolTipText(song.toString());
+
+			this.setLayout(new BorderLayout());
+			this.add(play, BorderLayout.CENTER);
+
+			play.addActionListener(new ActionListener() {
+				@Override
+				public void actionPerformed(ActionEvent e) {
+					mListener.setSongSelected(song);
+				}
+			});
+		}
+	}
+
 	private static String firstNChars(String str, int numChars) {
 		if (str.length() > numChars) {
 			return str.substring(0, numChars);
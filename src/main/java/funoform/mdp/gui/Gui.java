@@ -10,6 +10,8 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.IOException;
@@ -20,7 +22,6 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.swing.DefaultListCellRenderer;
-import javax.swing.DefaultListModel;
 import javax.swing.Icon;
 import javax.swing.JButton;
 import javax.swing.JFrame;
@@ -38,12 +39,15 @@ import javax.swing.event.ListSelectionListener;
 
 import funoform.mdp.ConfigManager;
 import funoform.mdp.Controller;
+import funoform.mdp.Controller.QueueListener;
 import funoform.mdp.Controller.SettingsListener;
 import funoform.mdp.DisplayUtils;
+import funoform.mdp.TagCache.ITagListener;
 import funoform.mdp.dbus.RaiseWindowRequestListener;
 import funoform.mdp.gui.DirectoryPicker.PathSelectionListener;
 import funoform.mdp.gui.OptionsDialog.IOptionsDoneListener;
 import funoform.mdp.types.SettingsChanged;
+import funoform.mdp.types.SongTags;
 
 /**
  * Provides a graphical user interface for controlling the music.
@@ -73,7 +77,7 @@ public class Gui extends JPanel implements RaiseWindowRequestListener {
 	private JButton mBtnSettings = new JButton();
 	private JToggleButton mTbRandom = new JToggleButton();
 	private JToggleButton mTbRepeat = new JToggleButton();
-	private DefaultListModel<Path> mListSongModel = new DefaultListModel<>();
+	private PathListModel mListSongModel = new PathListModel();
 	private JList<Path> mListSongs = new JList<>(mListSongModel);
 	private AtomicBoolean mDisableSongListEvents = new AtomicBoolean(false);
 
@@ -98,7 +102,14 @@ public class Gui extends JPanel implements RaiseWindowRequestListener {
 			@Override
 			public void setPathSelected(Path selPath, boolean isRecursive) {
 				ctrl.playDir(selPath, isRecursive);
-				populateDirSongList();
+
+				CardLayout cl = (CardLayout) Gui.this.getLayout();
+				cl.show(Gui.this, CARD_MUSIC);
+			}
+
+			@Override
+			public void setSongSelected(Path song) {
+				ctrl.playSong(song);
 
 				CardLayout cl = (CardLayout) Gui.this.getLayout();
 				cl.show(Gui.this, CARD_MUSIC);
@@ -110,13 +121,15 @@ public class Gui extends JPanel implements RaiseWindowRequestListener {
 			public void run() {
 				init();
 				addActionListeners();
+				addQueueListener();
+				addTagListener();
 				createWindowIfNeededAndSetVisible();
 			}
 		});
 	}
 
 	private void init() {
-		populateDirSongList();
+		mDirSelector.setStartingDir(mCurBrowsingDir);
 
 		JPanel cardMusicPlayer = new JPanel();
 
@@ -164,9 +177,9 @@ public class Gui extends JPanel implements RaiseWindowRequestListener {
 		mTbRandom.setToolTipText("Random");
 		mTbRepeat.setToolTipText("Repeat All");
 		mBtnSettings.setToolTipText("Settings");
-		mPbSongDuration.setToolTipText("Song Playback Progress");
+		mPbSongDuration.setToolTipText("Song Playback Progress. Click to jump to that part of the song.");
 		mBtnDir.setToolTipText("Current Playing Directory");
-		setSongDirBtnText(mCtrl.getCurrentDir(), mCtrl.getQueuedSongs().size());
+		setSongDirBtnText(mCtrl.getCurrentDir(), String.valueOf(mCtrl.getQueuedSongs().size()));
 
 		// only allow the user to select at most one directory, same with songs
 		mListSongs.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
@@ -248,6 +261,20 @@ public class Gui extends JPanel implements RaiseWindowRequestListener {
 			}
 		});
 
+		mPbSongDuration.addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseReleased(MouseEvent e) {
+				// Released rather than clicked, as a finger on a touch screen usually moves a
+				// little between pressing and letting go, which isn't a click
+				int durSecs = mPbSongDuration.getMaximum();
+				int width = mPbSongDuration.getWidth();
+				if (0 < durSecs && 0 < width) {
+					int x = Math.max(0, Math.min(width - 1, e.getX()));
+					mCtrl.seekTo((long) x * durSecs * 1000 / width);
+				}
+			}
+		});
+
 		mListSongs.addListSelectionListener(new ListSelectionListener() {
 			@Override
 			public void valueChanged(ListSelectionEvent e) {
@@ -274,22 +301,23 @@ public class Gui extends JPanel implements RaiseWindowRequestListener {
 					@Override
 					public void run() {
 
-						// if the directory being played changed since last time, then we need to get an
-						// updated list of queued songs
-						if (mCurBrowsingDir != settings.playingDir) {
+						// if the directory being played changed since last time, browse from there
+						// next time the directory picker is shown. The song list itself is kept up to
+						// date by our QueueListener.
+						if (settings.isChanged(SettingsChanged.DIR)) {
 							mCurBrowsingDir = settings.playingDir;
-							populateDirSongList();
+							mDirSelector.setStartingDir(mCurBrowsingDir);
 						}
 
 						// if the song has changed since last time, consider scrolling the song list to
 						// the new song
-						if (mCurSongPlaying != settings.songPlaying) {
+						if (settings.isChanged(SettingsChanged.SONG)) {
 							mCurSongPlaying = settings.songPlaying;
 							// show the current playing song, and scroll to that entry in the list, but
 							// don't fire the action listener
 							mDisableSongListEvents.set(true);
 							if (null != settings.songPlaying) {
-								if (mListSongs.getSelectedValue() == settings.songPlaying) {
+								if (settings.songPlaying.equals(mListSongs.getSelectedValue())) {
 									// the correct song is already selected
 								} else {
 									// The song that just started playing wasn't selected. Select it
@@ -299,29 +327,38 @@ public class Gui extends JPanel implements RaiseWindowRequestListener {
 							mDisableSongListEvents.set(false);
 						}
 
-						setSongDirBtnText(settings.playingDir, settings.queuedSongs);
-						mPbSongDuration.setMinimum(0);
-						mPbSongDuration.setMaximum((int) settings.pbPercentage.getMaxTimeSecs());
-						mPbSongDuration.setValue((int) settings.pbPercentage.getCurTimeSecs());
-						mTbRandom.setSelected(settings.isRandom);
-						mTbRepeat.setSelected(settings.isRepeat);
-
-						boolean isSongPlaying = (0 < settings.pbPercentage.getMaxTimeSecs());
-						mBtnStop.setEnabled(isSongPlaying);
-						if (isSongPlaying) {
-							String progress = GuiUtils.secsToTimeStr(settings.pbPercentage.getCurTimeSecs()) + " / "
-									+ GuiUtils.secsToTimeStr(settings.pbPercentage.getMaxTimeSecs());
-							mPbSongDuration.setString(progress);
-							mPbSongDuration.setStringPainted(true);
-						} else {
-							mPbSongDuration.setString("");
-							mPbSongDuration.setStringPainted(false);
+						if (settings.isChanged(SettingsChanged.DIR | SettingsChanged.QUEUE)) {
+							setSongDirBtnText(settings.playingDir, DisplayUtils.getQueuedSongsCount(settings));
+						}
+						if (settings.isChanged(SettingsChanged.RANDOM | SettingsChanged.REPEAT)) {
+							mTbRandom.setSelected(settings.isRandom);
+							mTbRepeat.setSelected(settings.isRepeat);
+						}
+
+						if (settings.isChanged(SettingsChanged.PROGRESS)) {
+							mPbSongDuration.setMinimum(0);
+							mPbSongDuration.setMaximum((int) settings.pbPercentage.getMaxTimeSecs());
+							mPbSongDuration.setValue((int) settings.pbPercentage.getCurTimeSecs());
+
+							boolean isSongPlaying = (0 < settings.pbPercentage.getMaxTimeSecs());
+							mBtnStop.setEnabled(isSongPlaying);
+							if (isSongPlaying) {
+								String progress = GuiUtils.secsToTimeStr(settings.pbPercentage.getCurTimeSecs()) + " / "
+										+ GuiUtils.secsToTimeStr(settings.pbPercentage.getMaxTimeSecs());
+								mPbSongDuration.setString(progress);
+								mPbSongDuration.setStringPainted(true);
+							} else {
+								mPbSongDuration.setString("");
+								mPbSongDuration.setStringPainted(false);
+							}
 						}
 
-						if (settings.isPaused) {
-							mBtnPlayPause.setIcon(mIconPlay);
-						} else {
-							mBtnPlayPause.setIcon(mIconPause);
+						if (settings.isChanged(SettingsChanged.PAUSE)) {
+							if (settings.isPaused) {
+								mBtnPlayPause.setIcon(mIconPlay);
+							} else {
+								mBtnPlayPause.setIcon(mIconPause);
+							}
 						}
 					}
 				});
@@ -329,7 +366,77 @@ public class Gui extends JPanel implements RaiseWindowRequestListener {
 		});
 	}
 
-	private void setSongDirBtnText(Path dir, int count) {
+	/**
+	 * Redraws the song list as tags are read, so songs show their titles instead
+	 * of their file names. Tags for a whole directory can arrive hundreds at a
+	 * time, so those are drawn together rather than one repaint each.
+	 */
+	private void addTagListener() {
+		AtomicBoolean isRepaintPending = new AtomicBoolean(false);
+		mCtrl.registerTagListener(new ITagListener() {
+			@Override
+			public void tagsRead(Path song, SongTags tags) {
+				if (isRepaintPending.compareAndSet(false, true)) {
+					SwingUtilities.invokeLater(new Runnable() {
+						@Override
+						public void run() {
+							isRepaintPending.set(false);
+							mListSongs.repaint();
+						}
+					});
+				}
+			}
+		});
+	}
+
+	/**
+	 * Keeps the song list in step with the queue. Songs are added as they are
+	 * found, rather than the whole list being repopulated each time.
+	 */
+	private void addQueueListener() {
+		mCtrl.registerQueueListener(new QueueListener() {
+			@Override
+			public void queueReplaced(List<Path> songs) {
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						mDisableSongListEvents.set(true);
+						mListSongModel.replaceAll(songs);
+						if (null != mCurSongPlaying) {
+							mListSongs.setSelectedValue(mCurSongPlaying, true);
+						}
+						mDisableSongListEvents.set(false);
+					}
+				});
+			}
+
+			@Override
+			public void songsAdded(int index, List<Path> songs) {
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						mDisableSongListEvents.set(true);
+						mListSongModel.addAll(index, songs);
+						mDisableSongListEvents.set(false);
+					}
+				});
+			}
+
+			@Override
+			public void songRemoved(int index, Path song) {
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						mDisableSongListEvents.set(true);
+						mListSongModel.remove(index);
+						mDisableSongListEvents.set(false);
+					}
+				});
+			}
+		});
+	}
+
+	private void setSongDirBtnText(Path dir, String count) {
 		String dirName = "";
 		if (null == dir.getParent() && null == dir.getFileName()) {
 			// root dir on linux doesn't have a file name. It returns null.
@@ -341,14 +448,6 @@ public class Gui extends JPanel implements RaiseWindowRequestListener {
 		mBtnDir.setText(dirLabel);
 	}
 
-	private void populateDirSongList() {
-		mDirSelector.setStartingDir(mCurBrowsingDir);
-
-		List<Path> songs = mCtrl.getQueuedSongs();
-		mListSongModel.clear();
-		mListSongModel.addAll(songs);
-	}
-
 	/**
 	 * Hack that creates the correct type of top level window for the current
 	 * platform and makes that window visible, then registers a listener for mouse
@@ -490,7 +589,7 @@ public class Gui extends JPanel implements RaiseWindowRequestListener {
 
 			Path p = (Path) value;
 			// strip the extension before display
-			setText(DisplayUtils.getFileNameLengthLimited(p, -1));
+			setText(DisplayUtils.getSongName(p, mCtrl.getTags(p), -1));
 
 			if (isSelected) {
 				// Make the selected row slightly easier to read at a glance
@@ -54,11 +54,19 @@ public class OptionsDialog {
 		JSpinner spinFontScale = new JSpinner(new SpinnerNumberModel(mCm.getFontScale(), 0.1, 3.0, 0.1));
 		JSpinner spinBarWidth = new JSpinner(new SpinnerNumberModel(mCm.getScrollBarWidth(), 5, 200, 1));
 		JSpinner spinBarMaxListFilesTime = new JSpinner(new SpinnerNumberModel(mCm.getMaxListFilesWaitTimeSec(), 1, 600, 1));
+		JSpinner spinScanParallelism = new JSpinner(new SpinnerNumberModel(mCm.getScanParallelism(), 1,
+				ConfigManager.MAX_SCAN_PARALLELISM, 1));
+		JSpinner spinMaxDirReadTime = new JSpinner(new SpinnerNumberModel(mCm.getMaxDirReadTimeSec(), 1, 600, 1));
+		JSpinner spinCrossfade = new JSpinner(new SpinnerNumberModel(mCm.getCrossfadeSecs(), 0, 12, 1));
 		JCheckBox checkAutoStart = new JCheckBox("Automatically start playing music on startup");
 		JCheckBox checkRecursive = new JCheckBox("Startup directory played recursively");
 		checkAutoStart.setSelected(mCm.getIsAutoStart());
 		JCheckBox checkShowPrevBtn = new JCheckBox("Show the previous track button*");
 		checkShowPrevBtn.setSelected(mCm.getIsShowPrevTrackBtn());
+		JCheckBox checkSniffAudioFiles = new JCheckBox("Look inside files without a .mp3 extension for songs");
+		checkSniffAudioFiles.setSelected(mCm.getIsSniffAudioFiles());
+		JCheckBox checkGapless = new JCheckBox("Play songs back to back with no gap between them");
+		checkGapless.setSelected(mCm.getIsGapless());
 
 		JComboBox<String> comboLookAndFeel = new JComboBox<>(getAvailableLookAndFeels());
 		// A crazy user might want to add a L&F to the class path then type in the name
@@ -100,6 +108,24 @@ public class OptionsDialog {
 				left);
 		mPnl.add(spinBarMaxListFilesTime, right);
 
+		row++;
+		left.gridy = row;
+		right.gridy = row;
+		mPnl.add(OptionsDialog.textArea("Number of directories searched for music files at the same time."), left);
+		mPnl.add(spinScanParallelism, right);
+
+		row++;
+		left.gridy = row;
+		right.gridy = row;
+		mPnl.add(OptionsDialog.textArea("Maximum seconds to wait on any one directory before skipping it."), left);
+		mPnl.add(spinMaxDirReadTime, right);
+
+		row++;
+		left.gridy = row;
+		right.gridy = row;
+		mPnl.add(OptionsDialog.textArea("Seconds each song fades into the next. 0 for no crossfade."), left);
+		mPnl.add(spinCrossfade, right);
+
 		GridBagConstraints bottom = new GridBagConstraints();
 		bottom.fill = GridBagConstraints.BOTH;
 		bottom.weightx = 1.0;
@@ -121,6 +147,12 @@ public class OptionsDialog {
 		bottom.gridy = ++row;
 		mPnl.add(checkShowPrevBtn, bottom);
 
+		bottom.gridy = ++row;
+		mPnl.add(checkSniffAudioFiles, bottom);
+
+		bottom.gridy = ++row;
+		mPnl.add(checkGapless, bottom);
+
 		bottom.gridy = ++row;
 		mPnl.add(OptionsDialog.textArea("* Takes effect after next restart."), bottom);
 
@@ -149,6 +181,27 @@ public class OptionsDialog {
 			}
 		});
 		
+		spinScanParallelism.addChangeListener(new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				mCm.saveScanParallelism((int) spinScanParallelism.getModel().getValue());
+			}
+		});
+
+		spinMaxDirReadTime.addChangeListener(new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				mCm.saveMaxDirReadTimeSec((int) spinMaxDirReadTime.getModel().getValue());
+			}
+		});
+
+		spinCrossfade.addChangeListener(new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				mCm.saveCrossfadeSecs((int) spinCrossfade.getModel().getValue());
+			}
+		});
+
 		checkAutoStart.addActionListener(new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent arg0) {
@@ -170,6 +223,20 @@ public class OptionsDialog {
 			}
 		});
 
+		checkSniffAudioFiles.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent arg0) {
+				mCm.saveSniffAudioFiles(checkSniffAudioFiles.isSelected());
+			}
+		});
+
+		checkGapless.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent arg0) {
+				mCm.saveGapless(checkGapless.isSelected());
+			}
+		});
+
 		comboLookAndFeel.addActionListener(new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent e) {
@@ -0,0 +1,57 @@
+package funoform.mdp.gui;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import javax.swing.AbstractListModel;
+
+import funoform.mdp.CompactPathList;
+
+/**
+ * The songs shown in a JList, kept in a {@link CompactPathList} rather than a
+ * DefaultListModel full of Path objects. The JList only asks for the songs it is
+ * drawing, so the Paths it gets are thrown away again once scrolled past.
+ *
+ * Like all Swing models, only touch this on the event dispatch thread.
+ */
+public class PathListModel extends AbstractListModel<Path> {
+	private static final long serialVersionUID = 1L;
+	private transient CompactPathList mPaths = new CompactPathList();
+
+	@Override
+	public int getSize() {
+		return mPaths.size();
+	}
+
+	@Override
+	public Path getElementAt(int index) {
+		return mPaths.get(index);
+	}
+
+	/**
+	 * Throws out everything in the list and shows these paths instead.
+	 */
+	public void replaceAll(List<Path> paths) {
+		int oldSize = mPaths.size();
+		mPaths = new CompactPathList(paths);
+		if (0 < oldSize) {
+			fireIntervalRemoved(this, 0, oldSize - 1);
+		}
+		if (!mPaths.isEmpty()) {
+			fireIntervalAdded(this, 0, mPaths.size() - 1);
+		}
+	}
+
+	public void addAll(int index, List<Path> paths) {
+		if (paths.isEmpty()) {
+			return;
+		}
+		mPaths.addAll(index, paths);
+		fireIntervalAdded(this, index, index + paths.size() - 1);
+	}
+
+	public void remove(int index) {
+		mPaths.remove(index);
+		fireIntervalRemoved(this, index, index);
+	}
+}
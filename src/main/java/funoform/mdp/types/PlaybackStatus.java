@@ -1,5 +1,7 @@
 package funoform.mdp.types;
 
+import java.nio.file.Path;
+
 /**
  * Send by the MusicPlayer to the Controller to provide updates on the song
  * playback progress, such as how far into the song are we and when the playback
@@ -8,11 +10,20 @@ package funoform.mdp.types;
 public class PlaybackStatus {
 	public boolean isPlaybackComplete;
 	public PlaybackPercentage pbPercentage;
+	/**
+	 * Set when the player went straight on to the next song by itself, without
+	 * stopping. Otherwise null.
+	 */
+	public Path songStarted;
 
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder("[PlaybackStatus: isComplete=");
 		sb.append(isPlaybackComplete);
+		if (null != songStarted) {
+			sb.append(" started=");
+			sb.append(songStarted);
+		}
 		sb.append(" ");
 		sb.append(pbPercentage.toString());
 		sb.append("]");
@@ -1,19 +1,63 @@
 package funoform.mdp.types;
 
 import java.nio.file.Path;
+import java.util.Objects;
 
 /**
  * Represents the settings in use by the Controller, and also the status of
  * directory / song being played back by the Controller.
+ *
+ * The copies listeners get are snapshots, which must not be changed. Each says
+ * which fields changed since the snapshot before it, so a listener can tell in
+ * one check whether there is anything for it to do. Most updates are just the
+ * playback progress ticking along.
  */
 public class SettingsChanged {
+	// Bits for the fields, for isChanged()
+	public static final int DIR = 1;
+	/**
+	 * The song playing, or its tags.
+	 */
+	public static final int SONG = 1 << 1;
+	public static final int PROGRESS = 1 << 2;
+	public static final int PAUSE = 1 << 3;
+	public static final int RANDOM = 1 << 4;
+	public static final int REPEAT = 1 << 5;
+	/**
+	 * The number of songs queued, or whether we are still searching for them.
+	 */
+	public static final int QUEUE = 1 << 6;
+	public static final int ALL = (1 << 7) - 1;
+	/**
+	 * The progress jumped, rather than playing its way there. Only ever set along
+	 * with {@link #PROGRESS}. Not part of {@link #ALL}, as it is something that
+	 * happened rather than a field that can be different.
+	 */
+	public static final int SEEK = 1 << 7;
+
 	public boolean isRepeat;
 	public boolean isRandom;
 	public boolean isPaused;
 	public Path playingDir;
 	public Path songPlaying;
+	/**
+	 * The tags of the song playing, or null if they haven't been read yet.
+	 */
+	public SongTags songTags;
 	public int queuedSongs;
+	/**
+	 * True while still searching the playing directory for songs. More songs may
+	 * yet be queued.
+	 */
+	public boolean isScanning;
+	/**
+	 * True if we ran out of time searching the playing directory, so some of its
+	 * songs were never queued.
+	 */
+	public boolean isScanIncomplete;
 	public PlaybackPercentage pbPercentage;
+	// Nothing to compare the first snapshot with, so everything changed
+	private int mChanged = ALL;
 
 	public SettingsChanged() {
 		pbPercentage = new PlaybackPercentage(0, 0);
@@ -29,11 +73,83 @@ public class SettingsChanged {
 		c.isPaused = this.isPaused;
 		c.playingDir = this.playingDir;
 		c.songPlaying = this.songPlaying;
+		c.songTags = this.songTags;
 		c.queuedSongs = this.queuedSongs;
+		c.isScanning = this.isScanning;
+		c.isScanIncomplete = this.isScanIncomplete;
 		c.pbPercentage = this.pbPercentage;
+		c.mChanged = this.mChanged;
+		return c;
+	}
+
+	/**
+	 * Copies these settings for handing out to listeners.
+	 *
+	 * @param previous The last snapshot handed out, or null if none has been.
+	 * @return The copy, marked with the fields that are different from the
+	 *         previous snapshot.
+	 */
+	public SettingsChanged snapshot(SettingsChanged previous) {
+		SettingsChanged c = copy();
+		c.mChanged = (null == previous) ? ALL : c.diff(previous);
 		return c;
 	}
 
+	/**
+	 * @return A copy also marked as changing these fields. For when a listener
+	 *         skips a snapshot, so it still hears about what that one changed.
+	 */
+	public SettingsChanged withChanged(int fields) {
+		SettingsChanged c = copy();
+		c.mChanged |= fields;
+		return c;
+	}
+
+	/**
+	 * @return The fields changed since the last snapshot, as bits such as
+	 *         {@link #SONG}.
+	 */
+	public int getChanged() {
+		return mChanged;
+	}
+
+	/**
+	 * @param fields Bits such as {@link #SONG} | {@link #DIR}.
+	 * @return True if any of the fields changed since the last snapshot.
+	 */
+	public boolean isChanged(int fields) {
+		return 0 != (mChanged & fields);
+	}
+
+	private int diff(SettingsChanged o) {
+		int changed = 0;
+		if (!Objects.equals(playingDir, o.playingDir)) {
+			changed |= DIR;
+		}
+		// Tags are only ever replaced, never changed, so the same tags are the same
+		// object
+		if (!Objects.equals(songPlaying, o.songPlaying) || songTags != o.songTags) {
+			changed |= SONG;
+		}
+		if (pbPercentage.getCurTimeSecs() != o.pbPercentage.getCurTimeSecs()
+				|| pbPercentage.getMaxTimeSecs() != o.pbPercentage.getMaxTimeSecs()) {
+			changed |= PROGRESS;
+		}
+		if (isPaused != o.isPaused) {
+			changed |= PAUSE;
+		}
+		if (isRandom != o.isRandom) {
+			changed |= RANDOM;
+		}
+		if (isRepeat != o.isRepeat) {
+			changed |= REPEAT;
+		}
+		if (queuedSongs != o.queuedSongs || isScanning != o.isScanning || isScanIncomplete != o.isScanIncomplete) {
+			changed |= QUEUE;
+		}
+		return changed;
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder("[SettingsChanged: ");
@@ -53,6 +169,11 @@ public class SettingsChanged {
 		}
 		sb.append(", numQueued=");
 		sb.append(queuedSongs);
+		if (isScanning) {
+			sb.append(" (scanning)");
+		} else if (isScanIncomplete) {
+			sb.append(" (incomplete)");
+		}
 		sb.append(", playback=");
 		sb.append(pbPercentage);
 		sb.append("]");
@@ -0,0 +1,62 @@
+package funoform.mdp.types;
+
+/**
+ * What a song's ID3 tags say about it. Any of it may be missing, in which case
+ * the strings are null and the numbers are 0 (or -1 for the art).
+ */
+public class SongTags {
+	public final String title;
+	public final String artist;
+	public final String album;
+	public final String genre;
+	public final int trackNumber;
+	public final int year;
+	/**
+	 * Where the embedded cover art starts in the file, or -1 if there isn't any.
+	 * So it can be read without parsing the tags again.
+	 */
+	public final long artOffset;
+	public final int artLength;
+
+	public SongTags(String title, String artist, String album, String genre, int trackNumber, int year,
+			long artOffset, int artLength) {
+		this.title = title;
+		this.artist = artist;
+		this.album = album;
+		this.genre = genre;
+		this.trackNumber = trackNumber;
+		this.year = year;
+		this.artOffset = artOffset;
+		this.artLength = artLength;
+	}
+
+	/**
+	 * @return True if there was nothing useful in the tags, or no tags at all.
+	 */
+	public boolean isEmpty() {
+		return null == title && null == artist && null == album && null == genre && 0 == trackNumber && 0 == year
+				&& -1 == artOffset;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[SongTags: ");
+		sb.append(artist);
+		sb.append(" - ");
+		sb.append(album);
+		sb.append(" [");
+		sb.append(genre);
+		sb.append("] (");
+		sb.append(year);
+		sb.append(") - ");
+		sb.append(trackNumber);
+		sb.append(". ");
+		sb.append(title);
+		if (-1 != artOffset) {
+			sb.append(", art at ");
+			sb.append(artOffset);
+		}
+		sb.append("]");
+		return sb.toString();
+	}
+}
@@ -20,7 +20,6 @@ import org.freedesktop.dbus.types.Variant;
 @DBusProperty(name = "LoopStatus", type = String.class, access = Access.READ_WRITE)
 @DBusProperty(name = "Volume", type = Double.class, access = Access.READ_WRITE)
 @DBusProperty(name = "Shuffle", type = Double.class, access = Access.READ_WRITE)
-@DBusProperty(name = "Position", type = Integer.class, access = Access.READ)
 @DBusProperty(name = "Rate", type = Double.class, access = Access.READ_WRITE)
 @DBusProperty(name = "MinimumRate", type = Double.class, access = Access.READ_WRITE)
 @DBusProperty(name = "MaximumRate", type = Double.class, access = Access.READ_WRITE)
@@ -47,6 +46,12 @@ public interface Player extends DBusInterface {
 	@DBusBoundProperty(access = Access.READ, name = "CanSeek")
 	boolean getCanSeek();
 
+	/**
+	 * How far into the track we are, in microseconds.
+	 */
+	@DBusBoundProperty(access = Access.READ, name = "Position")
+	long getPosition();
+
 	@DBusBoundProperty(access = Access.READ_WRITE, name = "Shuffle")
 	boolean getShuffle();
 
@@ -77,7 +82,8 @@ public interface Player extends DBusInterface {
 		private final long timeInUs;
 
 		public Seeked(String _path, long _timeInUs) throws DBusException {
-			super(_path);
+			// the time has to go to the super class too, or it isn't sent
+			super(_path, _timeInUs);
 			timeInUs = _timeInUs;
 		}
 